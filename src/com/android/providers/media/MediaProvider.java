@@ -52,10 +52,15 @@ import static com.android.providers.media.LocalCallingIdentity.PERMISSION_READ_V
 import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_AUDIO;
 import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_IMAGES;
 import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_VIDEO;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_CRITICAL;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_HIGH;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_LOW;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_NORMAL;
 
 import android.annotation.BytesLong;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.AppOpsManager.OnOpActiveChangedListener;
@@ -89,10 +94,11 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.graphics.drawable.Icon;
-import android.media.ExifInterface;
 import android.media.MediaFile;
 import android.media.ThumbnailUtils;
 import android.mtp.MtpConstants;
@@ -154,25 +160,34 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.providers.media.scan.DirectoryFingerprint;
+import com.android.providers.media.scan.HiddenDirectoryCache;
 import com.android.providers.media.scan.MediaScanner;
-import com.android.providers.media.scan.ModernMediaScanner;
+import com.android.providers.media.scan.ScanCheckpoint;
+import com.android.providers.media.scan.VolumeWatcher;
 import com.android.providers.media.util.CachedSupplier;
-import com.android.providers.media.util.IsoInterface;
-import com.android.providers.media.util.XmpInterface;
+import com.android.providers.media.util.ContainerIndexCache;
+import com.android.providers.media.util.EmbeddedThumbnails;
+import com.android.providers.media.util.IdBitmap;
+import com.android.providers.media.util.MetadataSource;
+import com.android.providers.media.util.RedactionInfo;
 
 import libcore.io.IoUtils;
 import libcore.util.EmptyArray;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -182,8 +197,12 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -198,6 +217,13 @@ public class MediaProvider extends ContentProvider {
     public static final boolean ENABLE_MODERN_SCANNER = SystemProperties
             .getBoolean("persist.sys.modern_scanner", true);
 
+    /**
+     * Serve thumbnails requested through {@link #openTypedAssetFile} from a
+     * {@link ThumbnailStore} instead of individual files.
+     */
+    static final boolean ENABLE_PACKED_THUMBNAILS = SystemProperties
+            .getBoolean("persist.sys.packed_thumbnails", false);
+
     /**
      * Regex that matches paths in all well-known package-specific directories,
      * and which captures the package name as the first group.
@@ -297,6 +323,10 @@ public class MediaProvider extends ContentProvider {
     private PackageManager mPackageManager;
 
     private Size mThumbSize;
+    private ThumbnailCache mThumbnailCache;
+
+    /** Fraction of our memory class used to cache recently served thumbnails */
+    private static final int THUMBNAIL_CACHE_FRACTION = 16;
 
     /**
      * Map from UID to cached {@link LocalCallingIdentity}. Values are only
@@ -797,6 +827,11 @@ public class MediaProvider extends ContentProvider {
         final int thumbSize = Math.min(metrics.widthPixels, metrics.heightPixels) / 2;
         mThumbSize = new Size(thumbSize, thumbSize);
 
+        final ActivityManager am = context.getSystemService(ActivityManager.class);
+        mThumbnailCache = new ThumbnailCache(
+                am.getMemoryClass() * 1024 * 1024 / THUMBNAIL_CACHE_FRACTION);
+        mInvalidateExecutor.allowCoreThreadTimeOut(true);
+
         mInternalDatabase = new DatabaseHelper(context, INTERNAL_DATABASE_NAME, true,
                 false, mObjectRemovedCallback);
         mExternalDatabase = new DatabaseHelper(context, EXTERNAL_DATABASE_NAME, false,
@@ -836,6 +871,11 @@ public class MediaProvider extends ContentProvider {
         return true;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        mThumbnailCache.trimMemory(level);
+    }
+
     @Override
     public void onCallingPackageChanged() {
         // Identity of the current thread has changed, so invalidate caches
@@ -863,7 +903,10 @@ public class MediaProvider extends ContentProvider {
 
             try {
                 final File file = getVolumePath(volumeName);
-                MediaService.onScanVolume(getContext(), Uri.fromFile(file));
+                ScanScheduler.getInstance(getContext()).execute(() -> {
+                    MediaService.onScanVolume(getContext(), Uri.fromFile(file), signal);
+                    return null;
+                }, PRIORITY_LOW, signal);
             } catch (IOException e) {
                 Log.w(TAG, e);
             }
@@ -941,6 +984,236 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Delete all items at or below the given path which aren't present in the
+     * given set of IDs seen during a scan, using a single set-based statement.
+     * <p>
+     * This is equivalent to deleting each stale item with
+     * {@link MediaStore#PARAM_DELETE_DATA} set to {@code false}, including
+     * sending the same change notifications, but without a provider operation
+     * per item.
+     *
+     * @return number of deleted items
+     */
+    public int deleteUnscannedItems(@NonNull String volumeName, @NonNull String path,
+            @NonNull long[] scannedIds, @Nullable CancellationSignal signal) {
+        final DatabaseHelper helper;
+        try {
+            helper = getDatabaseForUri(Files.getContentUri(volumeName));
+        } catch (VolumeNotFoundException e) {
+            return 0;
+        }
+        final SQLiteDatabase db = helper.getWritableDatabase();
+
+        // Items are selected as a range, since '0' sorts directly after '/';
+        // abstract playlists are ignored since they don't have files on disk
+        final String where = FileColumns.FORMAT + "!=" + MtpConstants.FORMAT_ABSTRACT_AV_PLAYLIST
+                + " AND (" + FileColumns.DATA + "=? OR (" + FileColumns.DATA + ">? AND "
+                + FileColumns.DATA + "<?)) AND " + FileColumns._ID
+                + " NOT IN (SELECT _id FROM temp.scanned_ids)";
+        final String[] whereArgs = new String[] { path, path + '/', path + '0' };
+
+        // Let more urgent scans go first, since they can't run while we hold
+        // the transaction below
+        ScanScheduler.yieldIfNeeded();
+
+        final LongArray deletedIds = new LongArray();
+        helper.beginTransaction();
+        try {
+            // Temporary tables are private to the connection, which we hold
+            // for the duration of this transaction
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS scanned_ids (_id INTEGER PRIMARY KEY)");
+            db.execSQL("DELETE FROM temp.scanned_ids");
+            try (SQLiteStatement insert = db.compileStatement(
+                    "INSERT OR IGNORE INTO temp.scanned_ids VALUES (?)")) {
+                for (long id : scannedIds) {
+                    insert.bindLong(1, id);
+                    insert.executeInsert();
+                }
+            }
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+
+            try (Cursor c = db.query("files", new String[] { FileColumns._ID }, where,
+                    whereArgs, null, null, null, null, signal)) {
+                while (c.moveToNext()) {
+                    deletedIds.add(c.getLong(0));
+                }
+            }
+            if (deletedIds.size() > 0) {
+                db.delete("files", where, whereArgs);
+            }
+            db.execSQL("DROP TABLE temp.scanned_ids");
+
+            for (int i = 0; i < deletedIds.size(); i++) {
+                final long id = deletedIds.get(i);
+                if (LOCAL_LOGV) Log.v(TAG, "Cleaning " + id);
+                acceptWithExpansion(helper::notifyChange, Files.getContentUri(volumeName, id));
+            }
+            helper.setTransactionSuccessful();
+        } finally {
+            helper.endTransaction();
+        }
+        return deletedIds.size();
+    }
+
+    /**
+     * Return all directory fingerprints recorded by the scanner for the given
+     * directory and everything below it, keyed by path.
+     */
+    public @NonNull ArrayMap<String, DirectoryFingerprint> queryScanJournal(
+            @NonNull String volumeName, @NonNull String path) {
+        final ArrayMap<String, DirectoryFingerprint> res = new ArrayMap<>();
+
+        // Children are selected as a range, since '0' sorts directly after '/'
+        final SQLiteDatabase db;
+        try {
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getReadableDatabase();
+        } catch (VolumeNotFoundException e) {
+            return res;
+        }
+        try (Cursor c = db.query("scan_journal", new String[] {
+                "path", "date_modified", "child_count", "child_hash", "child_dirs",
+                "date_verified"
+        }, "path=? OR (path>? AND path<?)", new String[] {
+                path, path + '/', path + '0'
+        }, null, null, null)) {
+            while (c.moveToNext()) {
+                res.put(c.getString(0), new DirectoryFingerprint(c.getLong(1), c.getInt(2),
+                        c.getLong(3), c.getInt(4), c.getLong(5)));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Replace all directory fingerprints recorded by the scanner for the given
+     * directory and everything below it.
+     */
+    public void replaceScanJournal(@NonNull String volumeName, @NonNull String path,
+            @NonNull Map<String, DirectoryFingerprint> fingerprints) {
+        final SQLiteDatabase db;
+        try {
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getWritableDatabase();
+        } catch (VolumeNotFoundException e) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            db.delete("scan_journal", "path=? OR (path>? AND path<?)", new String[] {
+                    path, path + '/', path + '0'
+            });
+            final ContentValues values = new ContentValues();
+            for (Map.Entry<String, DirectoryFingerprint> entry : fingerprints.entrySet()) {
+                final DirectoryFingerprint fingerprint = entry.getValue();
+                values.clear();
+                values.put("path", entry.getKey());
+                values.put("date_modified", fingerprint.dateModified);
+                values.put("child_count", fingerprint.childCount);
+                values.put("child_hash", fingerprint.childHash);
+                values.put("child_dirs", fingerprint.childDirs);
+                values.put("date_verified", fingerprint.dateVerified);
+                db.insertWithOnConflict("scan_journal", null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Return the checkpoint recorded by the scanner for the given directory,
+     * or {@code null} if none.
+     */
+    public @Nullable ScanCheckpoint queryScanCheckpoint(@NonNull String volumeName,
+            @NonNull String path) {
+        final SQLiteDatabase db;
+        try {
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getReadableDatabase();
+        } catch (VolumeNotFoundException e) {
+            return null;
+        }
+        try (Cursor c = db.query("scan_checkpoint", new String[] {
+                "generation", "last_path", "date_modified"
+        }, "path=?", new String[] { path }, null, null, null)) {
+            if (c.moveToFirst()) {
+                return new ScanCheckpoint(c.getLong(0), c.getString(1), c.getLong(2));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the progress of an interrupted scan of the given directory,
+     * along with the directory fingerprints measured since its last
+     * checkpoint, in a single transaction.
+     */
+    public void updateScanCheckpoint(@NonNull String volumeName, @NonNull String path,
+            @NonNull ScanCheckpoint checkpoint,
+            @NonNull Map<String, DirectoryFingerprint> fingerprints) {
+        final SQLiteDatabase db;
+        try {
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getWritableDatabase();
+        } catch (VolumeNotFoundException e) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            final ContentValues values = new ContentValues();
+            for (Map.Entry<String, DirectoryFingerprint> entry : fingerprints.entrySet()) {
+                final DirectoryFingerprint fingerprint = entry.getValue();
+                values.clear();
+                values.put("path", entry.getKey());
+                values.put("date_modified", fingerprint.dateModified);
+                values.put("child_count", fingerprint.childCount);
+                values.put("child_hash", fingerprint.childHash);
+                values.put("child_dirs", fingerprint.childDirs);
+                values.put("date_verified", fingerprint.dateVerified);
+                db.insertWithOnConflict("scan_journal", null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+
+            values.clear();
+            values.put("path", path);
+            values.put("generation", checkpoint.generation);
+            values.put("last_path", checkpoint.lastPath);
+            values.put("date_modified", checkpoint.dateModified);
+            db.insertWithOnConflict("scan_checkpoint", null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Mark the current generation of scans of the given directory as
+     * complete, and drop any checkpoints below it which are now redundant.
+     */
+    public void completeScanCheckpoint(@NonNull String volumeName, @NonNull String path) {
+        final SQLiteDatabase db;
+        try {
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getWritableDatabase();
+        } catch (VolumeNotFoundException e) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            db.delete("scan_checkpoint", "path>? AND path<?", new String[] {
+                    path + '/', path + '0'
+            });
+            final ContentValues values = new ContentValues();
+            values.putNull("last_path");
+            values.put("date_modified", System.currentTimeMillis());
+            db.update("scan_checkpoint", values, "path=?", new String[] { path });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void enforceShellRestrictions() {
         if (UserHandle.getCallingAppId() == android.os.Process.SHELL_UID
                 && getContext().getSystemService(UserManager.class)
@@ -1054,9 +1327,15 @@ public class MediaProvider extends ContentProvider {
                 + "group_id INTEGER DEFAULT NULL,primary_directory TEXT DEFAULT NULL,"
                 + "secondary_directory TEXT DEFAULT NULL,document_id TEXT DEFAULT NULL,"
                 + "instance_id TEXT DEFAULT NULL,original_document_id TEXT DEFAULT NULL,"
-                + "relative_path TEXT DEFAULT NULL,volume_name TEXT DEFAULT NULL)");
+                + "relative_path TEXT DEFAULT NULL,volume_name TEXT DEFAULT NULL,"
+                + "redaction_info BLOB DEFAULT NULL)");
 
         db.execSQL("CREATE TABLE log (time DATETIME, message TEXT)");
+        db.execSQL("CREATE TABLE scan_journal (path TEXT PRIMARY KEY,date_modified INTEGER,"
+                + "child_count INTEGER,child_hash INTEGER,child_dirs INTEGER,"
+                + "date_verified INTEGER)");
+        db.execSQL("CREATE TABLE scan_checkpoint (path TEXT PRIMARY KEY,generation INTEGER,"
+                + "last_path TEXT,date_modified INTEGER)");
         if (!internal) {
             db.execSQL("CREATE TABLE audio_genres (_id INTEGER PRIMARY KEY,name TEXT NOT NULL)");
             db.execSQL("CREATE TABLE audio_genres_map (_id INTEGER PRIMARY KEY,"
@@ -1292,6 +1571,21 @@ public class MediaProvider extends ContentProvider {
                 + " AND " + MediaColumns.RELATIVE_PATH + " NOT LIKE '%/';");
     }
 
+    private static void updateAddScanJournal(SQLiteDatabase db, boolean internal) {
+        db.execSQL("CREATE TABLE scan_journal (path TEXT PRIMARY KEY,date_modified INTEGER,"
+                + "child_count INTEGER,child_hash INTEGER,child_dirs INTEGER,"
+                + "date_verified INTEGER)");
+    }
+
+    private static void updateAddScanCheckpoint(SQLiteDatabase db, boolean internal) {
+        db.execSQL("CREATE TABLE scan_checkpoint (path TEXT PRIMARY KEY,generation INTEGER,"
+                + "last_path TEXT,date_modified INTEGER)");
+    }
+
+    private static void updateAddRedactionInfo(SQLiteDatabase db, boolean internal) {
+        db.execSQL("ALTER TABLE files ADD COLUMN redaction_info BLOB DEFAULT NULL;");
+    }
+
     private static void recomputeDataValues(SQLiteDatabase db, boolean internal) {
         try (Cursor c = db.query("files", new String[] { FileColumns._ID, FileColumns.DATA },
                 null, null, null, null, null, null)) {
@@ -1319,7 +1613,7 @@ public class MediaProvider extends ContentProvider {
     static final int VERSION_N = 800;
     static final int VERSION_O = 800;
     static final int VERSION_P = 900;
-    static final int VERSION_Q = 1023;
+    static final int VERSION_Q = 1026;
 
     /**
      * This method takes care of updating all the tables in the database to the
@@ -1417,6 +1711,15 @@ public class MediaProvider extends ContentProvider {
             if (fromVersion < 1023) {
                 updateRelativePath(db, internal);
             }
+            if (fromVersion < 1024) {
+                updateAddScanJournal(db, internal);
+            }
+            if (fromVersion < 1025) {
+                updateAddScanCheckpoint(db, internal);
+            }
+            if (fromVersion < 1026) {
+                updateAddRedactionInfo(db, internal);
+            }
 
             if (recomputeDataValues) {
                 recomputeDataValues(db, internal);
@@ -2997,6 +3300,7 @@ public class MediaProvider extends ContentProvider {
 
             if (!isCallingPackageSystem()) {
                 initialValues.remove(FileColumns.IS_DOWNLOAD);
+                initialValues.remove(RedactionInfo.COLUMN_REDACTION_INFO);
             }
 
             // We no longer track location metadata
@@ -3997,6 +4301,7 @@ public class MediaProvider extends ContentProvider {
                     FileColumns.MIME_TYPE,
             };
             final LongSparseArray<String> deletedDownloadIds = new LongSparseArray<>();
+            final LongArray invalidatedIds = new LongArray();
             if (qb.getTables().equals("files")) {
                 String deleteparam = uri.getQueryParameter(MediaStore.PARAM_DELETE_DATA);
                 if (deleteparam == null || ! deleteparam.equals("false")) {
@@ -4015,9 +4320,9 @@ public class MediaProvider extends ContentProvider {
                             // Forget that caller is owner of this item
                             mCallingIdentity.get().setOwned(id, false);
 
-                            // Invalidate thumbnails and revoke all outstanding grants
+                            // Invalidate thumbnails below, and revoke all outstanding grants
                             final Uri deletedUri = Files.getContentUri(volumeName, id);
-                            invalidateThumbnails(deletedUri);
+                            invalidatedIds.add(id);
                             acceptWithExpansion((expandedUri) -> {
                                 getContext().revokeUriPermission(expandedUri,
                                         Intent.FLAG_GRANT_READ_URI_PERMISSION
@@ -4081,6 +4386,8 @@ public class MediaProvider extends ContentProvider {
                     } finally {
                         IoUtils.closeQuietly(c);
                     }
+                    invalidateThumbnails(volumeName, invalidatedIds);
+
                     // Do not allow deletion if the file/object is referenced as parent
                     // by some other entries. It could cause database corruption.
                     appendWhereStandalone(qb, ID_NOT_PARENT_CLAUSE);
@@ -4193,11 +4500,14 @@ public class MediaProvider extends ContentProvider {
                     final Bundle res = new Bundle();
                     switch (method) {
                         case MediaStore.SCAN_FILE_CALL:
-                            res.putParcelable(Intent.EXTRA_STREAM,
-                                    MediaScanner.instance(getContext()).scanFile(file));
+                            res.putParcelable(Intent.EXTRA_STREAM, ScanScheduler
+                                    .getInstance(getContext()).scanFile(file, PRIORITY_HIGH));
                             break;
                         case MediaStore.SCAN_VOLUME_CALL:
-                            MediaService.onScanVolume(getContext(), Uri.fromFile(file));
+                            ScanScheduler.getInstance(getContext()).execute(() -> {
+                                MediaService.onScanVolume(getContext(), Uri.fromFile(file));
+                                return null;
+                            }, PRIORITY_NORMAL, null);
                             break;
                     }
                     return res;
@@ -4349,22 +4659,22 @@ public class MediaProvider extends ContentProvider {
         return totalSize;
     }
 
+    /** Time spent walking thumbnail directories during each idle pass */
+    private static final long PRUNE_BUDGET_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+    /** Age after which a temp file can't belong to a thumbnail still being written */
+    private static final long PRUNE_TEMP_AGE_MS = DateUtils.HOUR_IN_MILLIS;
+    /** Number of rows read or deleted in each short transaction while pruning */
+    private static final int PRUNE_CHUNK = 1000;
+
     private void pruneThumbnails(@NonNull CancellationSignal signal) {
         final DatabaseHelper helper = mExternalDatabase;
-        final SQLiteDatabase db = helper.getReadableDatabase();
+        final SQLiteDatabase db = helper.getWritableDatabase();
 
         // Determine all known media items
-        final LongArray knownIds = new LongArray();
-        try (Cursor c = db.query(true, "files", new String[] { BaseColumns._ID },
-                null, null, null, null, null, null, signal)) {
-            while (c.moveToNext()) {
-                knownIds.add(c.getLong(0));
-            }
-        }
-
-        final long[] knownIdsRaw = knownIds.toArray();
-        Arrays.sort(knownIdsRaw);
+        final IdBitmap knownIds = queryKnownIds(db, "files", BaseColumns._ID, signal);
+        Log.d(TAG, "Found " + knownIds.size() + " known items");
 
+        final long deadline = SystemClock.elapsedRealtime() + PRUNE_BUDGET_MS;
         for (String volumeName : getExternalVolumeNames()) {
             final File volumePath;
             try {
@@ -4382,129 +4692,617 @@ public class MediaProvider extends ContentProvider {
             }) {
                 // Possibly bail before digging into each directory
                 signal.throwIfCanceled();
+                pruneThumbnailDirectory(thumbDir, knownIds, deadline, signal);
+            }
 
-                for (File thumbFile : FileUtils.listFilesOrEmpty(thumbDir)) {
-                    final String name = ModernMediaScanner.extractName(thumbFile);
+            if (ENABLE_PACKED_THUMBNAILS) {
+                for (Thumbnailer thumbnailer : new Thumbnailer[] {
+                        mAudioThumbnailer, mVideoThumbnailer, mImageThumbnailer,
+                }) {
+                    signal.throwIfCanceled();
                     try {
-                        final long id = Long.parseLong(name);
-                        if (Arrays.binarySearch(knownIdsRaw, id) >= 0) {
-                            // Thumbnail belongs to known media, keep it
-                            continue;
-                        }
-                    } catch (NumberFormatException e) {
+                        thumbnailer.prunePackedThumbnails(volumeName, knownIds::contains, signal);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to prune packed thumbnails on " + volumeName, e);
                     }
-
-                    Log.v(TAG, "Deleting stale thumbnail " + thumbFile);
-                    thumbFile.delete();
                 }
             }
         }
 
         // Also delete stale items from legacy tables
-        db.execSQL("delete from thumbnails "
-                + "where image_id not in (select _id from images)");
-        db.execSQL("delete from videothumbnails "
-                + "where video_id not in (select _id from video)");
+        pruneLegacyThumbnails(db, "thumbnails", "image_id",
+                queryKnownIds(db, "images", BaseColumns._ID, signal), signal);
+        pruneLegacyThumbnails(db, "videothumbnails", "video_id",
+                queryKnownIds(db, "video", BaseColumns._ID, signal), signal);
     }
 
+    /**
+     * Collect the given ID column of the given table, reading it in short
+     * transactions instead of holding a single read open over the whole
+     * table.
+     */
+    private static @NonNull IdBitmap queryKnownIds(@NonNull SQLiteDatabase db,
+            @NonNull String table, @NonNull String column, @NonNull CancellationSignal signal) {
+        final IdBitmap ids = new IdBitmap();
+        long lastId = -1;
+        while (true) {
+            int count = 0;
+            try (Cursor c = db.query(false, table, new String[] { column },
+                    column + ">" + lastId, null, null, null, column,
+                    String.valueOf(PRUNE_CHUNK), signal)) {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    if (lastId >= 0) {
+                        ids.add(lastId);
+                    }
+                    count++;
+                }
+            }
+            if (count < PRUNE_CHUNK) return ids;
+        }
+    }
+
+    /**
+     * Delete stale thumbnails from the given directory, streaming its entries
+     * instead of listing them all at once. When the deadline passes first,
+     * the last thumbnail kept is remembered, and the next pass resumes after
+     * it.
+     */
+    private void pruneThumbnailDirectory(@NonNull File thumbDir, @NonNull IdBitmap knownIds,
+            long deadline, @NonNull CancellationSignal signal) {
+        if (!thumbDir.isDirectory() || SystemClock.elapsedRealtime() > deadline) return;
+
+        final SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(getContext());
+        final String resumeKey = "prune_thumbnails_" + thumbDir.getAbsolutePath();
+        final String resumeName = prefs.getString(resumeKey, null);
+
+        boolean resumed = (resumeName == null);
+        String lastKept = resumeName;
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(
+                thumbDir.toPath())) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                if (!resumed) {
+                    resumed = name.equals(resumeName);
+                    continue;
+                }
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    Log.d(TAG, "Pausing pruning of " + thumbDir + " after " + lastKept);
+                    prefs.edit().putString(resumeKey, lastKept).apply();
+                    return;
+                }
+                signal.throwIfCanceled();
+
+                // Packed thumbnails are pruned separately
+                final File thumbFile = path.toFile();
+                if (thumbFile.isDirectory()) continue;
+
+                // Thumbnails being written right now are staged in temp files;
+                // only those left behind by a crash are stale
+                if (name.endsWith(".tmp") && System.currentTimeMillis()
+                        - thumbFile.lastModified() < PRUNE_TEMP_AGE_MS) {
+                    lastKept = name;
+                    continue;
+                }
+
+                final long id = Thumbnailer.parseThumbnailId(name);
+                if (id != -1 && knownIds.contains(id)) {
+                    // Thumbnail belongs to known media, keep it
+                    lastKept = name;
+                    continue;
+                }
+
+                Log.v(TAG, "Deleting stale thumbnail " + thumbFile);
+                thumbFile.delete();
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            Log.w(TAG, "Failed to prune " + thumbDir, e);
+            return;
+        }
+
+        // Either finished a complete pass, or the thumbnail we meant to resume
+        // after is gone; both mean starting from the top next time
+        if (!resumed) {
+            Log.d(TAG, "Lost position in " + thumbDir + "; restarting next pass");
+        }
+        if (resumeName != null) {
+            prefs.edit().remove(resumeKey).apply();
+        }
+    }
+
+    /**
+     * Delete rows of the given legacy thumbnail table whose item is no longer
+     * known, one chunk at a time.
+     */
+    private static void pruneLegacyThumbnails(@NonNull SQLiteDatabase db, @NonNull String table,
+            @NonNull String column, @NonNull IdBitmap knownIds,
+            @NonNull CancellationSignal signal) {
+        long lastId = -1;
+        int deleted = 0;
+        while (true) {
+            signal.throwIfCanceled();
+            final StringBuilder stale = new StringBuilder();
+            int count = 0;
+            try (Cursor c = db.query(false, table, new String[] { BaseColumns._ID, column },
+                    BaseColumns._ID + ">" + lastId, null, null, null, BaseColumns._ID,
+                    String.valueOf(PRUNE_CHUNK), signal)) {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    count++;
+                    if (!c.isNull(1) && !knownIds.contains(c.getLong(1))) {
+                        if (stale.length() > 0) stale.append(',');
+                        stale.append(lastId);
+                    }
+                }
+            }
+            if (stale.length() > 0) {
+                deleted += db.delete(table, BaseColumns._ID + " IN (" + stale + ")", null);
+            }
+            if (count < PRUNE_CHUNK) break;
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "Deleted " + deleted + " stale rows from " + table);
+        }
+    }
+
+    /**
+     * Generates and caches thumbnails of a specific media type. Each item can
+     * have a thumbnail cached at several levels of detail, so that requests
+     * are served by the smallest one that covers the requested size. Smaller
+     * levels are derived from the nearest larger level that's already cached
+     * instead of decoding the original media again.
+     * <p>
+     * When {@link #ENABLE_PACKED_THUMBNAILS}, thumbnails opened through
+     * {@link #openPackedThumbnail} are kept in a {@link ThumbnailStore} for
+     * each volume instead, while legacy callers that need a path still get
+     * individual files.
+     */
     static abstract class Thumbnailer {
+        /** Full thumbnail size, which keeps the legacy file name */
+        static final int LEVEL_LARGE = 0;
+        /** Half the full thumbnail size */
+        static final int LEVEL_MEDIUM = 1;
+        /** Quarter of the full thumbnail size, suitable for dense grids */
+        static final int LEVEL_SMALL = 2;
+
+        private static final String[] LEVEL_SUFFIXES = { "", "_m", "_s" };
+
         final String directoryName;
+        final ThumbnailService service;
+        final Supplier<Size> fullSize;
 
-        public Thumbnailer(String directoryName) {
+        /** Map from volume name to its packed store */
+        @GuardedBy("stores")
+        private final ArrayMap<String, ThumbnailStore> stores = new ArrayMap<>();
+
+        /** Thumbnails that could have been embedded, and those that were usable */
+        private final AtomicInteger embeddedAttempts = new AtomicInteger();
+        private final AtomicInteger embeddedHits = new AtomicInteger();
+
+        public Thumbnailer(String directoryName, ThumbnailService service,
+                Supplier<Size> fullSize) {
             this.directoryName = directoryName;
+            this.service = service;
+            this.fullSize = fullSize;
+        }
+
+        private ThumbnailStore getStore(String volumeName) throws IOException {
+            synchronized (stores) {
+                ThumbnailStore store = stores.get(volumeName);
+                if (store == null) {
+                    final File volumePath = getVolumePath(volumeName);
+                    store = ThumbnailStore.open(Environment.buildPath(volumePath, directoryName,
+                            ".thumbnails", "packed"));
+                    stores.put(volumeName, store);
+                }
+                return store;
+            }
         }
 
-        private File getThumbnailFile(Uri uri) throws IOException {
+        /**
+         * Close the packed store of the given volume, if open, so that it
+         * doesn't keep the volume busy once detached.
+         */
+        public void closeStore(String volumeName) {
+            final ThumbnailStore store;
+            synchronized (stores) {
+                store = stores.remove(volumeName);
+            }
+            if (store != null) {
+                store.close();
+            }
+        }
+
+        private File getThumbnailFile(Uri uri, int level) throws IOException {
             final String volumeName = resolveVolumeName(uri);
             final File volumePath = getVolumePath(volumeName);
-            return Environment.buildPath(volumePath, directoryName,
-                    ".thumbnails", ContentUris.parseId(uri) + ".jpg");
+            return Environment.buildPath(volumePath, directoryName, ".thumbnails",
+                    ContentUris.parseId(uri) + LEVEL_SUFFIXES[level] + ".jpg");
         }
 
-        public abstract Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal)
+        /**
+         * Return the ID of the item that the given thumbnail file name
+         * belongs to, at any level, or {@code -1} if unknown.
+         */
+        static long parseThumbnailId(String name) {
+            int end = 0;
+            while (end < name.length() && Character.isDigit(name.charAt(end))) {
+                end++;
+            }
+            if (end == 0 || end > 18) return -1;
+            final String rest = name.substring(end);
+            for (String suffix : LEVEL_SUFFIXES) {
+                if (rest.equals(suffix + ".jpg")) {
+                    return Long.parseLong(name.substring(0, end));
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the thumbnail embedded in the original media, if any.
+         */
+        interface EmbeddedReader {
+            @Nullable Bitmap read(File file, Size size) throws IOException;
+        }
+
+        /**
+         * Return the thumbnail embedded in the given media by the given
+         * reader, or {@code null} when none was usable, recording the
+         * attempt. Media that can't be read counts as a miss, so that
+         * callers fall back to decoding it in full.
+         */
+        @Nullable Bitmap getEmbedded(EmbeddedReader reader, File file, Size size) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = reader.read(file, size);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read embedded thumbnail of " + file + ": " + e);
+            }
+            embeddedAttempts.incrementAndGet();
+            if (bitmap != null) {
+                embeddedHits.incrementAndGet();
+            }
+            return bitmap;
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            final int attempts = embeddedAttempts.get();
+            final int hits = embeddedHits.get();
+            pw.print(directoryName + " embedded thumbnails: " + hits + "/" + attempts);
+            if (attempts > 0) {
+                pw.print(" (" + (hits * 100 / attempts) + "% hit rate)");
+            }
+            pw.println();
+        }
+
+        Size getLevelSize(int level) {
+            final Size size = fullSize.get();
+            return new Size(size.getWidth() >> level, size.getHeight() >> level);
+        }
+
+        /**
+         * Return the smallest level whose thumbnails cover the given size,
+         * or the largest level when no size is given.
+         */
+        int getLevel(@Nullable Point hint) {
+            if (hint == null) return LEVEL_LARGE;
+            for (int level = LEVEL_SMALL; level > LEVEL_LARGE; level--) {
+                final Size size = getLevelSize(level);
+                if (size.getWidth() >= hint.x && size.getHeight() >= hint.y) {
+                    return level;
+                }
+            }
+            return LEVEL_LARGE;
+        }
+
+        public abstract Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
                 throws IOException;
 
         public File ensureThumbnail(Uri uri, CancellationSignal signal) throws IOException {
-            final File thumbFile = getThumbnailFile(uri);
-            thumbFile.getParentFile().mkdirs();
-            if (!thumbFile.exists()) {
-                final Bitmap thumbnail = getThumbnailBitmap(uri, signal);
-                try (OutputStream out = new FileOutputStream(thumbFile)) {
-                    thumbnail.compress(Bitmap.CompressFormat.JPEG, 75, out);
+            return ensureThumbnail(uri, LEVEL_LARGE, PRIORITY_HIGH, signal);
+        }
+
+        public File ensureThumbnail(Uri uri, @Nullable Point hint, CancellationSignal signal)
+                throws IOException {
+            return ensureThumbnail(uri, getLevel(hint), PRIORITY_HIGH, signal);
+        }
+
+        public File ensureThumbnail(Uri uri, int level, int priority, CancellationSignal signal)
+                throws IOException {
+            return service.ensureThumbnail(getThumbnailFile(uri, level),
+                    (s) -> generateThumbnail(uri, level, s), priority, signal);
+        }
+
+        private Bitmap generateThumbnail(Uri uri, int level, CancellationSignal signal)
+                throws IOException {
+            final Size size = getLevelSize(level);
+            for (int i = level - 1; i >= LEVEL_LARGE; i--) {
+                final File larger = getThumbnailFile(uri, i);
+                if (larger.exists()) {
+                    try {
+                        return ThumbnailUtils.createImageThumbnail(larger, size, signal);
+                    } catch (IOException e) {
+                        // Probably invalidated underneath us, so keep looking
+                        Log.w(TAG, "Failed to derive thumbnail from " + larger + ": " + e);
+                    }
                 }
             }
-            return thumbFile;
+            return getThumbnailBitmap(uri, size, signal);
+        }
+
+        /**
+         * Prepare the thumbnail of the given item at the given level, in
+         * whichever form it's going to be requested.
+         */
+        public void prepareThumbnail(Uri uri, int level, int priority, CancellationSignal signal)
+                throws IOException {
+            if (ENABLE_PACKED_THUMBNAILS) {
+                ensurePackedThumbnail(uri, level, priority, signal);
+            } else {
+                ensureThumbnail(uri, level, priority, signal);
+            }
+        }
+
+        public void ensurePackedThumbnail(Uri uri, int level, int priority,
+                CancellationSignal signal) throws IOException {
+            final ThumbnailStore store = getStore(resolveVolumeName(uri));
+            final long id = ContentUris.parseId(uri);
+            service.ensureThumbnail(store.getTarget(id, level),
+                    (s) -> generatePackedThumbnail(uri, store, id, level, s), priority, signal);
+        }
+
+        /**
+         * Open the packed thumbnail of the given item that covers the given
+         * size, generating it when needed.
+         */
+        public AssetFileDescriptor openPackedThumbnail(Uri uri, @Nullable Point hint,
+                CancellationSignal signal) throws IOException {
+            final int level = getLevel(hint);
+            final ThumbnailStore store = getStore(resolveVolumeName(uri));
+            final long id = ContentUris.parseId(uri);
+            AssetFileDescriptor afd = store.open(id, level);
+            if (afd == null) {
+                ensurePackedThumbnail(uri, level, PRIORITY_HIGH, signal);
+                afd = store.open(id, level);
+            }
+            if (afd == null) {
+                throw new FileNotFoundException("Thumbnail invalidated for " + uri);
+            }
+            return afd;
+        }
+
+        /**
+         * Return the encoded thumbnail of the given item that covers the
+         * given size, generating it when needed.
+         */
+        public byte[] readThumbnail(Uri uri, @Nullable Point hint, CancellationSignal signal)
+                throws IOException {
+            if (ENABLE_PACKED_THUMBNAILS) {
+                final int level = getLevel(hint);
+                final ThumbnailStore store = getStore(resolveVolumeName(uri));
+                final long id = ContentUris.parseId(uri);
+                ensurePackedThumbnail(uri, level, PRIORITY_HIGH, signal);
+                final byte[] data = store.getBytes(id, level);
+                if (data == null) {
+                    throw new FileNotFoundException("Thumbnail invalidated for " + uri);
+                }
+                return data;
+            }
+
+            final File file = ensureThumbnail(uri, hint, signal);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                    openSafely(file, ParcelFileDescriptor.MODE_READ_ONLY))) {
+                FileUtils.copy(in, out);
+            }
+            return out.toByteArray();
+        }
+
+        private Bitmap generatePackedThumbnail(Uri uri, ThumbnailStore store, long id, int level,
+                CancellationSignal signal) throws IOException {
+            // Each level is exactly half the size of the previous one
+            for (int i = level - 1; i >= LEVEL_LARGE; i--) {
+                final byte[] larger = store.getBytes(id, i);
+                if (larger != null) {
+                    final BitmapFactory.Options opts = new BitmapFactory.Options();
+                    opts.inSampleSize = 1 << (level - i);
+                    final Bitmap bitmap = BitmapFactory.decodeByteArray(larger, 0,
+                            larger.length, opts);
+                    if (bitmap != null) return bitmap;
+                }
+            }
+            return getThumbnailBitmap(uri, getLevelSize(level), signal);
+        }
+
+        /**
+         * Remove packed thumbnails of items that aren't known, and then
+         * reclaim any space they occupied.
+         */
+        public void prunePackedThumbnails(String volumeName, LongPredicate knownIds,
+                CancellationSignal signal) throws IOException {
+            final ThumbnailStore store = getStore(volumeName);
+            final int removed = store.retainAll(knownIds);
+            Log.d(TAG, "Removed " + removed + " stale packed thumbnails from " + directoryName
+                    + " on " + volumeName);
+            store.compact(signal);
         }
 
         public void invalidateThumbnail(Uri uri) throws IOException {
-            getThumbnailFile(uri).delete();
+            for (int level = LEVEL_LARGE; level < LEVEL_SUFFIXES.length; level++) {
+                service.invalidateThumbnail(getThumbnailFile(uri, level));
+            }
+            if (ENABLE_PACKED_THUMBNAILS) {
+                final ThumbnailStore store = getStore(resolveVolumeName(uri));
+                final long id = ContentUris.parseId(uri);
+                for (int level = LEVEL_LARGE; level < LEVEL_SUFFIXES.length; level++) {
+                    service.invalidateThumbnail(store.getTarget(id, level));
+                }
+            }
         }
     }
 
-    private Thumbnailer mAudioThumbnailer = new Thumbnailer(Environment.DIRECTORY_MUSIC) {
+    private final ThumbnailService mThumbnailService = new ThumbnailService();
+
+    private Thumbnailer mAudioThumbnailer = new Thumbnailer(Environment.DIRECTORY_MUSIC,
+            mThumbnailService, () -> mThumbSize) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
             return ThumbnailUtils.createAudioThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+                    size, signal);
         }
     };
 
-    private Thumbnailer mVideoThumbnailer = new Thumbnailer(Environment.DIRECTORY_MOVIES) {
+    private Thumbnailer mVideoThumbnailer = new Thumbnailer(Environment.DIRECTORY_MOVIES,
+            mThumbnailService, () -> mThumbSize) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
-            return ThumbnailUtils.createVideoThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
+            final File file = queryForDataFile(uri, signal);
+            if (EmbeddedThumbnails.isIsoFile(file)) {
+                final Bitmap bitmap = getEmbedded(EmbeddedThumbnails::fromIso, file, size);
+                if (bitmap != null) return bitmap;
+            }
+            return ThumbnailUtils.createVideoThumbnail(file, size, signal);
         }
     };
 
-    private Thumbnailer mImageThumbnailer = new Thumbnailer(Environment.DIRECTORY_PICTURES) {
+    private Thumbnailer mImageThumbnailer = new Thumbnailer(Environment.DIRECTORY_PICTURES,
+            mThumbnailService, () -> mThumbSize) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
-            return ThumbnailUtils.createImageThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
+            final File file = queryForDataFile(uri, signal);
+            if (EmbeddedThumbnails.isExifFile(file)) {
+                final Bitmap bitmap = getEmbedded(EmbeddedThumbnails::fromExif, file, size);
+                if (bitmap != null) return bitmap;
+            }
+            return ThumbnailUtils.createImageThumbnail(file, size, signal);
         }
     };
 
+    /** Number of IDs named in each statement when invalidating in bulk */
+    private static final int INVALIDATE_CHUNK = 500;
+
+    /**
+     * Deletes thumbnail files of invalidated items in the background, in the
+     * order they were invalidated.
+     */
+    private final ThreadPoolExecutor mInvalidateExecutor = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            (r) -> new Thread(r, "ThumbnailInvalidate"));
+
     private void invalidateThumbnails(Uri uri) {
         Trace.traceBegin(TRACE_TAG_DATABASE, "invalidateThumbnails");
         try {
-            invalidateThumbnailsInternal(uri);
+            final LongArray ids = new LongArray();
+            ids.add(ContentUris.parseId(uri));
+            final List<File> legacyFiles = invalidateThumbnailRows(
+                    getVolumeName(uri), ids, uri);
+            invalidateThumbnailFiles(getVolumeName(uri), ids, legacyFiles);
         } finally {
             Trace.traceEnd(TRACE_TAG_DATABASE);
         }
     }
 
-    private void invalidateThumbnailsInternal(Uri uri) {
-        final long id = ContentUris.parseId(uri);
+    /**
+     * Invalidate the thumbnails of all given items on the given volume at
+     * once, such as after a bulk delete or update. Cached thumbnails and
+     * legacy rows are dropped right away, while files are deleted in the
+     * background. Access to legacy files is checked here, while the identity
+     * of the caller is still known.
+     */
+    @VisibleForTesting
+    void invalidateThumbnails(String volumeName, LongArray ids) {
+        if (ids.size() == 0) return;
+        Trace.traceBegin(TRACE_TAG_DATABASE, "invalidateThumbnails");
         try {
-            mAudioThumbnailer.invalidateThumbnail(uri);
-            mVideoThumbnailer.invalidateThumbnail(uri);
-            mImageThumbnailer.invalidateThumbnail(uri);
-        } catch (IOException ignored) {
+            final List<File> legacyFiles = invalidateThumbnailRows(volumeName, ids, null);
+            final LongArray copy = ids.clone();
+            mInvalidateExecutor.execute(() -> {
+                invalidateThumbnailFiles(volumeName, copy, legacyFiles);
+            });
+        } finally {
+            Trace.traceEnd(TRACE_TAG_DATABASE);
         }
+    }
 
-        final DatabaseHelper helper;
+    /**
+     * Evict the given items from the thumbnail cache, and delete their legacy
+     * thumbnail rows with one statement per chunk of items. Access to each
+     * legacy thumbnail file is checked against the given item {@link Uri}, or
+     * against the item in the Files collection when {@code null}.
+     *
+     * @return legacy thumbnail files that the caller may delete.
+     */
+    private List<File> invalidateThumbnailRows(String volumeName, LongArray ids,
+            @Nullable Uri uri) {
+        for (int i = 0; i < ids.size(); i++) {
+            mThumbnailCache.invalidate(Files.getContentUri(volumeName, ids.get(i)));
+        }
+
+        final ArrayList<File> legacyFiles = new ArrayList<>();
         final SQLiteDatabase db;
         try {
-            helper = getDatabaseForUri(uri);
-            db = helper.getWritableDatabase();
+            db = getDatabaseForUri(Files.getContentUri(volumeName)).getWritableDatabase();
         } catch (VolumeNotFoundException e) {
             Log.w(TAG, e);
-            return;
+            return legacyFiles;
         }
 
-        final String idString = Long.toString(id);
-        try (Cursor c = db.rawQuery("select _data from thumbnails where image_id=?"
-                + " union all select _data from videothumbnails where video_id=?",
-                new String[] { idString, idString })) {
-            while (c.moveToNext()) {
-                String path = c.getString(0);
-                deleteIfAllowed(uri, path);
+        for (int start = 0; start < ids.size(); start += INVALIDATE_CHUNK) {
+            final StringBuilder idList = new StringBuilder();
+            for (int i = start; i < Math.min(start + INVALIDATE_CHUNK, ids.size()); i++) {
+                if (idList.length() > 0) idList.append(',');
+                idList.append(ids.get(i));
+            }
+            try (Cursor c = db.rawQuery("select image_id, _data from thumbnails"
+                    + " where image_id in (" + idList + ") union all"
+                    + " select video_id, _data from videothumbnails"
+                    + " where video_id in (" + idList + ")", null)) {
+                while (c.moveToNext()) {
+                    final Uri itemUri = (uri != null) ? uri
+                            : Files.getContentUri(volumeName, c.getLong(0));
+                    final String path = c.getString(1);
+                    try {
+                        final File file = new File(path);
+                        checkAccess(itemUri, file, true);
+                        legacyFiles.add(file);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Couldn't delete " + path, e);
+                    }
+                }
             }
+            db.execSQL("delete from thumbnails where image_id in (" + idList + ")");
+            db.execSQL("delete from videothumbnails where video_id in (" + idList + ")");
         }
+        return legacyFiles;
+    }
+
+    /**
+     * Delete the thumbnail files of the given items, along with the given
+     * legacy thumbnail files, which were already checked for access.
+     */
+    private void invalidateThumbnailFiles(String volumeName, LongArray ids,
+            List<File> legacyFiles) {
+        for (int i = 0; i < ids.size(); i++) {
+            final Uri uri = Files.getContentUri(volumeName, ids.get(i));
+            try {
+                mAudioThumbnailer.invalidateThumbnail(uri);
+                mVideoThumbnailer.invalidateThumbnail(uri);
+                mImageThumbnailer.invalidateThumbnail(uri);
+            } catch (IOException ignored) {
+            }
 
-        db.execSQL("delete from thumbnails where image_id=?", new String[] { idString });
-        db.execSQL("delete from videothumbnails where video_id=?", new String[] { idString });
+            // Drop anything that was cached again while the old files were
+            // still around
+            mThumbnailCache.invalidate(uri);
+        }
+        for (File file : legacyFiles) {
+            file.delete();
+        }
     }
 
     @Override
@@ -4588,6 +5386,7 @@ public class MediaProvider extends ContentProvider {
                 // Remote callers have no direct control over owner column; we
                 // force it be whoever is creating the content.
                 initialValues.remove(MediaColumns.OWNER_PACKAGE_NAME);
+                initialValues.remove(RedactionInfo.COLUMN_REDACTION_INFO);
 
                 // We default to filtering mutable columns, except when we know
                 // the single item being updated is pending; when it's finally
@@ -4822,6 +5621,8 @@ public class MediaProvider extends ContentProvider {
                     synchronized (mDirectoryCache) {
                         mDirectoryCache.remove(oldPath);
                     }
+                    HiddenDirectoryCache.invalidatePath(new File(oldPath));
+                    HiddenDirectoryCache.invalidatePath(f);
                     final boolean wasDownload = isDownload(oldPath);
                     // first rename the row for the directory
                     count = qb.update(db, initialValues, userWhere, userWhereArgs);
@@ -4855,6 +5656,7 @@ public class MediaProvider extends ContentProvider {
                     return count;
                 }
             } else if (newPath.toLowerCase(Locale.US).endsWith("/.nomedia")) {
+                HiddenDirectoryCache.invalidatePath(new File(newPath).getParentFile());
                 MediaScanner.instance(getContext()).scanFile(new File(newPath).getParentFile());
             }
         }
@@ -5043,17 +5845,16 @@ public class MediaProvider extends ContentProvider {
             Trace.traceBegin(TRACE_TAG_DATABASE, "invalidate");
             final LocalCallingIdentity token = clearLocalCallingIdentity();
             try {
+                invalidateThumbnails(volumeName, updatedIds);
                 for (int i = 0; i < updatedIds.size(); i++) {
                     final long updatedId = updatedIds.get(i);
                     final Uri updatedUri = Files.getContentUri(volumeName, updatedId);
-                    BackgroundThread.getExecutor().execute(() -> {
-                        invalidateThumbnails(updatedUri);
-                    });
 
                     if (triggerScan) {
                         try (Cursor c = queryForSingleItem(updatedUri,
                                 new String[] { FileColumns.DATA }, null, null, null)) {
-                            MediaScanner.instance(getContext()).scanFile(new File(c.getString(0)));
+                            ScanScheduler.getInstance(getContext())
+                                    .scanFile(new File(c.getString(0)), PRIORITY_HIGH);
                         } catch (Exception e) {
                             Log.w(TAG, "Failed to update metadata for " + updatedUri, e);
                         }
@@ -5221,7 +6022,34 @@ public class MediaProvider extends ContentProvider {
         final boolean wantsThumb = (opts != null) && opts.containsKey(ContentResolver.EXTRA_SIZE)
                 && (mimeTypeFilter != null) && mimeTypeFilter.startsWith("image/");
         if (wantsThumb) {
-            final File thumbFile = ensureThumbnail(uri, signal);
+            final Point size = opts.getParcelable(ContentResolver.EXTRA_SIZE);
+
+            // Serve recently opened thumbnails of media items from memory,
+            // keeping them there after reading them from storage
+            final ThumbnailCache.Key key = ThumbnailCache.Key.forUri(uri,
+                    mImageThumbnailer.getLevel(size));
+            if (key != null) {
+                final long generation = mThumbnailCache.getGeneration();
+                try {
+                    final AssetFileDescriptor cached = mThumbnailCache.open(key);
+                    if (cached != null) return cached;
+
+                    final byte[] data = withThumbnailer(uri, signal,
+                            (thumbnailer, targetUri) -> thumbnailer.readThumbnail(
+                                    targetUri, size, signal));
+                    mThumbnailCache.put(key, data, generation);
+                    return ThumbnailCache.openReadOnly(ByteBuffer.wrap(data));
+                } catch (IOException e) {
+                    throw new FileNotFoundException(e.getMessage());
+                }
+            }
+
+            if (ENABLE_PACKED_THUMBNAILS) {
+                return withThumbnailer(uri, signal,
+                        (thumbnailer, targetUri) -> thumbnailer.openPackedThumbnail(
+                                targetUri, size, signal));
+            }
+            final File thumbFile = ensureThumbnail(uri, size, signal);
             return new AssetFileDescriptor(
                     openSafely(thumbFile, ParcelFileDescriptor.MODE_READ_ONLY),
                     0, AssetFileDescriptor.UNKNOWN_LENGTH);
@@ -5233,13 +6061,35 @@ public class MediaProvider extends ContentProvider {
     }
 
     private File ensureThumbnail(Uri uri, CancellationSignal signal) throws FileNotFoundException {
+        return ensureThumbnail(uri, null, signal);
+    }
+
+    /**
+     * Return a thumbnail of the given item covering the given size, or the
+     * full thumbnail size when no size is given.
+     */
+    private File ensureThumbnail(Uri uri, @Nullable Point size, CancellationSignal signal)
+            throws FileNotFoundException {
+        return withThumbnailer(uri, signal,
+                (thumbnailer, targetUri) -> thumbnailer.ensureThumbnail(targetUri, size, signal));
+    }
+
+    private interface ThumbnailAction<T> {
+        T apply(Thumbnailer thumbnailer, Uri targetUri) throws IOException;
+    }
+
+    /**
+     * Apply the given action to the {@link Thumbnailer} and item that provide
+     * the thumbnail of the given item or album.
+     */
+    private <T> T withThumbnailer(Uri uri, CancellationSignal signal, ThumbnailAction<T> action)
+            throws FileNotFoundException {
         final boolean allowHidden = isCallingPackageAllowedHidden();
         final int match = matchUri(uri, allowHidden);
 
         Trace.traceBegin(TRACE_TAG_DATABASE, "ensureThumbnail");
         final LocalCallingIdentity token = clearLocalCallingIdentity();
         try {
-            final File thumbFile;
             switch (match) {
                 case AUDIO_ALBUMS_ID: {
                     final String volumeName = MediaStore.getVolumeName(uri);
@@ -5250,18 +6100,18 @@ public class MediaProvider extends ContentProvider {
                         if (c.moveToFirst()) {
                             final long audioId = c.getLong(0);
                             final Uri targetUri = ContentUris.withAppendedId(baseUri, audioId);
-                            return mAudioThumbnailer.ensureThumbnail(targetUri, signal);
+                            return action.apply(mAudioThumbnailer, targetUri);
                         } else {
                             throw new FileNotFoundException("No media for album " + uri);
                         }
                     }
                 }
                 case AUDIO_MEDIA_ID:
-                    return mAudioThumbnailer.ensureThumbnail(uri, signal);
+                    return action.apply(mAudioThumbnailer, uri);
                 case VIDEO_MEDIA_ID:
-                    return mVideoThumbnailer.ensureThumbnail(uri, signal);
+                    return action.apply(mVideoThumbnailer, uri);
                 case IMAGES_MEDIA_ID:
-                    return mImageThumbnailer.ensureThumbnail(uri, signal);
+                    return action.apply(mImageThumbnailer, uri);
                 default:
                     throw new FileNotFoundException();
             }
@@ -5274,6 +6124,30 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Generate the thumbnail of the given image or video item ahead of it
+     * being requested, leaving any existing thumbnail untouched. Other items
+     * are ignored.
+     */
+    public void pregenerateThumbnail(@NonNull Uri uri, @Nullable CancellationSignal signal)
+            throws IOException {
+        Trace.traceBegin(TRACE_TAG_DATABASE, "pregenerateThumbnail");
+        try {
+            switch (matchUri(uri, true)) {
+                case VIDEO_MEDIA_ID:
+                    mVideoThumbnailer.prepareThumbnail(uri, Thumbnailer.LEVEL_LARGE, PRIORITY_LOW,
+                            signal);
+                    break;
+                case IMAGES_MEDIA_ID:
+                    mImageThumbnailer.prepareThumbnail(uri, Thumbnailer.LEVEL_LARGE, PRIORITY_LOW,
+                            signal);
+                    break;
+            }
+        } finally {
+            Trace.traceEnd(TRACE_TAG_DATABASE);
+        }
+    }
+
     /**
      * Update the metadata columns for the image residing at given {@link Uri}
      * by reading data from the underlying image.
@@ -5388,6 +6262,12 @@ public class MediaProvider extends ContentProvider {
 
         checkAccess(uri, file, forWrite);
 
+        // Writers may change the file without changing its size or last
+        // modified time, so don't trust anything parsed from it before
+        if (forWrite) {
+            ContainerIndexCache.invalidate(file);
+        }
+
         // Require ownership if item is still pending
         final boolean hasOwner = (ownerPackageName != null);
         final boolean callerIsOwner = Objects.equals(getCallingPackageOrSelf(), ownerPackageName);
@@ -5398,8 +6278,8 @@ public class MediaProvider extends ContentProvider {
 
         // Figure out if we need to redact contents
         final boolean redactionNeeded = callerIsOwner ? false : isRedactionNeeded(uri);
-        final RedactionInfo redactionInfo = redactionNeeded ? getRedactionRanges(file)
-                : new RedactionInfo(EmptyArray.LONG, EmptyArray.LONG);
+        final RedactionInfo redactionInfo = redactionNeeded ? getRedactionRanges(uri, file)
+                : RedactionInfo.EMPTY;
 
         // Yell if caller requires original, since we can't give it to them
         // unless they have access granted above
@@ -5414,6 +6294,7 @@ public class MediaProvider extends ContentProvider {
             // We always update metadata to reflect the state on disk, even when
             // the remote writer tried claiming an exception
             invalidateThumbnails(uri);
+            ContainerIndexCache.invalidate(file);
 
             try {
                 switch (match) {
@@ -5424,7 +6305,11 @@ public class MediaProvider extends ContentProvider {
                         update(uri, values, null, null);
                         break;
                     default:
-                        MediaScanner.instance(getContext()).scanFile(file);
+                        // Freshly written content, typically from the camera,
+                        // jumps ahead of any other pending scans; this runs on
+                        // a shared thread, so never wait for the scan itself
+                        ScanScheduler.getInstance(getContext())
+                                .requestScanFile(file, PRIORITY_CRITICAL);
                         break;
                 }
             } catch (Exception e2) {
@@ -5549,98 +6434,59 @@ public class MediaProvider extends ContentProvider {
         return mCallingIdentity.get().hasPermission(PERMISSION_IS_REDACTION_NEEDED);
     }
 
-    /**
-     * Set of Exif tags that should be considered for redaction.
-     */
-    private static final String[] REDACTED_EXIF_TAGS = new String[] {
-            ExifInterface.TAG_GPS_ALTITUDE,
-            ExifInterface.TAG_GPS_ALTITUDE_REF,
-            ExifInterface.TAG_GPS_AREA_INFORMATION,
-            ExifInterface.TAG_GPS_DOP,
-            ExifInterface.TAG_GPS_DATESTAMP,
-            ExifInterface.TAG_GPS_DEST_BEARING,
-            ExifInterface.TAG_GPS_DEST_BEARING_REF,
-            ExifInterface.TAG_GPS_DEST_DISTANCE,
-            ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
-            ExifInterface.TAG_GPS_DEST_LATITUDE,
-            ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
-            ExifInterface.TAG_GPS_DEST_LONGITUDE,
-            ExifInterface.TAG_GPS_DEST_LONGITUDE_REF,
-            ExifInterface.TAG_GPS_DIFFERENTIAL,
-            ExifInterface.TAG_GPS_IMG_DIRECTION,
-            ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
-            ExifInterface.TAG_GPS_LATITUDE,
-            ExifInterface.TAG_GPS_LATITUDE_REF,
-            ExifInterface.TAG_GPS_LONGITUDE,
-            ExifInterface.TAG_GPS_LONGITUDE_REF,
-            ExifInterface.TAG_GPS_MAP_DATUM,
-            ExifInterface.TAG_GPS_MEASURE_MODE,
-            ExifInterface.TAG_GPS_PROCESSING_METHOD,
-            ExifInterface.TAG_GPS_SATELLITES,
-            ExifInterface.TAG_GPS_SPEED,
-            ExifInterface.TAG_GPS_SPEED_REF,
-            ExifInterface.TAG_GPS_STATUS,
-            ExifInterface.TAG_GPS_TIMESTAMP,
-            ExifInterface.TAG_GPS_TRACK,
-            ExifInterface.TAG_GPS_TRACK_REF,
-            ExifInterface.TAG_GPS_VERSION_ID,
-    };
-
-    /**
-     * Set of ISO boxes that should be considered for redaction.
-     */
-    private static final int[] REDACTED_ISO_BOXES = new int[] {
-            IsoInterface.BOX_LOCI,
-            IsoInterface.BOX_XYZ,
-            IsoInterface.BOX_GPS,
-            IsoInterface.BOX_GPS0,
-    };
+    private RedactionInfo getRedactionRanges(Uri uri, File file) {
+        // Capture what we're about to parse before parsing it
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        final RedactionInfo cached = ContainerIndexCache.getRedactionInfo(file, size,
+                lastModified);
+        if (cached != null) {
+            return cached;
+        }
 
-    private static final class RedactionInfo {
-        public final long[] redactionRanges;
-        public final long[] freeOffsets;
-        public RedactionInfo(long[] redactionRanges, long[] freeOffsets) {
-            this.redactionRanges = redactionRanges;
-            this.freeOffsets = freeOffsets;
+        // Prefer what the scanner recorded, as long as the file hasn't changed
+        final RedactionInfo scanned = queryRedactionInfo(uri, file, size, lastModified);
+        if (scanned != null) {
+            ContainerIndexCache.putRedactionInfo(file, size, lastModified, scanned);
+            return scanned;
         }
-    }
 
-    private RedactionInfo getRedactionRanges(File file) {
         Trace.traceBegin(TRACE_TAG_DATABASE, "getRedactionRanges");
-        final LongArray res = new LongArray();
-        final LongArray freeOffsets = new LongArray();
-        try (FileInputStream is = new FileInputStream(file)) {
-            final ExifInterface exif = new ExifInterface(is.getFD());
-            for (String tag : REDACTED_EXIF_TAGS) {
-                final long[] range = exif.getAttributeRange(tag);
-                if (range != null) {
-                    res.add(range[0]);
-                    res.add(range[0] + range[1]);
-                }
-            }
-
-            final IsoInterface iso = IsoInterface.fromFileDescriptor(is.getFD());
-            for (int box : REDACTED_ISO_BOXES) {
-                final long[] ranges = iso.getBoxRanges(box);
-                for (int i = 0; i < ranges.length; i += 2) {
-                    long boxTypeOffset = ranges[i] - 4;
-                    freeOffsets.add(boxTypeOffset);
-                    res.add(boxTypeOffset);
-                    res.add(ranges[i + 1]);
-                }
-            }
-
-            // Redact xmp where present
-            final Set<String> redactedXmpTags = new ArraySet<>(Arrays.asList(REDACTED_EXIF_TAGS));
-            final XmpInterface exifXmp = XmpInterface.fromContainer(exif, redactedXmpTags);
-            res.addAll(exifXmp.getRedactionRanges());
-            final XmpInterface isoXmp = XmpInterface.fromContainer(iso, redactedXmpTags);
-            res.addAll(isoXmp.getRedactionRanges());
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final RedactionInfo info = RedactionInfo.fromSource(source);
+            ContainerIndexCache.putRedactionInfo(file, size, lastModified, info);
+            return info;
         } catch (IOException e) {
             Log.w(TAG, "Failed to redact " + file + ": " + e);
+            return RedactionInfo.EMPTY;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_DATABASE);
         }
-        Trace.traceEnd(TRACE_TAG_DATABASE);
-        return new RedactionInfo(res.toArray(), freeOffsets.toArray());
+    }
+
+    /**
+     * Return the redaction ranges recorded by the scanner for the given file,
+     * or {@code null} if none were recorded or the file has changed since.
+     */
+    private @Nullable RedactionInfo queryRedactionInfo(Uri uri, File file, long size,
+            long lastModified) {
+        final DatabaseHelper helper;
+        try {
+            helper = getDatabaseForUri(uri);
+        } catch (VolumeNotFoundException e) {
+            return null;
+        }
+        final SQLiteDatabase db = helper.getReadableDatabase();
+        try (Cursor c = db.query("files", new String[] {
+                FileColumns.SIZE, FileColumns.DATE_MODIFIED, RedactionInfo.COLUMN_REDACTION_INFO
+        }, FileColumns.DATA + "=?", new String[] { file.getAbsolutePath() },
+                null, null, null)) {
+            if (c.moveToFirst() && c.getLong(0) == size
+                    && c.getLong(1) == lastModified / 1000) {
+                return RedactionInfo.decode(c.getBlob(2), size, lastModified);
+            }
+        }
+        return null;
     }
 
     private boolean checkCallingPermissionGlobal(Uri uri, boolean forWrite) {
@@ -6142,10 +6988,42 @@ public class MediaProvider extends ContentProvider {
         if (!MediaStore.VOLUME_INTERNAL.equals(volume)) {
             final DatabaseHelper helper = mInternalDatabase;
             ensureDefaultFolders(volume, helper, helper.getWritableDatabase());
+            startWatching(volume);
         }
         return uri;
     }
 
+    private void startWatching(String volume) {
+        if (!VolumeWatcher.ENABLE_WATCHER) return;
+
+        final Collection<File> roots;
+        synchronized (sCacheLock) {
+            roots = sCachedVolumeScanPaths.get(volume);
+        }
+        if (roots == null) {
+            Log.w(TAG, "Unable to watch volume " + volume + " without scan paths");
+            return;
+        }
+
+        synchronized (mWatchers) {
+            if (!mWatchers.containsKey(volume)) {
+                final VolumeWatcher watcher = new VolumeWatcher(getContext(), volume,
+                        new ArrayList<>(roots));
+                mWatchers.put(volume, watcher);
+                watcher.start();
+            }
+        }
+    }
+
+    private void stopWatching(String volume) {
+        synchronized (mWatchers) {
+            final VolumeWatcher watcher = mWatchers.remove(volume);
+            if (watcher != null) {
+                watcher.stop();
+            }
+        }
+    }
+
     private void detachVolume(Uri uri) {
         detachVolume(MediaStore.getVolumeName(uri));
     }
@@ -6165,7 +7043,11 @@ public class MediaProvider extends ContentProvider {
         }
 
         // Signal any scanning to shut down
+        stopWatching(volume);
         MediaScanner.instance(getContext()).onDetachVolume(volume);
+        mAudioThumbnailer.closeStore(volume);
+        mVideoThumbnailer.closeStore(volume);
+        mImageThumbnailer.closeStore(volume);
 
         synchronized (mAttachedVolumeNames) {
             mAttachedVolumeNames.remove(volume);
@@ -6203,6 +7085,13 @@ public class MediaProvider extends ContentProvider {
     @GuardedBy("mAttachedVolumeNames")
     private final ArraySet<String> mAttachedVolumeNames = new ArraySet<>();
 
+    /**
+     * Map from volume name to watcher that indexes changes on that volume as
+     * they happen.
+     */
+    @GuardedBy("mWatchers")
+    private final ArrayMap<String, VolumeWatcher> mWatchers = new ArrayMap<>();
+
     private DatabaseHelper mInternalDatabase;
     private DatabaseHelper mExternalDatabase;
 
@@ -6627,6 +7516,9 @@ public class MediaProvider extends ContentProvider {
         pw.println();
         pw.printPair("mAttachedVolumeNames", mAttachedVolumeNames);
         pw.println();
+        mImageThumbnailer.dump(pw);
+        mVideoThumbnailer.dump(pw);
+        ContainerIndexCache.dump(pw);
 
         pw.println(dump(mInternalDatabase, true));
         pw.println(dump(mExternalDatabase, true));
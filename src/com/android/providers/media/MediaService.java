@@ -21,7 +21,10 @@ import static android.media.RingtoneManager.TYPE_NOTIFICATION;
 import static android.media.RingtoneManager.TYPE_RINGTONE;
 
 import static com.android.providers.media.MediaProvider.TAG;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_HIGH;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_NORMAL;
 
+import android.annotation.Nullable;
 import android.app.IntentService;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
@@ -32,6 +35,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.PowerManager;
 import android.os.SystemProperties;
@@ -85,11 +89,20 @@ public class MediaService extends IntentService {
                     break;
                 }
                 case Intent.ACTION_MEDIA_MOUNTED: {
-                    onScanVolume(this, intent.getData());
+                    // Scans are scheduled by priority instead of running
+                    // serially behind every other intent, but we wait for it
+                    // so the service stays started until the scan finishes
+                    final Context context = getApplicationContext();
+                    final Uri uri = intent.getData();
+                    ScanScheduler.getInstance(context).execute(() -> {
+                        onScanVolume(context, uri);
+                        return null;
+                    }, PRIORITY_NORMAL, null);
                     break;
                 }
                 case Intent.ACTION_MEDIA_SCANNER_SCAN_FILE: {
-                    onScanFile(this, intent.getData());
+                    final File file = new File(intent.getData().getPath());
+                    ScanScheduler.getInstance(this).requestScanFile(file, PRIORITY_HIGH);
                     break;
                 }
                 default: {
@@ -123,6 +136,16 @@ public class MediaService extends IntentService {
     }
 
     public static void onScanVolume(Context context, Uri uri) throws IOException {
+        onScanVolume(context, uri, null);
+    }
+
+    /**
+     * Scan the given volume, stopping between directories or as soon as the
+     * active scan notices when the given signal is canceled. An interrupted
+     * scan resumes from its last checkpoint the next time it runs.
+     */
+    public static void onScanVolume(Context context, Uri uri,
+            @Nullable CancellationSignal signal) throws IOException {
         final File file = new File(uri.getPath()).getCanonicalFile();
         final String volumeName = MediaStore.getVolumeName(file);
 
@@ -130,7 +153,7 @@ public class MediaService extends IntentService {
         // to ensure that we have ringtones ready to roll before a possibly very
         // long external storage scan
         if (MediaStore.VOLUME_EXTERNAL_PRIMARY.equals(volumeName)) {
-            onScanVolume(context, Uri.fromFile(Environment.getRootDirectory()));
+            onScanVolume(context, Uri.fromFile(Environment.getRootDirectory()), signal);
             ensureDefaultRingtones(context);
         }
 
@@ -149,7 +172,10 @@ public class MediaService extends IntentService {
             }
 
             for (File dir : resolveDirectories(volumeName)) {
-                MediaScanner.instance(context).scanDirectory(dir);
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                MediaScanner.instance(context).scanDirectory(dir, signal);
             }
 
             resolver.delete(scanUri, null, null);
@@ -162,8 +188,8 @@ public class MediaService extends IntentService {
     }
 
     public static Uri onScanFile(Context context, Uri uri) throws IOException {
-        final File file = new File(uri.getPath()).getCanonicalFile();
-        return MediaScanner.instance(context).scanFile(file);
+        final File file = new File(uri.getPath());
+        return ScanScheduler.getInstance(context).scanFile(file, PRIORITY_HIGH);
     }
 
     private static Collection<File> resolveDirectories(String volumeName)
@@ -23,10 +23,10 @@ import java.util.concurrent.FutureTask;
 
 public class PrioritizedFutureTask<T> extends FutureTask<T>
         implements Comparable<PrioritizedFutureTask<T>> {
-    static final int PRIORITY_LOW = 20;
-    static final int PRIORITY_NORMAL = 10;
-    static final int PRIORITY_HIGH = 5;
-    static final int PRIORITY_CRITICAL = 0;
+    public static final int PRIORITY_LOW = 20;
+    public static final int PRIORITY_NORMAL = 10;
+    public static final int PRIORITY_HIGH = 5;
+    public static final int PRIORITY_CRITICAL = 0;
 
     final long requestTime;
     final int priority;
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.media.scan.MediaScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs all media scan requests on a single worker thread in priority order,
+ * so that a single file written by the camera or requested by an app doesn't
+ * wait behind a long volume scan.
+ * <p>
+ * Long-running scans cooperate by calling {@link #yieldIfNeeded()} between
+ * directories, which runs any more urgent requests inline before continuing.
+ * <p>
+ * Requests to scan a single file are coalesced by canonical path: a request
+ * for a file that is already waiting to be scanned joins that scan, raising
+ * its priority when needed, and a request for a file that is currently being
+ * scanned is debounced, so that a burst of writes to the same file results in
+ * a single extra scan.
+ */
+public class ScanScheduler {
+    private static final String TAG = "ScanScheduler";
+    private static final boolean LOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    /** Interval at which waiting callers check their {@link CancellationSignal} */
+    private static final long WAIT_POLL_MS = 500;
+
+    /** Quiet period required before rescanning a file that was just scanned */
+    @VisibleForTesting
+    static final long DEBOUNCE_MS = 250;
+    /** Upper bound on how long a continuously written file can be deferred */
+    private static final long DEBOUNCE_MAX_MS = 2_000;
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock")
+    private static ScanScheduler sInstance;
+
+    /** Scheduler whose worker is the current thread, if any */
+    private static final ThreadLocal<ScanScheduler> sCurrent = new ThreadLocal<>();
+
+    private final MediaScanner mScanner;
+    private final PowerManager.WakeLock mWakeLock;
+    private final PriorityBlockingQueue<PrioritizedFutureTask<?>> mQueue =
+            new PriorityBlockingQueue<>();
+    private final Thread mThread;
+
+    /**
+     * Thread that holds back debounced scans; kept apart from any shared
+     * thread, since callers on those may be waiting for the very scans that
+     * it would queue.
+     */
+    private final HandlerThread mDebounceThread;
+    private final Handler mDebounceHandler;
+
+    private volatile boolean mQuit;
+
+    /** Priority of the task currently running; only touched by {@link #mThread} */
+    private int mCurrentPriority = Integer.MAX_VALUE;
+
+    /** Map from canonical path to the scan that hasn't started yet */
+    @GuardedBy("mPendingScans")
+    private final ArrayMap<String, PendingScan> mPendingScans = new ArrayMap<>();
+    /** Canonical paths currently being scanned */
+    @GuardedBy("mPendingScans")
+    private final ArraySet<String> mRunningScans = new ArraySet<>();
+
+    private static class PendingScan {
+        final File file;
+        final CompletableFuture<Uri> result = new CompletableFuture<>();
+        final long firstRequestTime = SystemClock.elapsedRealtime();
+
+        /** Task in the queue, or {@code null} while being debounced */
+        @GuardedBy("mPendingScans")
+        PrioritizedFutureTask<Void> task;
+        @GuardedBy("mPendingScans")
+        int priority;
+
+        PendingScan(File file, int priority) {
+            this.file = file;
+            this.priority = priority;
+        }
+    }
+
+    public static @NonNull ScanScheduler getInstance(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new ScanScheduler(appContext, MediaScanner.instance(appContext));
+            }
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    public ScanScheduler(@NonNull Context context, @NonNull MediaScanner scanner) {
+        mScanner = scanner;
+        mWakeLock = context.getSystemService(PowerManager.class).newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mDebounceThread = new HandlerThread(TAG + "-debounce");
+        mDebounceThread.start();
+        mDebounceHandler = new Handler(mDebounceThread.getLooper());
+        mThread = new Thread(this::loop, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop running queued work once the current task has finished.
+     */
+    @VisibleForTesting
+    public void quit() {
+        mQuit = true;
+        mThread.interrupt();
+        mDebounceThread.quit();
+    }
+
+    private void loop() {
+        sCurrent.set(this);
+        while (!mQuit) {
+            try {
+                runTask(mQueue.take());
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        PrioritizedFutureTask<?> task;
+        while ((task = mQueue.poll()) != null) {
+            task.cancel(false);
+            mWakeLock.release();
+        }
+    }
+
+    private void runTask(@NonNull PrioritizedFutureTask<?> task) {
+        final int previousPriority = mCurrentPriority;
+        mCurrentPriority = task.priority;
+        try {
+            task.run();
+        } finally {
+            mCurrentPriority = previousPriority;
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Queue the given work at the given priority, holding a wakelock until it
+     * has finished running.
+     */
+    public @NonNull <T> PrioritizedFutureTask<T> submit(@NonNull Callable<T> callable,
+            int priority) {
+        final PrioritizedFutureTask<T> task = new PrioritizedFutureTask<>(callable, priority);
+        queue(task);
+        return task;
+    }
+
+    private void queue(@NonNull PrioritizedFutureTask<?> task) {
+        mWakeLock.acquire();
+        mQueue.add(task);
+    }
+
+    /**
+     * Request a scan of the given file at the given priority, joining any
+     * equivalent request that hasn't started yet. This never blocks, so it's
+     * safe to call from any thread.
+     */
+    public @NonNull Future<Uri> requestScanFile(@NonNull File file, int priority)
+            throws IOException {
+        final File canonicalFile = file.getCanonicalFile();
+        final String path = canonicalFile.getPath();
+        synchronized (mPendingScans) {
+            final PendingScan existing = mPendingScans.get(path);
+            if (existing != null) {
+                if (LOGV) Log.v(TAG, "Joining pending scan of " + path);
+                if (existing.task == null) {
+                    existing.priority = Math.min(existing.priority, priority);
+                    scheduleQueue(existing);
+                } else if (priority < existing.priority && mQueue.remove(existing.task)) {
+                    if (LOGV) Log.v(TAG, "Raising priority of " + path + " to " + priority);
+                    mWakeLock.release();
+                    existing.priority = priority;
+                    queue(existing);
+                }
+                return existing.result;
+            }
+
+            final PendingScan scan = new PendingScan(canonicalFile, priority);
+            mPendingScans.put(path, scan);
+
+            // Repeated writes to a file that is being scanned right now are
+            // collected until they settle down
+            if (mRunningScans.contains(path)) {
+                if (LOGV) Log.v(TAG, "Debouncing scan of " + path);
+                scheduleQueue(scan);
+            } else {
+                queue(scan);
+            }
+            return scan.result;
+        }
+    }
+
+    @GuardedBy("mPendingScans")
+    private void scheduleQueue(@NonNull PendingScan scan) {
+        final long delay = Math.min(DEBOUNCE_MS,
+                scan.firstRequestTime + DEBOUNCE_MAX_MS - SystemClock.elapsedRealtime());
+        mDebounceHandler.removeCallbacksAndMessages(scan);
+        mDebounceHandler.postDelayed(() -> {
+            synchronized (mPendingScans) {
+                if (scan.task == null) {
+                    queue(scan);
+                }
+            }
+        }, scan, Math.max(delay, 0));
+    }
+
+    @GuardedBy("mPendingScans")
+    private void queue(@NonNull PendingScan scan) {
+        scan.task = new PrioritizedFutureTask<>(() -> {
+            runScan(scan);
+            return null;
+        }, scan.priority);
+        queue(scan.task);
+    }
+
+    private void runScan(@NonNull PendingScan scan) {
+        final String path = scan.file.getPath();
+        synchronized (mPendingScans) {
+            if (mPendingScans.get(path) != scan) return;
+            mPendingScans.remove(path);
+            mRunningScans.add(path);
+        }
+        try {
+            scan.result.complete(mScanner.scanFile(scan.file));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to scan " + path, e);
+            scan.result.completeExceptionally(e);
+        } finally {
+            synchronized (mPendingScans) {
+                mRunningScans.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Scan the given file at the given priority, coalescing with any other
+     * pending requests for the same file, and wait for the resulting
+     * {@link Uri}. Callers that can't block, such as those on shared
+     * threads, should use {@link #requestScanFile} instead.
+     */
+    public @Nullable Uri scanFile(@NonNull File file, int priority) throws IOException {
+        if (Thread.currentThread() == mThread) {
+            return mScanner.scanFile(file.getCanonicalFile());
+        }
+        return await(requestScanFile(file, priority), null);
+    }
+
+    /**
+     * Request a scan of the given directory at the given priority without
+     * waiting for it. The scan is skipped or stopped once the given signal is
+     * canceled.
+     */
+    public void requestScanDirectory(@NonNull File dir, @NonNull CancellationSignal signal,
+            int priority) {
+        enqueue(TAG, () -> {
+            // Callers may have gone away while waiting their turn
+            if (signal.isCanceled()) return null;
+            mScanner.scanDirectory(dir, signal);
+            return null;
+        }, priority);
+    }
+
+    /**
+     * Queue the given work at the given priority without waiting for it,
+     * logging any failure.
+     */
+    public void enqueue(@NonNull String name, @NonNull Callable<?> callable, int priority) {
+        submit(() -> {
+            try {
+                return callable.call();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed operation " + name, e);
+                return null;
+            }
+        }, priority);
+    }
+
+    /**
+     * Run the given work at the given priority and wait for its result. When
+     * called from the worker thread itself the work runs inline.
+     */
+    public <T> T execute(@NonNull Callable<T> callable, int priority,
+            @Nullable CancellationSignal signal) throws IOException {
+        if (Thread.currentThread() == mThread) {
+            try {
+                return callable.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        final PrioritizedFutureTask<T> task = submit(callable, priority);
+        try {
+            return await(task, signal);
+        } finally {
+            // Work nobody is waiting for anymore doesn't need to run
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Wait for the given result, giving up when the given signal is canceled.
+     * Giving up leaves the work itself alone, since it may be shared.
+     */
+    private static <T> T await(@NonNull Future<T> future, @Nullable CancellationSignal signal)
+            throws IOException {
+        try {
+            while (true) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                try {
+                    return future.get(WAIT_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Run any queued work that is more urgent than the work currently running
+     * on this thread. Has no effect when not called from a worker thread.
+     */
+    public static void yieldIfNeeded() {
+        final ScanScheduler scheduler = sCurrent.get();
+        if (scheduler == null) return;
+
+        PrioritizedFutureTask<?> next;
+        while ((next = scheduler.mQueue.peek()) != null
+                && next.priority < scheduler.mCurrentPriority) {
+            if (scheduler.mQueue.remove(next)) {
+                if (LOGV) Log.v(TAG, "Yielding from " + scheduler.mCurrentPriority
+                        + " to " + next.priority);
+                scheduler.runTask(next);
+            }
+        }
+    }
+}
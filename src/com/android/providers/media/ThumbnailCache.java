@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentCallbacks2;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SharedMemory;
+import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU of recently served encoded thumbnails, so that the few hundred
+ * thumbnails a gallery grid keeps reopening are handed out straight from
+ * memory, without resolving the item or touching storage.
+ * <p>
+ * Entries are keyed by collection, item and level of detail, and must be
+ * evicted through {@link #invalidate(Uri)} whenever the item changes. Any
+ * entry that was read from storage before an invalidation is refused, so a
+ * stale thumbnail can't be put back after its item changed.
+ */
+public class ThumbnailCache {
+    /** Largest thumbnail worth keeping, relative to the whole cache */
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final LruCache<Key, byte[]> mCache;
+
+    /** Incremented whenever any item is invalidated */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /**
+     * Collection, item and level of detail of a cached thumbnail. Items of
+     * all media types on external volumes share a single ID space, but the
+     * collection is still part of the key, since the same item must not be
+     * served through a collection it doesn't belong to.
+     */
+    public static class Key {
+        private static final String[] COLLECTIONS = { "images", "video", "audio" };
+
+        final boolean internal;
+        final String collection;
+        final long id;
+        final int level;
+
+        Key(boolean internal, @NonNull String collection, long id, int level) {
+            this.internal = internal;
+            this.collection = collection;
+            this.id = id;
+            this.level = level;
+        }
+
+        /**
+         * Return the key of the given item URI at the given level, or
+         * {@code null} when the URI doesn't directly name an image, video or
+         * audio item, such as for albums.
+         */
+        public static @Nullable Key forUri(@NonNull Uri uri, int level) {
+            final List<String> segments = uri.getPathSegments();
+            if (segments.size() != 4 || !"media".equals(segments.get(2))) return null;
+            switch (segments.get(1)) {
+                case "images":
+                case "video":
+                case "audio":
+                    break;
+                default:
+                    return null;
+            }
+            final long id;
+            try {
+                id = Long.parseLong(segments.get(3));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return new Key(MediaStore.VOLUME_INTERNAL.equals(segments.get(0)),
+                    segments.get(1), id, level);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return internal == other.internal && id == other.id && level == other.level
+                    && collection.equals(other.collection);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(id) * 31 + collection.hashCode()) * 31
+                    + level * 2 + (internal ? 1 : 0);
+        }
+    }
+
+    /**
+     * Create a cache holding up to the given number of bytes.
+     */
+    public ThumbnailCache(int maxBytes) {
+        mCache = new LruCache<Key, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Return a token to pass to {@link #put}, taken before reading a
+     * thumbnail from storage.
+     */
+    public long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Open the given cached thumbnail, or return {@code null} on a miss.
+     */
+    public @Nullable AssetFileDescriptor open(@NonNull Key key) throws IOException {
+        final byte[] data = mCache.get(key);
+        return (data != null) ? openReadOnly(ByteBuffer.wrap(data)) : null;
+    }
+
+    /**
+     * Cache the given thumbnail, unless any item was invalidated since the
+     * given generation was taken.
+     */
+    public void put(@NonNull Key key, @NonNull byte[] data, long generation) {
+        if (data.length > mCache.maxSize() / MAX_ENTRY_FRACTION) return;
+        synchronized (mGeneration) {
+            if (mGeneration.get() == generation) {
+                mCache.put(key, data);
+            }
+        }
+    }
+
+    /**
+     * Evict all levels of the given item in every collection, since it may
+     * be named through any collection, such as {@link MediaStore.Files}.
+     */
+    public void invalidate(@NonNull Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        synchronized (mGeneration) {
+            mGeneration.incrementAndGet();
+            if (segments.isEmpty()) return;
+            final boolean internal = MediaStore.VOLUME_INTERNAL.equals(segments.get(0));
+            final long id;
+            try {
+                id = Long.parseLong(uri.getLastPathSegment());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            for (String collection : Key.COLLECTIONS) {
+                for (int level = MediaProvider.Thumbnailer.LEVEL_LARGE;
+                        level <= MediaProvider.Thumbnailer.LEVEL_SMALL; level++) {
+                    mCache.remove(new Key(internal, collection, id, level));
+                }
+            }
+        }
+    }
+
+    /**
+     * Release memory as requested through
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Return the given thumbnail as a read-only shared memory region, which
+     * doesn't expose anything beyond the thumbnail itself.
+     */
+    static @NonNull AssetFileDescriptor openReadOnly(@NonNull ByteBuffer data)
+            throws IOException {
+        final int length = data.remaining();
+        try (SharedMemory memory = SharedMemory.create(ThumbnailCache.class.getSimpleName(),
+                length)) {
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.put(data);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            memory.setProtect(OsConstants.PROT_READ);
+            return new AssetFileDescriptor(
+                    ParcelFileDescriptor.dup(memory.getFileDescriptor()), 0, length);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+}
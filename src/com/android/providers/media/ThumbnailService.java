@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_NORMAL;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates thumbnails on a bounded pool of workers, in priority order, so
+ * that a request from an app in the foreground overtakes any prefetching
+ * that's still waiting.
+ * <p>
+ * Requests are deduplicated by {@link Target}: a request for a thumbnail
+ * that's already being generated waits for that work instead of decoding the
+ * same media again, and raises its priority when needed. Each thumbnail is
+ * staged before being published, so readers never observe a partially
+ * written thumbnail; for files, it's written to a temporary file and then
+ * renamed into place.
+ */
+public class ThumbnailService {
+    private static final String TAG = "ThumbnailService";
+    private static final boolean LOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    /** Number of thumbnails generated in parallel */
+    private static final int WORKERS = Math.max(1,
+            Math.min(3, Runtime.getRuntime().availableProcessors() / 2));
+    /** Time after which idle workers are stopped */
+    private static final long KEEP_ALIVE_MS = 10_000;
+    /** Interval at which waiting callers check their {@link CancellationSignal} */
+    private static final long WAIT_POLL_MS = 500;
+
+    private static final int QUALITY = 75;
+
+    /**
+     * Source of the bitmap to write as a thumbnail.
+     */
+    public interface Generator {
+        @NonNull Bitmap generate(@NonNull CancellationSignal signal) throws IOException;
+    }
+
+    /**
+     * Destination of a generated thumbnail. Requests for equal targets are
+     * deduplicated.
+     */
+    public interface Target {
+        boolean exists();
+
+        /**
+         * Write the given encoded thumbnail without making it visible to
+         * readers yet.
+         */
+        @NonNull Staged prepare(@NonNull byte[] data) throws IOException;
+
+        void delete();
+    }
+
+    /**
+     * Thumbnail that was written but isn't visible to readers yet.
+     */
+    public interface Staged {
+        /** Make the thumbnail visible; called while holding the service lock */
+        void commit() throws IOException;
+
+        void abort();
+    }
+
+    private static class FileTarget implements Target {
+        private final File mFile;
+
+        FileTarget(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public boolean exists() {
+            return mFile.exists();
+        }
+
+        @Override
+        public @NonNull Staged prepare(@NonNull byte[] data) throws IOException {
+            mFile.getParentFile().mkdirs();
+            // Each attempt gets its own temp file, since an invalidated
+            // request may still be running alongside its replacement
+            final File tempFile = File.createTempFile(mFile.getName(), ".tmp",
+                    mFile.getParentFile());
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                out.write(data);
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+            return new Staged() {
+                @Override
+                public void commit() throws IOException {
+                    if (!tempFile.renameTo(mFile)) {
+                        throw new IOException("Failed to write " + mFile);
+                    }
+                }
+
+                @Override
+                public void abort() {
+                    tempFile.delete();
+                }
+            };
+        }
+
+        @Override
+        public void delete() {
+            mFile.delete();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof FileTarget) && mFile.equals(((FileTarget) obj).mFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return mFile.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mFile.toString();
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Map from thumbnail target to the request generating it */
+    @GuardedBy("mRequests")
+    private final ArrayMap<Target, Request> mRequests = new ArrayMap<>();
+
+    private class Request {
+        final Target target;
+        final Generator generator;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final CancellationSignal signal = new CancellationSignal();
+
+        @GuardedBy("mRequests")
+        PrioritizedFutureTask<Void> task;
+        @GuardedBy("mRequests")
+        int priority;
+        @GuardedBy("mRequests")
+        int waiters;
+        @GuardedBy("mRequests")
+        boolean started;
+        @GuardedBy("mRequests")
+        boolean invalidated;
+
+        Request(Target target, Generator generator) {
+            this.target = target;
+            this.generator = generator;
+        }
+    }
+
+    public ThumbnailService() {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(WORKERS, WORKERS, KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), (r) -> {
+                    return new Thread(r, TAG + "-" + count.incrementAndGet());
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the given thumbnail file, generating it at the given priority
+     * when it doesn't exist yet, and waiting for the result.
+     */
+    public @NonNull File ensureThumbnail(@NonNull File file, @NonNull Generator generator,
+            int priority, @Nullable CancellationSignal signal) throws IOException {
+        ensureThumbnail(new FileTarget(file), generator, priority, signal);
+        return file;
+    }
+
+    /**
+     * Make sure the given thumbnail target exists, generating it at the given
+     * priority when needed, and waiting for the result.
+     */
+    public void ensureThumbnail(@NonNull Target target, @NonNull Generator generator,
+            int priority, @Nullable CancellationSignal signal) throws IOException {
+        if (target.exists()) return;
+
+        final Request request;
+        synchronized (mRequests) {
+            final Request existing = mRequests.get(target);
+            if (existing != null) {
+                if (LOGV) Log.v(TAG, "Joining pending generation of " + target);
+                request = existing;
+                if (priority < request.priority && !request.started
+                        && mExecutor.remove(request.task)) {
+                    if (LOGV) Log.v(TAG, "Raising priority of " + target + " to " + priority);
+                    enqueue(request, priority);
+                }
+            } else {
+                request = new Request(target, generator);
+                mRequests.put(target, request);
+                enqueue(request, priority);
+            }
+            request.waiters++;
+        }
+        await(request, signal);
+    }
+
+    @GuardedBy("mRequests")
+    private void enqueue(@NonNull Request request, int priority) {
+        request.priority = priority;
+        request.task = new PrioritizedFutureTask<>(() -> {
+            run(request, priority);
+            return null;
+        }, priority);
+        mExecutor.execute(request.task);
+    }
+
+    private void run(@NonNull Request request, int priority) {
+        synchronized (mRequests) {
+            if (request.result.isDone()) return;
+            request.started = true;
+        }
+
+        // Prefetching shouldn't compete with the rest of the device
+        Process.setThreadPriority(priority > PRIORITY_NORMAL
+                ? Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_DEFAULT);
+        try {
+            generate(request);
+            complete(request, null);
+        } catch (IOException | RuntimeException e) {
+            complete(request, e);
+        }
+    }
+
+    private void generate(@NonNull Request request) throws IOException {
+        final Target target = request.target;
+        if (target.exists()) return;
+
+        final Bitmap bitmap = request.generator.generate(request.signal);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+        final Staged staged = target.prepare(out.toByteArray());
+        synchronized (mRequests) {
+            if (request.invalidated) {
+                staged.abort();
+                throw new IOException("Invalidated while generating " + target);
+            }
+            try {
+                staged.commit();
+            } catch (IOException e) {
+                staged.abort();
+                throw e;
+            }
+        }
+    }
+
+    private void complete(@NonNull Request request, @Nullable Throwable failure) {
+        synchronized (mRequests) {
+            if (mRequests.get(request.target) == request) {
+                mRequests.remove(request.target);
+            }
+        }
+        if (failure != null) {
+            request.result.completeExceptionally(failure);
+        } else {
+            request.result.complete(null);
+        }
+    }
+
+    private void await(@NonNull Request request, @Nullable CancellationSignal signal)
+            throws IOException {
+        try {
+            while (true) {
+                if (signal != null && signal.isCanceled()) {
+                    abandon(request);
+                    signal.throwIfCanceled();
+                }
+                try {
+                    request.result.get(WAIT_POLL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException ignored) {
+                }
+            }
+        } catch (InterruptedException e) {
+            abandon(request);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * The given caller stopped waiting; when it was the last one, stop the
+     * work too.
+     */
+    private void abandon(@NonNull Request request) {
+        synchronized (mRequests) {
+            if (--request.waiters > 0) return;
+            if (!request.started && mExecutor.remove(request.task)) {
+                complete(request, new OperationCanceledException());
+            } else {
+                request.signal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Delete the given thumbnail file, making sure that any generation that's
+     * still in progress doesn't put a stale thumbnail back in place.
+     */
+    public void invalidateThumbnail(@NonNull File file) {
+        invalidateThumbnail(new FileTarget(file));
+    }
+
+    /**
+     * Delete the given thumbnail target, making sure that any generation
+     * that's still in progress doesn't put a stale thumbnail back in place.
+     */
+    public void invalidateThumbnail(@NonNull Target target) {
+        synchronized (mRequests) {
+            // Work that hasn't started yet will read the updated media
+            final Request request = mRequests.get(target);
+            if (request != null && request.started) {
+                mRequests.remove(target);
+                request.invalidated = true;
+            }
+            target.delete();
+        }
+    }
+
+    @VisibleForTesting
+    public int getPendingCount() {
+        synchronized (mRequests) {
+            return mRequests.size();
+        }
+    }
+}
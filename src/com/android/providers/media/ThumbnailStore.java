@@ -0,0 +1,743 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.res.AssetFileDescriptor;
+import android.os.CancellationSignal;
+import android.os.FileUtils;
+import android.util.Log;
+import android.util.LongSparseLongArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.LongPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * Packed store of the thumbnails of a single media directory of a volume,
+ * used instead of a separate file for each thumbnail, which costs an inode and
+ * an open for every request, and leaves a huge directory to list when pruning.
+ * <p>
+ * Thumbnails are appended as records to large segment files, and located
+ * through an in-memory index from item and level to segment, offset and
+ * length. The index is saved as a snapshot every few hundred records, so that
+ * opening the store only replays the records appended since. Replacing or
+ * removing a thumbnail leaves its old record behind as dead space, which
+ * {@link #compact(CancellationSignal)} reclaims one segment at a time.
+ * <p>
+ * Thumbnails are read through memory-mapped segments. Since a descriptor of a
+ * segment would expose every other thumbnail in it, each thumbnail is handed
+ * out as a read-only shared memory region copied from the mapped slice.
+ */
+public class ThumbnailStore implements Closeable {
+    private static final String TAG = "ThumbnailStore";
+
+    private static final int RECORD_MAGIC = 0x54484d42;
+    private static final int INDEX_MAGIC = 0x54484d49;
+    private static final int INDEX_VERSION = 1;
+
+    /** Record header: magic, key, payload length and payload checksum */
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    /** Payload length recorded when a thumbnail is removed */
+    private static final int LENGTH_REMOVED = -1;
+
+    /** Size beyond which records are appended to a new segment */
+    @VisibleForTesting
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** Largest accepted thumbnail, bounded by the index encoding */
+    private static final int MAX_LENGTH = (1 << 20) - 1;
+    /** Largest segment number, bounded by the index encoding */
+    private static final int MAX_SEGMENT = (1 << 20) - 1;
+    /** Levels of detail that can be stored for each item */
+    private static final int MAX_LEVELS = 4;
+
+    /** Number of records appended between index snapshots */
+    private static final int SAVE_INTERVAL = 256;
+    /** Number of segments kept mapped at once */
+    private static final int MAX_MAPPED = 8;
+    /** Fraction of a segment that must be dead before it's compacted */
+    private static final float COMPACT_THRESHOLD = 0.5f;
+
+    private static final String INDEX_NAME = "index";
+    private static final String SEGMENT_PREFIX = "segment_";
+
+    private final File mDir;
+    private final File mIndexFile;
+
+    /** Map from packed key to packed location of the live record */
+    @GuardedBy("this")
+    private final LongSparseLongArray mIndex = new LongSparseLongArray();
+    /** All segments, by number; the last one is appended to */
+    @GuardedBy("this")
+    private final SparseArray<Segment> mSegments = new SparseArray<>();
+    /** Mapped segments, in order of last use */
+    @GuardedBy("this")
+    private final ArrayList<Segment> mMapped = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int mUnsaved;
+    @GuardedBy("this")
+    private boolean mClosed;
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final FileChannel channel;
+
+        /** Length of all records written so far */
+        int length;
+        /** Length of records that are still indexed */
+        int liveLength;
+        /** Written since the last index snapshot */
+        boolean dirty;
+        /** Read-only mapping of the segment, if any */
+        MappedByteBuffer map;
+
+        Segment(int number, File file, FileChannel channel, int length) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.length = length;
+        }
+    }
+
+    private ThumbnailStore(@NonNull File dir) {
+        mDir = dir;
+        mIndexFile = new File(dir, INDEX_NAME);
+    }
+
+    /**
+     * Open the store in the given directory, creating it when needed.
+     */
+    public static @NonNull ThumbnailStore open(@NonNull File dir) throws IOException {
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        final ThumbnailStore store = new ThumbnailStore(dir);
+        synchronized (store) {
+            try {
+                store.loadLocked();
+            } catch (IOException e) {
+                store.closeLocked();
+                throw e;
+            }
+        }
+        return store;
+    }
+
+    private static long packKey(long id, int level) {
+        if (id < 0 || level < 0 || level >= MAX_LEVELS) {
+            throw new IllegalArgumentException("Invalid thumbnail " + id + " at " + level);
+        }
+        return (id << 2) | level;
+    }
+
+    private static long getKeyId(long key) {
+        return key >>> 2;
+    }
+
+    private static long packLocation(int segment, int offset, int length) {
+        return ((long) segment << 44) | ((long) offset << 20) | length;
+    }
+
+    private static int getSegment(long location) {
+        return (int) (location >>> 44);
+    }
+
+    private static int getOffset(long location) {
+        return (int) ((location >>> 20) & 0xffffff);
+    }
+
+    private static int getLength(long location) {
+        return (int) (location & 0xfffff);
+    }
+
+    private static int getRecordLength(long location) {
+        return HEADER_SIZE + getLength(location);
+    }
+
+    private static int checksum(@NonNull byte[] data, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    @GuardedBy("this")
+    private void loadLocked() throws IOException {
+        for (File file : FileUtils.listFilesOrEmpty(mDir)) {
+            final String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) continue;
+            try {
+                final int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                openSegmentLocked(number);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring unknown file " + file);
+            }
+        }
+
+        // Start from the last snapshot when it's consistent with the segments
+        // we found, otherwise replay everything from scratch
+        int replaySegment = -1;
+        int replayOffset = 0;
+        if (mIndexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unsupported index");
+                }
+                replaySegment = in.readInt();
+                replayOffset = in.readInt();
+                final Segment replay = mSegments.get(replaySegment);
+                if (replaySegment != -1 && (replay == null || replay.length < replayOffset)) {
+                    throw new IOException("Index ahead of segment " + replaySegment);
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final long key = in.readLong();
+                    final long location = in.readLong();
+                    final Segment segment = mSegments.get(getSegment(location));
+                    if (segment == null || segment.length
+                            < getOffset(location) + getRecordLength(location)) {
+                        throw new IOException("Index refers to missing record in segment "
+                                + getSegment(location));
+                    }
+                    indexLocked(key, location);
+                }
+            } catch (IOException e) {
+                resetLocked(e.getMessage());
+                replaySegment = -1;
+                replayOffset = 0;
+            }
+        }
+
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.valueAt(i);
+            if (segment.number > replaySegment) {
+                replayLocked(segment, 0);
+            } else if (segment.number == replaySegment) {
+                replayLocked(segment, replayOffset);
+            }
+        }
+
+        // Older segments without any live records are leftovers of an
+        // interrupted compaction
+        for (int i = mSegments.size() - 2; i >= 0; i--) {
+            final Segment segment = mSegments.valueAt(i);
+            if (segment.liveLength == 0 && segment.number < replaySegment) {
+                dropSegmentLocked(segment);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void resetLocked(String reason) {
+        Log.w(TAG, "Rebuilding index of " + mDir + ": " + reason);
+        mIndex.clear();
+        for (int i = 0; i < mSegments.size(); i++) {
+            mSegments.valueAt(i).liveLength = 0;
+        }
+    }
+
+    /**
+     * Apply all records in the given segment from the given offset onwards,
+     * truncating any record that was left incomplete.
+     */
+    @GuardedBy("this")
+    private void replayLocked(@NonNull Segment segment, int offset) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final int limit = Math.min(segment.length, SEGMENT_SIZE);
+        while (offset + HEADER_SIZE <= limit) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            final int magic = header.getInt();
+            final long key = header.getLong();
+            final int length = header.getInt();
+            final int crc = header.getInt();
+            if (magic != RECORD_MAGIC) break;
+
+            if (length == LENGTH_REMOVED) {
+                unindexLocked(key);
+                offset += HEADER_SIZE;
+                continue;
+            }
+            if (length < 0 || length > MAX_LENGTH
+                    || offset + HEADER_SIZE + length > limit) break;
+
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment.channel, payload, offset + HEADER_SIZE);
+            if (checksum(payload.array(), length) != crc) break;
+
+            indexLocked(key, packLocation(segment.number, offset, length));
+            offset += HEADER_SIZE + length;
+        }
+        if (offset < segment.length) {
+            Log.w(TAG, "Truncating " + segment.file + " from " + segment.length + " to "
+                    + offset);
+            segment.channel.truncate(offset);
+            segment.length = offset;
+        }
+    }
+
+    @GuardedBy("this")
+    private @NonNull Segment openSegmentLocked(int number) throws IOException {
+        final File file = new File(mDir, SEGMENT_PREFIX + number);
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Invalid segment " + file);
+        }
+        final Segment segment = new Segment(number, file, channel, (int) length);
+        mSegments.put(number, segment);
+        return segment;
+    }
+
+    @GuardedBy("this")
+    private void dropSegmentLocked(@NonNull Segment segment) {
+        unmapLocked(segment);
+        mSegments.remove(segment.number);
+        try {
+            segment.channel.close();
+        } catch (IOException ignored) {
+        }
+        segment.file.delete();
+    }
+
+    @GuardedBy("this")
+    private @Nullable Segment getActiveLocked() {
+        final int size = mSegments.size();
+        return (size > 0) ? mSegments.valueAt(size - 1) : null;
+    }
+
+    @GuardedBy("this")
+    private void indexLocked(long key, long location) {
+        unindexLocked(key);
+        mIndex.put(key, location);
+        mSegments.get(getSegment(location)).liveLength += getRecordLength(location);
+    }
+
+    @GuardedBy("this")
+    private boolean unindexLocked(long key) {
+        final long location = mIndex.get(key, -1);
+        if (location == -1) return false;
+        mIndex.delete(key);
+        final Segment segment = mSegments.get(getSegment(location));
+        if (segment != null) {
+            segment.liveLength -= getRecordLength(location);
+        }
+        return true;
+    }
+
+    /**
+     * Append a record to the active segment, starting a new one when full.
+     *
+     * @param data payload, or {@code null} to record a removal.
+     * @return location of the appended record.
+     */
+    @GuardedBy("this")
+    private long appendLocked(long key, @Nullable byte[] data) throws IOException {
+        if (mClosed) throw new IOException("Closed " + mDir);
+
+        final int length = (data != null) ? data.length : 0;
+        final int recordLength = HEADER_SIZE + length;
+        Segment segment = getActiveLocked();
+        if (segment == null || segment.length + recordLength > SEGMENT_SIZE) {
+            final int number = (segment != null) ? segment.number + 1 : 0;
+            if (number > MAX_SEGMENT) {
+                throw new IOException("Out of segments in " + mDir);
+            }
+            segment = openSegmentLocked(number);
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(RECORD_MAGIC);
+        record.putLong(key);
+        record.putInt((data != null) ? length : LENGTH_REMOVED);
+        record.putInt((data != null) ? checksum(data, length) : 0);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        final int offset = segment.length;
+        writeFully(segment.channel, record, offset);
+        segment.length += recordLength;
+        segment.dirty = true;
+        mUnsaved++;
+        return packLocation(segment.number, offset, length);
+    }
+
+    @GuardedBy("this")
+    private void maybeSaveLocked() throws IOException {
+        if (mUnsaved >= SAVE_INTERVAL) {
+            saveLocked();
+        }
+    }
+
+    /**
+     * Write a snapshot of the index, after making sure that all records it
+     * refers to are durable.
+     */
+    @GuardedBy("this")
+    private void saveLocked() throws IOException {
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.valueAt(i);
+            if (segment.dirty) {
+                segment.channel.force(false);
+                segment.dirty = false;
+            }
+        }
+
+        final Segment active = getActiveLocked();
+        final File tempFile = new File(mDir, INDEX_NAME + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt((active != null) ? active.number : -1);
+            out.writeInt((active != null) ? active.length : 0);
+            out.writeInt(mIndex.size());
+            for (int i = 0; i < mIndex.size(); i++) {
+                out.writeLong(mIndex.keyAt(i));
+                out.writeLong(mIndex.valueAt(i));
+            }
+            out.flush();
+            FileUtils.sync(fos);
+        }
+        if (!tempFile.renameTo(mIndexFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to save " + mIndexFile);
+        }
+        mUnsaved = 0;
+    }
+
+    /**
+     * Return a slice of the mapped segment holding the payload at the given
+     * location. Only valid while holding the lock, since the mapping may be
+     * released afterwards.
+     */
+    @GuardedBy("this")
+    private @NonNull ByteBuffer sliceLocked(long location) throws IOException {
+        final Segment segment = mSegments.get(getSegment(location));
+        final int start = getOffset(location) + HEADER_SIZE;
+        final int end = start + getLength(location);
+        if (segment.map == null || segment.map.limit() < end) {
+            unmapLocked(segment);
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+        }
+        mMapped.remove(segment);
+        mMapped.add(segment);
+        while (mMapped.size() > MAX_MAPPED) {
+            unmapLocked(mMapped.get(0));
+        }
+
+        final ByteBuffer slice = segment.map.duplicate();
+        slice.position(start);
+        slice.limit(end);
+        return slice;
+    }
+
+    @GuardedBy("this")
+    private void unmapLocked(@NonNull Segment segment) {
+        if (segment.map != null) {
+            NioUtils.freeDirectBuffer(segment.map);
+            segment.map = null;
+        }
+        mMapped.remove(segment);
+    }
+
+    /**
+     * Test if the given thumbnail is stored.
+     */
+    public synchronized boolean contains(long id, int level) {
+        return mIndex.indexOfKey(packKey(id, level)) >= 0;
+    }
+
+    /**
+     * Store the given encoded thumbnail, replacing any existing one.
+     */
+    public synchronized void put(long id, int level, @NonNull byte[] data) throws IOException {
+        if (data.length == 0 || data.length > MAX_LENGTH) {
+            throw new IOException("Invalid thumbnail length " + data.length);
+        }
+        final long key = packKey(id, level);
+        indexLocked(key, appendLocked(key, data));
+        maybeSaveLocked();
+    }
+
+    /**
+     * Remove the given thumbnail, if stored.
+     */
+    public synchronized void remove(long id, int level) throws IOException {
+        final long key = packKey(id, level);
+        if (unindexLocked(key)) {
+            appendLocked(key, null);
+            maybeSaveLocked();
+        }
+    }
+
+    /**
+     * Return a copy of the given encoded thumbnail, or {@code null} when not
+     * stored.
+     */
+    public synchronized @Nullable byte[] getBytes(long id, int level) throws IOException {
+        final long location = mIndex.get(packKey(id, level), -1);
+        if (location == -1) return null;
+        final byte[] data = new byte[getLength(location)];
+        sliceLocked(location).get(data);
+        return data;
+    }
+
+    /**
+     * Open the given thumbnail for reading, or return {@code null} when not
+     * stored.
+     */
+    public synchronized @Nullable AssetFileDescriptor open(long id, int level)
+            throws IOException {
+        final long location = mIndex.get(packKey(id, level), -1);
+        if (location == -1) return null;
+        return ThumbnailCache.openReadOnly(sliceLocked(location));
+    }
+
+    /**
+     * Remove all thumbnails of items that aren't known.
+     *
+     * @return the number of thumbnails removed.
+     */
+    public synchronized int retainAll(@NonNull LongPredicate knownIds) throws IOException {
+        int removed = 0;
+        for (int i = mIndex.size() - 1; i >= 0; i--) {
+            final long key = mIndex.keyAt(i);
+            if (!knownIds.test(getKeyId(key))) {
+                unindexLocked(key);
+                removed++;
+            }
+        }
+        // Snapshot instead of appending a removal record for each one
+        if (removed > 0) {
+            saveLocked();
+        }
+        return removed;
+    }
+
+    /**
+     * Reclaim the space of replaced and removed thumbnails, by moving the
+     * live records out of mostly dead segments and deleting those segments.
+     * Records are moved one at a time, so readers are never held up for long.
+     */
+    public void compact(@NonNull CancellationSignal signal) throws IOException {
+        while (true) {
+            signal.throwIfCanceled();
+
+            final Segment victim;
+            final long[] keys;
+            synchronized (this) {
+                victim = findVictimLocked();
+                if (victim == null) return;
+                final long[] found = new long[mIndex.size()];
+                int count = 0;
+                for (int i = 0; i < mIndex.size(); i++) {
+                    if (getSegment(mIndex.valueAt(i)) == victim.number) {
+                        found[count++] = mIndex.keyAt(i);
+                    }
+                }
+                keys = Arrays.copyOf(found, count);
+            }
+
+            Log.d(TAG, "Compacting " + victim.file + " with " + keys.length + " live records");
+            for (long key : keys) {
+                signal.throwIfCanceled();
+                synchronized (this) {
+                    final long location = mIndex.get(key, -1);
+                    if (location == -1 || getSegment(location) != victim.number) continue;
+                    final byte[] data = new byte[getLength(location)];
+                    sliceLocked(location).get(data);
+                    indexLocked(key, appendLocked(key, data));
+                }
+            }
+
+            synchronized (this) {
+                if (victim.liveLength > 0 || mSegments.get(victim.number) != victim) {
+                    Log.w(TAG, "Failed to empty " + victim.file);
+                    return;
+                }
+                // Persist the new locations before the old records go away
+                saveLocked();
+                dropSegmentLocked(victim);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private @Nullable Segment findVictimLocked() {
+        if (mClosed) return null;
+        final Segment active = getActiveLocked();
+        Segment victim = null;
+        float victimRatio = COMPACT_THRESHOLD;
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.valueAt(i);
+            if (segment == active) continue;
+            final float ratio = (segment.length > 0)
+                    ? (float) segment.liveLength / segment.length : 0;
+            if (ratio < victimRatio) {
+                victim = segment;
+                victimRatio = ratio;
+            }
+        }
+        return victim;
+    }
+
+    @VisibleForTesting
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mClosed) return;
+        if (mUnsaved > 0) {
+            try {
+                saveLocked();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save index of " + mDir, e);
+            }
+        }
+        closeLocked();
+    }
+
+    @GuardedBy("this")
+    private void closeLocked() {
+        mClosed = true;
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.valueAt(i);
+            unmapLocked(segment);
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mSegments.clear();
+        mIndex.clear();
+    }
+
+    /**
+     * Return the {@link ThumbnailService.Target} writing the given thumbnail
+     * into this store.
+     */
+    public @NonNull ThumbnailService.Target getTarget(long id, int level) {
+        return new StoreTarget(id, level);
+    }
+
+    private class StoreTarget implements ThumbnailService.Target {
+        private final long mId;
+        private final int mLevel;
+
+        StoreTarget(long id, int level) {
+            mId = id;
+            mLevel = level;
+        }
+
+        @Override
+        public boolean exists() {
+            return contains(mId, mLevel);
+        }
+
+        @Override
+        public @NonNull ThumbnailService.Staged prepare(@NonNull byte[] data) {
+            return new ThumbnailService.Staged() {
+                @Override
+                public void commit() throws IOException {
+                    put(mId, mLevel, data);
+                }
+
+                @Override
+                public void abort() {
+                }
+            };
+        }
+
+        @Override
+        public void delete() {
+            try {
+                remove(mId, mLevel);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to remove " + this, e);
+            }
+        }
+
+        private ThumbnailStore getStore() {
+            return ThumbnailStore.this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StoreTarget)) return false;
+            final StoreTarget other = (StoreTarget) obj;
+            return getStore() == other.getStore() && mId == other.mId && mLevel == other.mLevel;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDir, mId, mLevel);
+        }
+
+        @Override
+        public String toString() {
+            return mDir + "#" + mId + "_" + mLevel;
+        }
+    }
+
+    private static void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) throw new EOFException();
+            position += n;
+        }
+    }
+
+    private static void writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
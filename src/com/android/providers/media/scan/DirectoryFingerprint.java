@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.CurrentTimeMillisLong;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Fingerprint of the direct contents of a directory, as recorded in the
+ * {@code scan_journal} table after a successful scan. When a later scan
+ * measures an identical fingerprint, nothing has been added, removed or
+ * renamed in that directory since it was last indexed.
+ */
+public class DirectoryFingerprint {
+    /** Last modified time of the directory itself */
+    public final long dateModified;
+    /** Number of entries directly inside the directory */
+    public final int childCount;
+    /** Order-independent hash of the names of all entries */
+    public final long childHash;
+    /** Number of entries that are directories, or {@code -1} when unknown */
+    public final int childDirs;
+    /** Time when the last full verification pass covered this directory */
+    public final @CurrentTimeMillisLong long dateVerified;
+
+    public DirectoryFingerprint(long dateModified, int childCount, long childHash,
+            int childDirs, @CurrentTimeMillisLong long dateVerified) {
+        this.dateModified = dateModified;
+        this.childCount = childCount;
+        this.childHash = childHash;
+        this.childDirs = childDirs;
+        this.dateVerified = dateVerified;
+    }
+
+    /**
+     * Measure the current fingerprint of a directory from the names of its
+     * entries, as already listed by the caller, returning {@code null} if it
+     * couldn't be listed.
+     */
+    public static @Nullable DirectoryFingerprint measure(@Nullable String[] names,
+            @NonNull BasicFileAttributes attrs) {
+        if (names == null) return null;
+
+        long hash = 0;
+        for (String name : names) {
+            hash += hashName(name);
+        }
+        return new DirectoryFingerprint(attrs.lastModifiedTime().toMillis(), names.length, hash,
+                -1, 0);
+    }
+
+    private static long hashName(@NonNull String name) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + name.charAt(i);
+        }
+        // Finalize so that summing hashes doesn't cancel out similar names
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+     * Test if the given previously recorded fingerprint describes exactly the
+     * same directory contents as this one.
+     */
+    public boolean matches(@Nullable DirectoryFingerprint other) {
+        return other != null
+                && dateModified == other.dateModified
+                && childCount == other.childCount
+                && childHash == other.childHash;
+    }
+
+    public @NonNull DirectoryFingerprint withChildDirs(int childDirs,
+            @CurrentTimeMillisLong long dateVerified) {
+        return new DirectoryFingerprint(dateModified, childCount, childHash, childDirs,
+                dateVerified);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Compact snapshot of the database state of all known children of a single
+ * directory, loaded with one query so that {@link ModernMediaScanner} can
+ * check each visited file for changes without another round trip.
+ * <p>
+ * Children are keyed by their exact display name, since names that differ
+ * only in case are distinct files on case-sensitive volumes. Callers fall back
+ * to looking up names that aren't found by path, which honors the
+ * {@code COLLATE NOCASE} definition of the {@code _data} column.
+ */
+class DirectorySnapshot {
+    private final String mDir;
+
+    private final String[] mNames;
+    private final long[] mIds;
+    private final long[] mDateModified;
+    private final long[] mSizes;
+
+    private DirectorySnapshot(@NonNull File dir, int count) {
+        mDir = dir.getAbsolutePath();
+        mNames = new String[count];
+        mIds = new long[count];
+        mDateModified = new long[count];
+        mSizes = new long[count];
+    }
+
+    /**
+     * Build a snapshot from the given {@link Cursor}, which must contain the
+     * {@code _id}, {@code _data}, {@code date_modified} and {@code _size}
+     * columns, in that order.
+     */
+    public static @NonNull DirectorySnapshot fromCursor(@NonNull File dir, @NonNull Cursor c) {
+        final int count = c.getCount();
+        final String[] names = new String[count];
+        final Integer[] order = new Integer[count];
+        c.moveToPosition(-1);
+        for (int i = 0; i < count && c.moveToNext(); i++) {
+            final String data = c.getString(1);
+            names[i] = data.substring(data.lastIndexOf('/') + 1);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+
+        final DirectorySnapshot snapshot = new DirectorySnapshot(dir, count);
+        for (int i = 0; i < count; i++) {
+            c.moveToPosition(order[i]);
+            snapshot.mNames[i] = names[order[i]];
+            snapshot.mIds[i] = c.getLong(0);
+            snapshot.mDateModified[i] = c.getLong(2);
+            snapshot.mSizes[i] = c.getLong(3);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Test if the given file is a direct child of the directory described by
+     * this snapshot, meaning the snapshot is authoritative for it.
+     */
+    public boolean isParentOf(@NonNull File file) {
+        return Objects.equals(mDir, file.getParent());
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Return the index of the child with given name, or a negative value when
+     * not known.
+     */
+    public int indexOf(@Nullable String name) {
+        if (name == null) return -1;
+        return Arrays.binarySearch(mNames, name);
+    }
+
+    public @NonNull String getName(int index) {
+        return mNames[index];
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public long getDateModified(int index) {
+        return mDateModified[index];
+    }
+
+    public long getSize(int index) {
+        return mSizes[index];
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static android.os.Trace.TRACE_TAG_DATABASE;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Trace;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+
+/**
+ * Cache of {@link ModernMediaScanner#isDirectoryHidden(File)} decisions for a
+ * single volume, stored as a trie of path segments so that resolving the
+ * visibility of a deeply nested directory is a handful of map lookups.
+ * <p>
+ * Each decision remembers the last modified time of its directory, since
+ * creating or deleting a {@code .nomedia} file always touches its parent;
+ * a decision is only trusted while that time is unchanged. Callers that
+ * observe renames or {@code .nomedia} changes directly should also
+ * {@link #invalidate(File)} the affected path.
+ */
+public class HiddenDirectoryCache {
+    /** Upper bound on cached directories per volume before we start over */
+    private static final int MAX_NODES = 8_192;
+
+    @GuardedBy("sCaches")
+    private static final ArrayMap<String, HiddenDirectoryCache> sCaches = new ArrayMap<>();
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private Node mRoot = new Node();
+    @GuardedBy("mLock")
+    private int mNodeCount;
+
+    private static class Node {
+        ArrayMap<String, Node> children;
+        boolean known;
+        boolean hidden;
+        long lastModified;
+    }
+
+    public static @NonNull HiddenDirectoryCache forVolume(@NonNull String volumeName) {
+        synchronized (sCaches) {
+            HiddenDirectoryCache cache = sCaches.get(volumeName);
+            if (cache == null) {
+                cache = new HiddenDirectoryCache();
+                sCaches.put(volumeName, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drop everything cached for the given volume, typically when it's
+     * detached.
+     */
+    public static void forgetVolume(@NonNull String volumeName) {
+        synchronized (sCaches) {
+            sCaches.remove(volumeName);
+        }
+    }
+
+    /**
+     * Invalidate the given path and everything below it across all volumes,
+     * for callers that don't know which volume a path belongs to.
+     */
+    public static void invalidatePath(@NonNull File path) {
+        synchronized (sCaches) {
+            for (int i = 0; i < sCaches.size(); i++) {
+                sCaches.valueAt(i).invalidate(path);
+            }
+        }
+    }
+
+    /**
+     * Test if the given directory should be considered hidden, reusing any
+     * cached decision if the directory hasn't been modified since.
+     */
+    public boolean isHidden(@NonNull File dir, long lastModified) {
+        synchronized (mLock) {
+            final Node node = findOrCreate(dir);
+            if (node.known && node.lastModified == lastModified) {
+                return node.hidden;
+            }
+            node.hidden = ModernMediaScanner.isDirectoryHidden(dir);
+            node.lastModified = lastModified;
+            node.known = true;
+            return node.hidden;
+        }
+    }
+
+    /**
+     * Test if the given directory or any of its parents should be considered
+     * hidden.
+     */
+    public boolean isHiddenRecursive(@Nullable File dir) {
+        if (dir == null) return false;
+        Trace.traceBegin(TRACE_TAG_DATABASE, "isHiddenRecursive");
+        try {
+            // Walk from the top down, so that intermediate nodes are shared
+            final String[] segments = dir.getAbsolutePath().split("/");
+            File current = new File("/");
+            if (isHidden(current, current.lastModified())) return true;
+            for (String segment : segments) {
+                if (segment.isEmpty()) continue;
+                current = new File(current, segment);
+                if (isHidden(current, current.lastModified())) return true;
+            }
+            return false;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_DATABASE);
+        }
+    }
+
+    /**
+     * Forget any decisions for the given path and everything below it.
+     */
+    public void invalidate(@NonNull File path) {
+        synchronized (mLock) {
+            final String[] segments = path.getAbsolutePath().split("/");
+            Node parent = null;
+            Node node = mRoot;
+            String name = null;
+            for (String segment : segments) {
+                if (segment.isEmpty()) continue;
+                if (node.children == null) return;
+                parent = node;
+                name = segment;
+                node = node.children.get(segment);
+                if (node == null) return;
+            }
+            if (parent == null) {
+                mRoot = new Node();
+                mNodeCount = 0;
+            } else {
+                parent.children.remove(name);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private @NonNull Node findOrCreate(@NonNull File dir) {
+        if (mNodeCount >= MAX_NODES) {
+            mRoot = new Node();
+            mNodeCount = 0;
+        }
+        Node node = mRoot;
+        for (String segment : dir.getAbsolutePath().split("/")) {
+            if (segment.isEmpty()) continue;
+            if (node.children == null) {
+                node.children = new ArrayMap<>();
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+                mNodeCount++;
+            }
+            node = child;
+        }
+        return node;
+    }
+}
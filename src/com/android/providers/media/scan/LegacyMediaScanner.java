@@ -16,8 +16,10 @@
 
 package com.android.providers.media.scan;
 
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Trace;
 import android.provider.MediaStore;
 
@@ -51,6 +53,15 @@ public class LegacyMediaScanner implements MediaScanner {
         }
     }
 
+    @Override
+    public void scanDirectory(File file, @Nullable CancellationSignal signal) {
+        // The legacy scanner can't be interrupted once started
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+        scanDirectory(file);
+    }
+
     @Override
     public Uri scanFile(File file) {
         final String path = file.getAbsolutePath();
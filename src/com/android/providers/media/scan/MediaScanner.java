@@ -16,8 +16,10 @@
 
 package com.android.providers.media.scan;
 
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
 
 import com.android.providers.media.MediaProvider;
 
@@ -26,6 +28,7 @@ import java.io.File;
 public interface MediaScanner {
     public Context getContext();
     public void scanDirectory(File file);
+    public void scanDirectory(File file, @Nullable CancellationSignal signal);
     public Uri scanFile(File file);
     public void onDetachVolume(String volumeName);
 
@@ -38,6 +38,8 @@ import static android.provider.MediaStore.AUTHORITY;
 import static android.provider.MediaStore.UNKNOWN_STRING;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+import static android.text.format.DateUtils.SECOND_IN_MILLIS;
+import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import android.annotation.CurrentTimeMillisLong;
 import android.annotation.CurrentTimeSecondsLong;
@@ -63,6 +65,8 @@ import android.os.Environment;
 import android.os.FileUtils;
 import android.os.OperationCanceledException;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AudioColumns;
@@ -73,22 +77,28 @@ import android.provider.MediaStore.MediaColumns;
 import android.provider.MediaStore.Video.VideoColumns;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.LongArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.media.MediaProvider;
+import com.android.providers.media.ScanScheduler;
+import com.android.providers.media.util.ContainerIndexCache;
 import com.android.providers.media.util.IsoInterface;
+import com.android.providers.media.util.MetadataSource;
+import com.android.providers.media.util.RedactionInfo;
 import com.android.providers.media.util.XmpInterface;
 
 import libcore.net.MimeUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
@@ -99,6 +109,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 import java.util.TimeZone;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
@@ -128,28 +139,104 @@ public class ModernMediaScanner implements MediaScanner {
     // TODO: deprecate playlist editing
     // TODO: deprecate PARENT column, since callers can't see directories
 
-    private static final SimpleDateFormat sDateFormat;
-
-    static {
-        sDateFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-        sDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    /** Formats aren't thread-safe, and items are extracted on several workers */
+    private static final ThreadLocal<SimpleDateFormat> sDateFormat =
+            ThreadLocal.withInitial(() -> {
+                final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                return format;
+            });
 
     private static final int BATCH_SIZE = 32;
 
+    /**
+     * Number of files visited between giving urgent requests a chance to run,
+     * so that a single huge directory doesn't hold them up.
+     */
+    private static final int YIELD_INTERVAL = 64;
+
+    /**
+     * When enabled, directory scans overlap walking, metadata extraction and
+     * database writes using a {@link ScanPipeline}.
+     */
+    private static final boolean ENABLE_PIPELINE = SystemProperties
+            .getBoolean("persist.sys.scanner_pipeline", true);
+
+    /** Number of threads extracting metadata in parallel */
+    private static final int PIPELINE_WORKERS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    /** Number of items that can be in-flight before the walker blocks */
+    private static final int PIPELINE_DEPTH = 4 * BATCH_SIZE;
+    /**
+     * Number of items a walk scans serially before starting a pipeline, so
+     * that small scans don't pay for spinning up its threads.
+     */
+    private static final int PIPELINE_THRESHOLD = BATCH_SIZE;
+
+    /**
+     * When enabled, directory scans consult the {@code scan_journal} table to
+     * skip directories whose contents haven't changed since they were last
+     * indexed. When disabled, every scan is a full verification pass.
+     */
+    private static final boolean ENABLE_JOURNAL = SystemProperties
+            .getBoolean("persist.sys.scanner_journal", true);
+
+    /**
+     * Interval after which a directory scan ignores the journal and performs a
+     * full verification pass, to recover from any changes that don't affect
+     * directory fingerprints, such as files being modified in place.
+     */
+    private static final long FULL_VERIFY_INTERVAL = WEEK_IN_MILLIS;
+
+    /**
+     * When enabled, directory scans periodically record their progress in the
+     * {@code scan_checkpoint} table, so that a scan which is canceled part way
+     * through resumes from that point the next time it runs.
+     */
+    private static final boolean ENABLE_CHECKPOINT = SystemProperties
+            .getBoolean("persist.sys.scanner_checkpoint", true);
+
+    /**
+     * When enabled, thumbnails of newly inserted images and videos are
+     * generated by a {@link ThumbnailPregenerator} behind the scan, instead
+     * of waiting until they're first requested.
+     */
+    private static final boolean ENABLE_THUMBNAIL_PREGEN = SystemProperties
+            .getBoolean("persist.sys.scanner_thumbnail_pregen", true);
+
+    /** Minimum interval between recording checkpoints during a scan */
+    @VisibleForTesting
+    static final long CHECKPOINT_INTERVAL_MS = 10 * SECOND_IN_MILLIS;
+
+    /**
+     * Age after which an interrupted scan is started again from scratch
+     * instead of being resumed, since directories it already processed may
+     * have drifted too far in the meantime.
+     */
+    private static final long CHECKPOINT_MAX_AGE = WEEK_IN_MILLIS;
+
     private static final Pattern PATTERN_VISIBLE = Pattern.compile(
             "(?i)^/storage/[^/]+(?:/[0-9]+)?(?:/Android/sandbox/([^/]+))?$");
     private static final Pattern PATTERN_INVISIBLE = Pattern.compile(
             "(?i)^/storage/[^/]+(?:/[0-9]+)?(?:/Android/sandbox/([^/]+))?/Android/(?:data|obb)$");
 
-    private final Context mContext;
+    /** Minimum interval between checkpoints, which tests may shorten */
+    @VisibleForTesting
+    static long sCheckpointIntervalMs = CHECKPOINT_INTERVAL_MS;
+    /** Listener told about each directory recorded as a checkpoint, for tests */
+    @VisibleForTesting
+    static Consumer<File> sCheckpointListener;
 
     /**
-     * Map from volume name to signals that can be used to cancel any active
-     * scan operations on those volumes.
+     * Map from volume name to the signals of all active scan operations on
+     * those volumes, so they can be canceled when the volume is detached.
+     * Shared by all instances, since each caller creates its own scanner.
      */
-    @GuardedBy("mSignals")
-    private final ArrayMap<String, CancellationSignal> mSignals = new ArrayMap<>();
+    @GuardedBy("sSignals")
+    private static final ArrayMap<String, ArraySet<CancellationSignal>> sSignals =
+            new ArrayMap<>();
+
+    private final Context mContext;
 
     public ModernMediaScanner(Context context) {
         mContext = context;
@@ -162,7 +249,12 @@ public class ModernMediaScanner implements MediaScanner {
 
     @Override
     public void scanDirectory(File file) {
-        try (Scan scan = new Scan(file)) {
+        scanDirectory(file, null);
+    }
+
+    @Override
+    public void scanDirectory(File file, @Nullable CancellationSignal signal) {
+        try (Scan scan = new Scan(file, signal)) {
             scan.run();
         } catch (OperationCanceledException ignored) {
         }
@@ -170,7 +262,7 @@ public class ModernMediaScanner implements MediaScanner {
 
     @Override
     public Uri scanFile(File file) {
-        try (Scan scan = new Scan(file)) {
+        try (Scan scan = new Scan(file, null)) {
             scan.run();
             return scan.mFirstResult;
         } catch (OperationCanceledException ignored) {
@@ -180,22 +272,37 @@ public class ModernMediaScanner implements MediaScanner {
 
     @Override
     public void onDetachVolume(String volumeName) {
-        synchronized (mSignals) {
-            final CancellationSignal signal = mSignals.remove(volumeName);
-            if (signal != null) {
-                signal.cancel();
+        synchronized (sSignals) {
+            final ArraySet<CancellationSignal> signals = sSignals.remove(volumeName);
+            if (signals != null) {
+                for (CancellationSignal signal : signals) {
+                    signal.cancel();
+                }
             }
         }
+        HiddenDirectoryCache.forgetVolume(volumeName);
     }
 
-    private CancellationSignal getOrCreateSignal(String volumeName) {
-        synchronized (mSignals) {
-            CancellationSignal signal = mSignals.get(volumeName);
-            if (signal == null) {
-                signal = new CancellationSignal();
-                mSignals.put(volumeName, signal);
+    private static void registerSignal(String volumeName, CancellationSignal signal) {
+        synchronized (sSignals) {
+            ArraySet<CancellationSignal> signals = sSignals.get(volumeName);
+            if (signals == null) {
+                signals = new ArraySet<>();
+                sSignals.put(volumeName, signals);
+            }
+            signals.add(signal);
+        }
+    }
+
+    private static void unregisterSignal(String volumeName, CancellationSignal signal) {
+        synchronized (sSignals) {
+            final ArraySet<CancellationSignal> signals = sSignals.get(volumeName);
+            if (signals != null) {
+                signals.remove(signal);
+                if (signals.isEmpty()) {
+                    sSignals.remove(volumeName);
+                }
             }
-            return signal;
         }
     }
 
@@ -212,16 +319,72 @@ public class ModernMediaScanner implements MediaScanner {
         private final String mVolumeName;
         private final Uri mFilesUri;
         private final CancellationSignal mSignal;
+        /** Signal of the caller that requested this scan, if any */
+        private final CancellationSignal mCallerSignal;
 
         private final boolean mSingleFile;
+        /** Sidecars relevant to {@link #mRoot} when scanning a single file */
+        private final SidecarIndex mSingleFileSidecars;
+        private final HiddenDirectoryCache mHiddenCache;
         private final ArrayList<ContentProviderOperation> mPending = new ArrayList<>();
-        private LongArray mScannedIds = new LongArray();
+        @GuardedBy("mScannedIds")
+        private final LongArray mScannedIds = new LongArray();
         private LongArray mUnknownIds = new LongArray();
         private LongArray mPlaylistIds = new LongArray();
 
+        /**
+         * Pipeline used while walking a directory, started once the walk has
+         * found enough items to scan; when present, all {@link #mPending}
+         * operations are owned by its writer thread until
+         * {@link ScanPipeline#finish()} returns.
+         */
+        private ScanPipeline<ContentProviderOperation> mPipeline;
+        /** When set, this scan starts {@link #mPipeline} once worthwhile */
+        private final boolean mUsePipeline;
+        /** Number of items scanned before {@link #mPipeline} was started */
+        private int mSerialScans;
+        /** Number of files visited since we last yielded */
+        private int mVisitedSinceYield;
+
+        @GuardedBy("mScannedIds")
         private Uri mFirstResult;
 
-        public Scan(File root) {
+        /**
+         * State of each directory currently being walked, with the innermost
+         * directory last.
+         */
+        private final ArrayList<DirectoryState> mDirectories = new ArrayList<>();
+
+        /**
+         * Local provider instance, used for bulk operations that aren't
+         * expressible through {@link ContentResolver}, or {@code null} when
+         * not available.
+         */
+        private final MediaProvider mProvider;
+        /** When set, this scan uses the {@code scan_journal} table */
+        private final boolean mUseJournal;
+        /** Fingerprints recorded during the last completed scan */
+        private ArrayMap<String, DirectoryFingerprint> mJournal;
+        /** Fingerprints measured during this scan */
+        private final ArrayMap<String, DirectoryFingerprint> mJournalUpdates = new ArrayMap<>();
+        /** Fingerprints measured since the last checkpoint was recorded */
+        private final ArrayMap<String, DirectoryFingerprint> mJournalUnsaved = new ArrayMap<>();
+        /** When set, ignore {@link #mJournal} and examine every item */
+        private boolean mFullVerify = true;
+        private final long mStartTime = System.currentTimeMillis();
+
+        /** When set, this scan uses the {@code scan_checkpoint} table */
+        private final boolean mUseCheckpoint;
+        /** Generation of this scan, as recorded in any checkpoints */
+        private long mGeneration;
+        /** Checkpoint left by an interrupted scan we're resuming, if any */
+        private ScanCheckpoint mResumeFrom;
+        private long mLastCheckpointTime = SystemClock.elapsedRealtime();
+
+        /** Stage generating thumbnails of inserted items, if enabled */
+        private final ThumbnailPregenerator mPregenerator;
+
+        public Scan(File root, @Nullable CancellationSignal callerSignal) {
             Trace.traceBegin(TRACE_TAG_DATABASE, "ctor");
 
             mClient = mContext.getContentResolver()
@@ -231,15 +394,40 @@ public class ModernMediaScanner implements MediaScanner {
             mRoot = root;
             mVolumeName = MediaStore.getVolumeName(root);
             mFilesUri = MediaStore.setIncludePending(MediaStore.Files.getContentUri(mVolumeName));
-            mSignal = getOrCreateSignal(mVolumeName);
+            mSignal = new CancellationSignal();
+            registerSignal(mVolumeName, mSignal);
+            mCallerSignal = callerSignal;
+            if (mCallerSignal != null) {
+                mCallerSignal.setOnCancelListener(mSignal::cancel);
+            }
 
             mSingleFile = mRoot.isFile();
+            mSingleFileSidecars = mSingleFile ? SidecarIndex.forFile(mRoot) : null;
+            mHiddenCache = HiddenDirectoryCache.forVolume(mVolumeName);
+            if (mClient.getLocalContentProvider() instanceof MediaProvider) {
+                mProvider = (MediaProvider) mClient.getLocalContentProvider();
+            } else {
+                mProvider = null;
+            }
+            mUseJournal = ENABLE_JOURNAL && !mSingleFile && (mProvider != null);
+            mUseCheckpoint = ENABLE_CHECKPOINT && !mSingleFile && (mProvider != null);
+            if (ENABLE_THUMBNAIL_PREGEN && mProvider != null) {
+                mPregenerator = new ThumbnailPregenerator(mContext, mProvider, mSignal);
+            } else {
+                mPregenerator = null;
+            }
+            mUsePipeline = ENABLE_PIPELINE && !mSingleFile;
 
             Trace.traceEnd(TRACE_TAG_DATABASE);
         }
 
         @Override
         public void run() {
+            // Load the journal left by any previous scan, and decide if this
+            // pass needs to verify everything
+            loadJournal();
+            loadCheckpoint();
+
             // First, scan everything that should be visible under requested
             // location, tracking scanned IDs along the way
             walkFileTree();
@@ -257,14 +445,155 @@ public class ModernMediaScanner implements MediaScanner {
             if (mPlaylistIds.size() > 0) {
                 resolvePlaylists();
             }
+
+            // Finally, now that the database reflects everything we walked,
+            // remember the directory fingerprints for next time
+            saveJournal();
+            completeCheckpoint();
+        }
+
+        private void loadJournal() {
+            if (!mUseJournal) return;
+
+            Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "loadJournal");
+            try {
+                mJournal = mProvider.queryScanJournal(mVolumeName, mRoot.getAbsolutePath());
+                final DirectoryFingerprint root = mJournal.get(mRoot.getAbsolutePath());
+                mFullVerify = (root == null)
+                        || (mStartTime - root.dateVerified > FULL_VERIFY_INTERVAL)
+                        || (mStartTime < root.dateVerified);
+                if (LOGD) Log.d(TAG, "Loaded " + mJournal.size() + " journal entries for "
+                        + mRoot + "; full verify " + mFullVerify);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+            }
+        }
+
+        private void saveJournal() {
+            if (!mUseJournal) return;
+
+            mSignal.throwIfCanceled();
+            Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "saveJournal");
+            try {
+                mProvider.replaceScanJournal(mVolumeName, mRoot.getAbsolutePath(),
+                        mJournalUpdates);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+            }
+        }
+
+        private void loadCheckpoint() {
+            if (!mUseCheckpoint) return;
+
+            final String rootPath = mRoot.getAbsolutePath();
+            final ScanCheckpoint checkpoint = mProvider.queryScanCheckpoint(mVolumeName,
+                    rootPath);
+            if (checkpoint == null) {
+                mGeneration = 1;
+            } else if (checkpoint.lastPath != null
+                    && checkpoint.lastPath.startsWith(rootPath + '/')
+                    && mStartTime - checkpoint.dateModified < CHECKPOINT_MAX_AGE
+                    && mStartTime >= checkpoint.dateModified) {
+                mGeneration = checkpoint.generation;
+                mResumeFrom = checkpoint;
+            } else {
+                mGeneration = checkpoint.generation + 1;
+            }
+            if (LOGD) Log.d(TAG, "Starting generation " + mGeneration + " of " + mRoot
+                    + ((mResumeFrom != null) ? "; resuming after " + mResumeFrom.lastPath : ""));
+        }
+
+        /**
+         * Record that the given directory has been fully processed, once all
+         * pending writes have landed, so an interrupted scan can resume from
+         * there later.
+         */
+        private void maybeCheckpoint(File dir) {
+            if (!mUseCheckpoint) return;
+            if (dir.equals(mRoot)) return;
+
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mLastCheckpointTime < sCheckpointIntervalMs) return;
+            mLastCheckpointTime = now;
+
+            Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "checkpoint");
+            try {
+                if (mPipeline != null) {
+                    mPipeline.flush();
+                }
+                applyPending();
+                mProvider.updateScanCheckpoint(mVolumeName, mRoot.getAbsolutePath(),
+                        new ScanCheckpoint(mGeneration, dir.getAbsolutePath(),
+                                System.currentTimeMillis()),
+                        mJournalUnsaved);
+                mJournalUnsaved.clear();
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+            }
+            if (sCheckpointListener != null) {
+                sCheckpointListener.accept(dir);
+            }
+        }
+
+        private void completeCheckpoint() {
+            if (!mUseCheckpoint) return;
+
+            mSignal.throwIfCanceled();
+            mProvider.completeScanCheckpoint(mVolumeName, mRoot.getAbsolutePath());
+        }
+
+        /**
+         * Account for a directory which was fully processed before the
+         * checkpoint we're resuming from, without walking it again.
+         */
+        private void skipCompleted(File dir) {
+            if (LOGV) Log.v(TAG, "Skipping completed directory " + dir);
+            final String path = dir.getAbsolutePath();
+
+            // Everything already indexed below this directory was seen by the
+            // interrupted scan, so keep it through reconciliation
+            Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "skipCompleted");
+            try (Cursor c = mResolver.query(mFilesUri, new String[] { FileColumns._ID },
+                    FileColumns.DATA + "=? OR (" + FileColumns.DATA + ">? AND "
+                            + FileColumns.DATA + "<?)",
+                    new String[] { path, path + '/', path + '0' }, null, mSignal)) {
+                while (c.moveToNext()) {
+                    final long id = c.getLong(0);
+                    noteScanned(id, MediaStore.Files.getContentUri(mVolumeName, id));
+                }
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+            }
+
+            // Carry over the fingerprints recorded by the interrupted scan
+            if (mJournal != null) {
+                for (int i = 0; i < mJournal.size(); i++) {
+                    final String key = mJournal.keyAt(i);
+                    if (key.equals(path) || key.startsWith(path + '/')) {
+                        mJournalUpdates.put(key, mJournal.valueAt(i));
+                    }
+                }
+            }
+        }
+
+        private void recordFingerprint(File dir, DirectoryFingerprint fingerprint) {
+            mJournalUpdates.put(dir.getAbsolutePath(), fingerprint);
+            if (mUseCheckpoint) {
+                mJournalUnsaved.put(dir.getAbsolutePath(), fingerprint);
+            }
         }
 
         private void walkFileTree() {
             mSignal.throwIfCanceled();
-            if (!isDirectoryHiddenRecursive(mSingleFile ? mRoot.getParentFile() : mRoot)) {
+            if (!mHiddenCache.isHiddenRecursive(mSingleFile ? mRoot.getParentFile() : mRoot)) {
                 Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "walkFileTree");
                 try {
-                    Files.walkFileTree(mRoot.toPath(), this);
+                    walkSorted(mRoot.toPath());
+                    if (mPipeline != null) {
+                        // Wait for all in-flight items to be extracted and
+                        // handed to the writer before continuing
+                        mPipeline.finish();
+                    }
                 } catch (IOException e) {
                     // This should never happen, so yell loudly
                     throw new IllegalStateException(e);
@@ -275,10 +604,72 @@ public class ModernMediaScanner implements MediaScanner {
             }
         }
 
+        /**
+         * Equivalent to {@link Files#walkFileTree(Path, FileVisitor)}, except
+         * that the entries of each directory are visited sorted by name, so
+         * that the walk order is stable and an interrupted scan can resume.
+         */
+        private FileVisitResult walkSorted(Path path) throws IOException {
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                return visitFileFailed(path, e);
+            }
+            if (!attrs.isDirectory()) {
+                return visitFile(path, attrs);
+            }
+
+            FileVisitResult result = preVisitDirectory(path, attrs);
+            if (result == FileVisitResult.SKIP_SUBTREE) {
+                return FileVisitResult.CONTINUE;
+            } else if (result != FileVisitResult.CONTINUE) {
+                return result;
+            }
+
+            // Entries were already listed and sorted when visiting the directory
+            IOException failure = null;
+            final DirectoryState state = peekDirectory();
+            final String[] names = state.names;
+            if (names == null) {
+                failure = new IOException("Failed to list " + path);
+            } else {
+                state.sidecars = SidecarIndex.build(path.toFile(), names);
+                for (String name : names) {
+                    result = walkSorted(path.resolve(name));
+                    if (result == FileVisitResult.SKIP_SIBLINGS) {
+                        break;
+                    } else if (result == FileVisitResult.TERMINATE) {
+                        return result;
+                    }
+                }
+            }
+            return postVisitDirectory(path, failure);
+        }
+
         private void reconcileAndClean() {
-            final long[] scannedIds = mScannedIds.toArray();
+            final long[] scannedIds;
+            synchronized (mScannedIds) {
+                scannedIds = mScannedIds.toArray();
+            }
             Arrays.sort(scannedIds);
 
+            // When we have direct access to the provider, clean everything
+            // with a single set-based statement
+            if (mProvider != null) {
+                mSignal.throwIfCanceled();
+                Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "reconcileAndClean");
+                try {
+                    final int count = mProvider.deleteUnscannedItems(mVolumeName,
+                            mRoot.getAbsolutePath(), scannedIds, mSignal);
+                    if (LOGD) Log.d(TAG, "Cleaned " + count + " items under " + mRoot);
+                } finally {
+                    Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+                }
+                return;
+            }
+
             // The query phase is split from the delete phase so that our query
             // remains stable if we need to paginate across multiple windows.
             mSignal.throwIfCanceled();
@@ -322,8 +713,10 @@ public class ModernMediaScanner implements MediaScanner {
         }
 
         private void resolvePlaylists() {
-            mSignal.throwIfCanceled();
             for (int i = 0; i < mPlaylistIds.size(); i++) {
+                mSignal.throwIfCanceled();
+                ScanScheduler.yieldIfNeeded();
+
                 final Uri uri = MediaStore.Files.getContentUri(mVolumeName, mPlaylistIds.get(i));
                 try {
                     mPending.addAll(
@@ -338,8 +731,17 @@ public class ModernMediaScanner implements MediaScanner {
 
         @Override
         public void close() {
-            // Sanity check that we drained any pending operations
-            if (!mPending.isEmpty()) {
+            if (mPipeline != null) {
+                mPipeline.close();
+            }
+            if (mCallerSignal != null) {
+                mCallerSignal.setOnCancelListener(null);
+            }
+            unregisterSignal(mVolumeName, mSignal);
+
+            // Sanity check that we drained any pending operations, unless we
+            // were canceled part way through
+            if (!mPending.isEmpty() && !mSignal.isCanceled()) {
                 throw new IllegalStateException();
             }
 
@@ -352,66 +754,301 @@ public class ModernMediaScanner implements MediaScanner {
             // Possibly bail before digging into each directory
             mSignal.throwIfCanceled();
 
-            if (isDirectoryHidden(dir.toFile())) {
+            // Give any urgent requests a chance to run between directories
+            ScanScheduler.yieldIfNeeded();
+            mVisitedSinceYield = 0;
+
+            final File realDir = dir.toFile();
+            final DirectoryState parent = peekDirectory();
+            if (parent != null) {
+                parent.childDirs++;
+            }
+            if (mHiddenCache.isHidden(realDir, attrs.lastModifiedTime().toMillis())) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            if (mResumeFrom != null && mResumeFrom.isCompleted(realDir.getAbsolutePath())) {
+                skipCompleted(realDir);
                 return FileVisitResult.SKIP_SUBTREE;
             }
 
             // Scan this directory as a normal file so that "parent" database
             // entries are created
-            return visitFile(dir, attrs);
+            final long dirId = visitItem(realDir, attrs);
+
+            // List the directory once, both to fingerprint it and to walk it
+            final String[] names = realDir.list();
+            if (names != null) {
+                Arrays.sort(names);
+            }
+
+            // Load everything we already know about the children of this
+            // directory in a single query, so that visiting each child
+            // doesn't need its own round trip
+            final DirectorySnapshot snapshot = loadSnapshot(realDir, dirId);
+
+            // If nothing has been added, removed or renamed since we last
+            // indexed this directory, we can trust the snapshot completely
+            final DirectoryFingerprint fingerprint;
+            final DirectoryFingerprint known;
+            if (mUseJournal) {
+                fingerprint = DirectoryFingerprint.measure(names, attrs);
+                known = (mJournal != null) ? mJournal.get(realDir.getAbsolutePath()) : null;
+            } else {
+                fingerprint = null;
+                known = null;
+            }
+            final boolean unchanged = !mFullVerify && snapshot != null
+                    && fingerprint != null && fingerprint.matches(known);
+            if (unchanged) {
+                if (LOGV) Log.v(TAG, "Skipping unchanged directory " + realDir);
+                for (int i = 0; i < snapshot.size(); i++) {
+                    final long id = snapshot.getId(i);
+                    noteScanned(id, MediaStore.Files.getContentUri(mVolumeName, id));
+                }
+                if (known.childDirs == 0) {
+                    // Nothing below us can have changed either
+                    recordFingerprint(realDir, fingerprint.withChildDirs(0, known.dateVerified));
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+
+            final DirectoryState state = new DirectoryState(realDir, snapshot, fingerprint,
+                    unchanged ? known.dateVerified : mStartTime, unchanged);
+            state.names = names;
+            mDirectories.add(state);
+            return FileVisitResult.CONTINUE;
         }
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
-            if (LOGV) Log.v(TAG, "Visiting " + file);
+            if (++mVisitedSinceYield >= YIELD_INTERVAL) {
+                mVisitedSinceYield = 0;
+                mSignal.throwIfCanceled();
+                ScanScheduler.yieldIfNeeded();
+            }
+
+            final File realFile = file.toFile();
+            final DirectoryState parent = peekDirectory();
+            if (parent != null && parent.unchanged && parent.isParentOf(realFile)) {
+                // Already accounted for when we visited the parent
+                return FileVisitResult.CONTINUE;
+            }
+            visitItem(realFile, attrs);
+            return FileVisitResult.CONTINUE;
+        }
+
+        private @Nullable DirectoryState peekDirectory() {
+            return mDirectories.isEmpty() ? null : mDirectories.get(mDirectories.size() - 1);
+        }
+
+        /**
+         * Visit a single file or directory, scanning it when it's new or has
+         * changed since it was last scanned.
+         *
+         * @return the ID of the existing database item, or {@code -1} if the
+         *         item wasn't already known.
+         */
+        private long visitItem(File realFile, BasicFileAttributes attrs) {
+            return visitItem(realFile, attrs, false);
+        }
+
+        /**
+         * Visit a single file or directory, optionally scanning it even when
+         * it hasn't changed, such as when only its sidecar changed.
+         */
+        private long visitItem(File realFile, BasicFileAttributes attrs, boolean force) {
+            if (LOGV) Log.v(TAG, "Visiting " + realFile);
+
+            final SidecarIndex sidecars = attrs.isDirectory() ? null : findSidecars(realFile);
+            if (sidecars != null && sidecars.noteVisited(realFile)) {
+                force = true;
+            }
 
             // Skip files that have already been scanned, and which haven't
             // changed since they were last scanned
-            final File realFile = file.toFile();
             long existingId = -1;
+            long dateModified = 0;
+            long size = 0;
             Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "checkChanged");
-            try (Cursor c = mResolver.query(mFilesUri,
-                    new String[] { FileColumns._ID, FileColumns.DATE_MODIFIED, FileColumns.SIZE },
-                    FileColumns.DATA + "=?", new String[] { realFile.getAbsolutePath() }, null)) {
-                if (c.moveToFirst()) {
-                    existingId = c.getLong(0);
-                    final long dateModified = c.getLong(1);
-                    final long size = c.getLong(2);
-
-                    // Remember visiting this existing item, even if we skipped
-                    // due to it being unchanged; this is needed so we don't
-                    // delete the item during a later cleaning phase
-                    mScannedIds.add(existingId);
-
-                    // We also technically found our first result
-                    if (mFirstResult == null) {
-                        mFirstResult = MediaStore.Files.getContentUri(mVolumeName, existingId);
+            try {
+                final DirectoryState parent = peekDirectory();
+                final DirectorySnapshot snapshot = (parent != null) ? parent.snapshot : null;
+                final int index = (snapshot != null && snapshot.isParentOf(realFile))
+                        ? snapshot.indexOf(realFile.getName()) : -1;
+                if (index >= 0) {
+                    existingId = snapshot.getId(index);
+                    dateModified = snapshot.getDateModified(index);
+                    size = snapshot.getSize(index);
+                } else {
+                    // Snapshots are keyed by the parent column, which may be
+                    // stale, so confirm by path before treating it as new;
+                    // otherwise its insert would fail on the unique path
+                    try (Cursor c = mResolver.query(mFilesUri,
+                            new String[] {
+                                    FileColumns._ID, FileColumns.DATE_MODIFIED, FileColumns.SIZE
+                            },
+                            FileColumns.DATA + "=?", new String[] { realFile.getAbsolutePath() },
+                            null)) {
+                        if (c.moveToFirst()) {
+                            existingId = c.getLong(0);
+                            dateModified = c.getLong(1);
+                            size = c.getLong(2);
+                        }
                     }
+                }
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+            }
 
-                    final boolean sameTime = (lastModifiedTime(realFile, attrs) == dateModified);
-                    final boolean sameSize = (attrs.size() == size);
-                    if (attrs.isDirectory() || (sameTime && sameSize)) {
-                        if (LOGV) Log.v(TAG, "Skipping unchanged " + file);
-                        return FileVisitResult.CONTINUE;
-                    }
+            if (existingId != -1) {
+                // Remember visiting this existing item, even if we skipped
+                // due to it being unchanged; this is needed so we don't
+                // delete the item during a later cleaning phase. We also
+                // technically found our first result.
+                noteScanned(existingId, MediaStore.Files.getContentUri(mVolumeName, existingId));
+
+                final boolean sameTime = (lastModifiedTime(realFile, attrs) == dateModified);
+                final boolean sameSize = (attrs.size() == size);
+                if (attrs.isDirectory() || (sameTime && sameSize && !force)) {
+                    if (LOGV) Log.v(TAG, "Skipping unchanged " + realFile);
+                    return existingId;
+                }
+            }
+
+            final File sidecar;
+            if (sidecars != null) {
+                sidecars.noteScanned(realFile);
+                sidecar = sidecars.getSidecar(realFile);
+            } else {
+                sidecar = null;
+            }
+
+            if (mPipeline == null && mUsePipeline && ++mSerialScans > PIPELINE_THRESHOLD) {
+                startPipeline();
+            }
+            final long id = existingId;
+            if (mPipeline != null) {
+                mPipeline.submit(() -> scanItemTraced(id, realFile, sidecar, attrs));
+            } else {
+                final ContentProviderOperation op = scanItemTraced(id, realFile,
+                        sidecar, attrs);
+                if (op != null) {
+                    mPending.add(op);
+                    maybeApplyPending();
+                }
+            }
+
+            if (sidecars != null && SidecarIndex.isSidecarName(realFile.getName())) {
+                rescanPrimaries(realFile, sidecars);
+            }
+            return existingId;
+        }
+
+        /**
+         * Hand all further scanning to a {@link ScanPipeline}, once everything
+         * scanned serially so far has landed, so that results stay in order.
+         */
+        private void startPipeline() {
+            applyPending();
+            if (LOGD) Log.d(TAG, "Starting pipeline for " + mRoot);
+            mPipeline = new ScanPipeline<>(TAG, mSignal, PIPELINE_WORKERS, PIPELINE_DEPTH,
+                    (op) -> {
+                        mPending.add(op);
+                        maybeApplyPending();
+                    });
+        }
+
+        /**
+         * Return the sidecars known for the directory containing the given
+         * file, or {@code null} when there are none.
+         */
+        private @Nullable SidecarIndex findSidecars(File file) {
+            if (mSingleFile) {
+                return mSingleFileSidecars;
+            }
+            final DirectoryState parent = peekDirectory();
+            if (parent != null && parent.sidecars != null && parent.sidecars.isParentOf(file)) {
+                return parent.sidecars;
+            }
+            return null;
+        }
+
+        /**
+         * The given sidecar changed, so make sure that every file it describes
+         * is scanned again to pick up its values. Files that haven't been
+         * visited yet are scanned when we get to them.
+         */
+        private void rescanPrimaries(File sidecar, SidecarIndex sidecars) {
+            if (mSingleFile) {
+                // Land the sidecar itself first, so it remains our result
+                applyPending();
+            }
+
+            final File dir = sidecar.getParentFile();
+            for (String name : sidecars.getPrimaries(sidecar)) {
+                if (sidecars.isScanned(name)) continue;
+                if (!mSingleFile && !sidecars.isVisited(name)) {
+                    sidecars.markStale(name);
+                    continue;
+                }
+
+                final File primary = new File(dir, name);
+                final BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(primary.toPath(), BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    if (LOGW) Log.w(TAG, "Failed to rescan " + primary + ": " + e);
+                    continue;
                 }
+                if (LOGV) Log.v(TAG, "Rescanning " + primary + " after sidecar changed");
+                visitItem(primary, attrs, true);
+            }
+        }
+
+        /**
+         * Load a snapshot of all known children of the given directory. When
+         * the directory itself isn't known yet, we return {@code null} so that
+         * children fall back to being checked individually.
+         */
+        private @Nullable DirectorySnapshot loadSnapshot(File dir, long dirId) {
+            if (dirId == -1) return null;
+
+            Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "loadSnapshot");
+            try (Cursor c = mResolver.query(mFilesUri,
+                    new String[] {
+                            FileColumns._ID, FileColumns.DATA,
+                            FileColumns.DATE_MODIFIED, FileColumns.SIZE
+                    },
+                    FileColumns.PARENT + "=?", new String[] { String.valueOf(dirId) }, null)) {
+                return DirectorySnapshot.fromCursor(dir, c);
             } finally {
                 Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
             }
+        }
 
-            final ContentProviderOperation op;
+        private @Nullable ContentProviderOperation scanItemTraced(long existingId, File file,
+                @Nullable File sidecar, BasicFileAttributes attrs) {
             Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "scanItem");
             try {
-                op = scanItem(existingId, file.toFile(), attrs, mVolumeName);
+                return scanItem(existingId, file, sidecar, attrs, mVolumeName);
             } finally {
                 Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
             }
-            if (op != null) {
-                mPending.add(op);
-                maybeApplyPending();
+        }
+
+        /**
+         * Remember that we've visited the given item, which may be called from
+         * both the walker and writer stages of {@link #mPipeline}.
+         */
+        private void noteScanned(long id, Uri uri) {
+            synchronized (mScannedIds) {
+                mScannedIds.add(id);
+                if (mFirstResult == null) {
+                    mFirstResult = uri;
+                }
             }
-            return FileVisitResult.CONTINUE;
         }
 
         @Override
@@ -424,6 +1061,19 @@ public class ModernMediaScanner implements MediaScanner {
         @Override
         public FileVisitResult postVisitDirectory(Path dir, IOException exc)
                 throws IOException {
+            // Every preVisitDirectory() that returned CONTINUE pushed exactly
+            // one state
+            if (mDirectories.isEmpty()) {
+                return FileVisitResult.CONTINUE;
+            }
+            final DirectoryState state = mDirectories.remove(mDirectories.size() - 1);
+            if (exc == null) {
+                if (state.fingerprint != null) {
+                    recordFingerprint(state.dir,
+                            state.fingerprint.withChildDirs(state.childDirs, state.dateVerified));
+                }
+                maybeCheckpoint(state.dir);
+            }
             return FileVisitResult.CONTINUE;
         }
 
@@ -443,11 +1093,11 @@ public class ModernMediaScanner implements MediaScanner {
 
                     Uri uri = result.uri;
                     if (uri != null) {
-                        if (mFirstResult == null) {
-                            mFirstResult = uri;
+                        noteScanned(ContentUris.parseId(uri), uri);
+                        if (mPregenerator != null && operation.isInsert()
+                                && isVisualMedia(uri)) {
+                            mPregenerator.enqueue(uri);
                         }
-                        final long id = ContentUris.parseId(uri);
-                        mScannedIds.add(id);
                     }
 
                     // Some operations don't return a URI, so check the original if necessary
@@ -469,13 +1119,49 @@ public class ModernMediaScanner implements MediaScanner {
         }
     }
 
+    /**
+     * State tracked for each directory while {@link Scan} is walking inside it.
+     */
+    private static class DirectoryState {
+        final File dir;
+        /** Known children of this directory, or {@code null} if unknown */
+        final @Nullable DirectorySnapshot snapshot;
+        /** Fingerprint measured before walking, or {@code null} if unknown */
+        final @Nullable DirectoryFingerprint fingerprint;
+        final long dateVerified;
+        /** Set when the journal showed no changes since we last indexed it */
+        final boolean unchanged;
+        /** Number of child directories encountered so far */
+        int childDirs;
+        /** Sorted names of all entries, or {@code null} if it couldn't be listed */
+        @Nullable String[] names;
+        /** Sidecars found while listing this directory, if any */
+        @Nullable SidecarIndex sidecars;
+
+        DirectoryState(File dir, DirectorySnapshot snapshot, DirectoryFingerprint fingerprint,
+                long dateVerified, boolean unchanged) {
+            this.dir = dir;
+            this.snapshot = snapshot;
+            this.fingerprint = fingerprint;
+            this.dateVerified = dateVerified;
+            this.unchanged = unchanged;
+        }
+
+        boolean isParentOf(File file) {
+            return dir.equals(file.getParentFile());
+        }
+    }
+
     /**
      * Scan the requested file, returning a {@link ContentProviderOperation}
      * containing all indexed metadata, suitable for passing to a
      * {@link SQLiteDatabase#replace} operation.
+     *
+     * @param sidecar XMP sidecar describing the file, if any, whose values
+     *            are merged with any XMP metadata embedded in the file.
      */
     private static @Nullable ContentProviderOperation scanItem(long existingId, File file,
-            BasicFileAttributes attrs, String volumeName) {
+            @Nullable File sidecar, BasicFileAttributes attrs, String volumeName) {
         final String name = file.getName();
         if (name.startsWith(".")) {
             if (LOGD) Log.d(TAG, "Ignoring hidden file: " + file);
@@ -495,11 +1181,11 @@ public class ModernMediaScanner implements MediaScanner {
             } else if (MediaFile.isPlayListMimeType(mimeType)) {
                 return scanItemPlaylist(existingId, file, attrs, mimeType, volumeName);
             } else if (MediaFile.isAudioMimeType(mimeType)) {
-                return scanItemAudio(existingId, file, attrs, mimeType, volumeName);
+                return scanItemAudio(existingId, file, sidecar, attrs, mimeType, volumeName);
             } else if (MediaFile.isVideoMimeType(mimeType)) {
-                return scanItemVideo(existingId, file, attrs, mimeType, volumeName);
+                return scanItemVideo(existingId, file, sidecar, attrs, mimeType, volumeName);
             } else if (MediaFile.isImageMimeType(mimeType)) {
-                return scanItemImage(existingId, file, attrs, mimeType, volumeName);
+                return scanItemImage(existingId, file, sidecar, attrs, mimeType, volumeName);
             } else {
                 return scanItemFile(existingId, file, attrs, mimeType, volumeName);
             }
@@ -534,15 +1220,41 @@ public class ModernMediaScanner implements MediaScanner {
 
     /**
      * Populate the given {@link ContentProviderOperation} with the generic
-     * {@link MediaColumns} values using the given XMP metadata.
+     * {@link MediaColumns} values using the given XMP metadata. Values
+     * embedded in the file itself win over those from its sidecar, which only
+     * fill in what's missing.
      */
     private static void withXmpValues(ContentProviderOperation.Builder op,
-            XmpInterface xmp, String mimeType) {
-        op.withValue(MediaColumns.MIME_TYPE,
-                maybeOverrideMimeType(mimeType, xmp.getFormat()));
-        op.withValue(MediaColumns.DOCUMENT_ID, xmp.getDocumentId());
-        op.withValue(MediaColumns.INSTANCE_ID, xmp.getInstanceId());
-        op.withValue(MediaColumns.ORIGINAL_DOCUMENT_ID, xmp.getOriginalDocumentId());
+            XmpInterface xmp, @Nullable XmpInterface sidecar, String mimeType) {
+        String format = xmp.getFormat();
+        String documentId = xmp.getDocumentId();
+        String instanceId = xmp.getInstanceId();
+        String originalDocumentId = xmp.getOriginalDocumentId();
+        if (sidecar != null) {
+            format = XmpInterface.maybeOverride(format, sidecar.getFormat());
+            documentId = XmpInterface.maybeOverride(documentId, sidecar.getDocumentId());
+            instanceId = XmpInterface.maybeOverride(instanceId, sidecar.getInstanceId());
+            originalDocumentId = XmpInterface.maybeOverride(originalDocumentId,
+                    sidecar.getOriginalDocumentId());
+        }
+        op.withValue(MediaColumns.MIME_TYPE, maybeOverrideMimeType(mimeType, format));
+        op.withValue(MediaColumns.DOCUMENT_ID, documentId);
+        op.withValue(MediaColumns.INSTANCE_ID, instanceId);
+        op.withValue(MediaColumns.ORIGINAL_DOCUMENT_ID, originalDocumentId);
+    }
+
+    /**
+     * Parse the given XMP sidecar, if any. A troubled sidecar is ignored
+     * instead of failing the scan of the file it describes.
+     */
+    private static @Nullable XmpInterface readSidecar(@Nullable File sidecar) {
+        if (sidecar == null) return null;
+        try {
+            return XmpInterface.fromSidecar(sidecar);
+        } catch (IOException e) {
+            if (LOGW) Log.w(TAG, "Ignoring troubled sidecar: " + sidecar, e);
+            return null;
+        }
     }
 
     /**
@@ -583,7 +1295,8 @@ public class ModernMediaScanner implements MediaScanner {
     }
 
     private static @NonNull ContentProviderOperation scanItemAudio(long existingId, File file,
-            BasicFileAttributes attrs, String mimeType, String volumeName) throws IOException {
+            @Nullable File sidecar, BasicFileAttributes attrs, String mimeType, String volumeName)
+            throws IOException {
         final ContentProviderOperation.Builder op = newUpsert(
                 MediaStore.Audio.Media.getContentUri(volumeName), existingId);
 
@@ -609,9 +1322,9 @@ public class ModernMediaScanner implements MediaScanner {
             op.withValue(AudioColumns.IS_MUSIC, 1);
         }
 
-        try (FileInputStream is = new FileInputStream(file)) {
+        try (MetadataSource source = MetadataSource.open(file)) {
             try (MediaMetadataRetriever mmr = new MediaMetadataRetriever()) {
-                mmr.setDataSource(is.getFD());
+                mmr.setDataSource(source.getFD());
 
                 withOptionalValue(op, MediaColumns.TITLE,
                         parseOptional(mmr.extractMetadata(METADATA_KEY_TITLE)));
@@ -638,10 +1351,15 @@ public class ModernMediaScanner implements MediaScanner {
                         parseOptional(mmr.extractMetadata(METADATA_KEY_GENRE)));
             }
 
-            // Also hunt around for XMP metadata
-            final IsoInterface iso = IsoInterface.fromFileDescriptor(is.getFD());
-            final XmpInterface xmp = XmpInterface.fromContainer(iso);
-            withXmpValues(op, xmp, mimeType);
+            // Also hunt around for XMP metadata, reusing the bytes we already
+            // read while the retriever was busy
+            final IsoInterface iso = IsoInterface.fromSource(source,
+                    RedactionInfo.ISO_BOX_TYPES);
+            final XmpInterface xmp = XmpInterface.fromContainer(iso,
+                    RedactionInfo.REDACTED_XMP_TAGS);
+            withXmpValues(op, xmp, readSidecar(sidecar), mimeType);
+
+            withRedactionInfo(op, file, attrs, RedactionInfo.fromSource(source, iso, xmp));
 
         } catch (Exception e) {
             throw new IOException(e);
@@ -663,7 +1381,8 @@ public class ModernMediaScanner implements MediaScanner {
     }
 
     private static @NonNull ContentProviderOperation scanItemVideo(long existingId, File file,
-            BasicFileAttributes attrs, String mimeType, String volumeName) throws IOException {
+            @Nullable File sidecar, BasicFileAttributes attrs, String mimeType, String volumeName)
+            throws IOException {
         final ContentProviderOperation.Builder op = newUpsert(
                 MediaStore.Video.Media.getContentUri(volumeName), existingId);
 
@@ -675,9 +1394,9 @@ public class ModernMediaScanner implements MediaScanner {
         op.withValue(VideoColumns.COLOR_TRANSFER, null);
         op.withValue(VideoColumns.COLOR_RANGE, null);
 
-        try (FileInputStream is = new FileInputStream(file)) {
+        try (MetadataSource source = MetadataSource.open(file)) {
             try (MediaMetadataRetriever mmr = new MediaMetadataRetriever()) {
-                mmr.setDataSource(is.getFD());
+                mmr.setDataSource(source.getFD());
 
                 withOptionalValue(op, MediaColumns.TITLE,
                         parseOptional(mmr.extractMetadata(METADATA_KEY_TITLE)));
@@ -706,10 +1425,15 @@ public class ModernMediaScanner implements MediaScanner {
                         parseOptional(mmr.extractMetadata(METADATA_KEY_COLOR_RANGE)));
             }
 
-            // Also hunt around for XMP metadata
-            final IsoInterface iso = IsoInterface.fromFileDescriptor(is.getFD());
-            final XmpInterface xmp = XmpInterface.fromContainer(iso);
-            withXmpValues(op, xmp, mimeType);
+            // Also hunt around for XMP metadata, reusing the bytes we already
+            // read while the retriever was busy
+            final IsoInterface iso = IsoInterface.fromSource(source,
+                    RedactionInfo.ISO_BOX_TYPES);
+            final XmpInterface xmp = XmpInterface.fromContainer(iso,
+                    RedactionInfo.REDACTED_XMP_TAGS);
+            withXmpValues(op, xmp, readSidecar(sidecar), mimeType);
+
+            withRedactionInfo(op, file, attrs, RedactionInfo.fromSource(source, iso, xmp));
 
         } catch (Exception e) {
             throw new IOException(e);
@@ -718,15 +1442,16 @@ public class ModernMediaScanner implements MediaScanner {
     }
 
     private static @NonNull ContentProviderOperation scanItemImage(long existingId, File file,
-            BasicFileAttributes attrs, String mimeType, String volumeName) throws IOException {
+            @Nullable File sidecar, BasicFileAttributes attrs, String mimeType, String volumeName)
+            throws IOException {
         final ContentProviderOperation.Builder op = newUpsert(
                 MediaStore.Images.Media.getContentUri(volumeName), existingId);
 
         withGenericValues(op, file, attrs, mimeType);
         op.withValue(ImageColumns.DESCRIPTION, null);
 
-        try (FileInputStream is = new FileInputStream(file)) {
-            final ExifInterface exif = new ExifInterface(is);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final ExifInterface exif = new ExifInterface(source.openStream());
 
             withOptionalValue(op, MediaColumns.WIDTH,
                     parseOptionalOrZero(exif.getAttribute(ExifInterface.TAG_IMAGE_WIDTH)));
@@ -742,8 +1467,14 @@ public class ModernMediaScanner implements MediaScanner {
                     parseOptional(exif.getAttribute(ExifInterface.TAG_IMAGE_DESCRIPTION)));
 
             // Also hunt around for XMP metadata
-            final XmpInterface xmp = XmpInterface.fromContainer(exif);
-            withXmpValues(op, xmp, mimeType);
+            final XmpInterface xmp = XmpInterface.fromContainer(exif,
+                    RedactionInfo.REDACTED_XMP_TAGS);
+            withXmpValues(op, xmp, readSidecar(sidecar), mimeType);
+
+            final IsoInterface iso = IsoInterface.fromSource(source,
+                    RedactionInfo.ISO_BOX_TYPES);
+            withRedactionInfo(op, file, attrs, RedactionInfo.fromContainers(exif, xmp,
+                    iso, XmpInterface.fromContainer(iso, RedactionInfo.REDACTED_XMP_TAGS)));
 
         } catch (Exception e) {
             throw new IOException(e);
@@ -763,6 +1494,20 @@ public class ModernMediaScanner implements MediaScanner {
         return op.build();
     }
 
+    /**
+     * Record what needs to be redacted from the given file while it's already
+     * parsed, since apps without location access typically open freshly
+     * captured media right away.
+     */
+    private static void withRedactionInfo(@NonNull ContentProviderOperation.Builder op,
+            @NonNull File file, @NonNull BasicFileAttributes attrs,
+            @NonNull RedactionInfo redactionInfo) {
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        ContainerIndexCache.putRedactionInfo(file, attrs.size(), lastModified, redactionInfo);
+        op.withValue(RedactionInfo.COLUMN_REDACTION_INFO,
+                redactionInfo.encode(attrs.size(), lastModified));
+    }
+
     private static @NonNull ContentProviderOperation.Builder newUpsert(Uri uri, long existingId) {
         if (existingId == -1) {
             return ContentProviderOperation.newInsert(uri)
@@ -876,10 +1621,11 @@ public class ModernMediaScanner implements MediaScanner {
         }
     }
 
-    private static @NonNull Optional<Long> parseOptionalDate(@Nullable String date) {
+    @VisibleForTesting
+    static @NonNull Optional<Long> parseOptionalDate(@Nullable String date) {
         if (TextUtils.isEmpty(date)) return Optional.empty();
         try {
-            final long value = sDateFormat.parse(date).getTime();
+            final long value = sDateFormat.get().parse(date).getTime();
             return (value > 0) ? Optional.of(value) : Optional.empty();
         } catch (ParseException e) {
             return Optional.empty();
@@ -921,24 +1667,6 @@ public class ModernMediaScanner implements MediaScanner {
         }
     }
 
-    /**
-     * Test if any parents of given directory should be considered hidden.
-     */
-    static boolean isDirectoryHiddenRecursive(File dir) {
-        Trace.traceBegin(TRACE_TAG_DATABASE, "isDirectoryHiddenRecursive");
-        try {
-            while (dir != null) {
-                if (isDirectoryHidden(dir)) {
-                    return true;
-                }
-                dir = dir.getParentFile();
-            }
-            return false;
-        } finally {
-            Trace.traceEnd(TRACE_TAG_DATABASE);
-        }
-    }
-
     /**
      * Test if this given directory should be considered hidden.
      */
@@ -979,6 +1707,12 @@ public class ModernMediaScanner implements MediaScanner {
         return (path.size() == 4) && path.get(1).equals("audio") && path.get(2).equals("playlists");
     }
 
+    static boolean isVisualMedia(Uri uri) {
+        final List<String> path = uri.getPathSegments();
+        return (path.size() == 4) && (path.get(1).equals("images") || path.get(1).equals("video"))
+                && path.get(2).equals("media");
+    }
+
     /**
      * Escape the given argument for use in a {@code LIKE} statement.
      */
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.CurrentTimeMillisLong;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.Comparator;
+
+/**
+ * Progress of a directory scan, as recorded in the {@code scan_checkpoint}
+ * table, so that a scan which was interrupted part way through can later
+ * resume where it left off instead of starting again from the root.
+ * <p>
+ * Scans walk each directory in sorted order, so that a single path is enough
+ * to describe which directories were already fully processed.
+ */
+public class ScanCheckpoint {
+    /** Incremented every time a scan of this root starts from scratch */
+    public final long generation;
+    /**
+     * Last directory fully processed in walk order, or {@code null} when the
+     * last scan of this generation completed.
+     */
+    public final @Nullable String lastPath;
+    /** Time when this checkpoint was recorded */
+    public final @CurrentTimeMillisLong long dateModified;
+
+    public ScanCheckpoint(long generation, @Nullable String lastPath,
+            @CurrentTimeMillisLong long dateModified) {
+        this.generation = generation;
+        this.lastPath = lastPath;
+        this.dateModified = dateModified;
+    }
+
+    /**
+     * Test if the given directory was fully processed before this checkpoint
+     * was recorded, meaning it's either the checkpoint directory itself, below
+     * it, or entirely before it in walk order.
+     */
+    public boolean isCompleted(@NonNull String path) {
+        if (lastPath == null) return false;
+        if (isSameOrBelow(path, lastPath)) return true;
+        if (isSameOrBelow(lastPath, path)) return false;
+        return WALK_ORDER.compare(path, lastPath) < 0;
+    }
+
+    private static boolean isSameOrBelow(@NonNull String path, @NonNull String parent) {
+        return path.equals(parent) || path.startsWith(parent + '/');
+    }
+
+    /**
+     * Order in which a walk that visits the entries of each directory sorted
+     * by name reaches paths, comparing one path segment at a time.
+     */
+    public static final Comparator<String> WALK_ORDER = (a, b) -> {
+        final String[] as = a.split("/");
+        final String[] bs = b.split("/");
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            final int res = as[i].compareTo(bs[i]);
+            if (res != 0) return res;
+        }
+        return Integer.compare(as.length, bs.length);
+    };
+}
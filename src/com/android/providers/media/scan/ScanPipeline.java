@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Pipeline used by {@link ModernMediaScanner} to overlap directory walking,
+ * metadata extraction and database writes.
+ * <p>
+ * The thread calling {@link #submit} acts as the walker stage, a bounded pool
+ * of workers extracts metadata, and a single writer thread hands results to
+ * the given sink in exactly the order they were submitted, so that the
+ * resulting database contents match a serial scan.
+ * <p>
+ * Backpressure is applied by bounding the number of results that can be
+ * in-flight between the walker and the writer; once that limit is reached
+ * {@link #submit} blocks until the writer catches up. Tasks are only handed
+ * to the workers once their result has a slot, so the work queue is bounded
+ * by the same limit.
+ */
+class ScanPipeline<T> implements AutoCloseable {
+    private static final String TAG = "ScanPipeline";
+
+    /** Sentinel used to tell the writer stage that no more work is coming */
+    private static final Future<?> FINISHED = CompletableFuture.completedFuture(null);
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final CancellationSignal mSignal;
+    private final Consumer<T> mSink;
+
+    private final ThreadPoolExecutor mWorkers;
+    private final BlockingQueue<Future<?>> mResults;
+    private final Thread mWriter;
+
+    private volatile Throwable mFailure;
+
+    public ScanPipeline(@NonNull String name, @NonNull CancellationSignal signal,
+            int workers, int depth, @NonNull Consumer<T> sink) {
+        mSignal = signal;
+        mSink = sink;
+
+        final AtomicInteger count = new AtomicInteger();
+        // Every queued task already holds a result slot, plus the one task
+        // the writer may be waiting on, so this queue never overflows
+        mWorkers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(depth + 1), (r) -> {
+            final Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, name + "-worker-" + count.incrementAndGet());
+            return t;
+        });
+        mResults = new ArrayBlockingQueue<>(depth);
+        mWriter = new Thread(this::runWriter, name + "-writer");
+        mWriter.start();
+    }
+
+    /**
+     * Enqueue the given task to be run by a worker. Blocks while the pipeline
+     * is full, and throws if the pipeline has already failed or the scan was
+     * canceled.
+     */
+    public void submit(@NonNull Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        enqueue(future);
+        mWorkers.execute(future);
+    }
+
+    /**
+     * Enqueue a result that is already known, which will be delivered to the
+     * sink in order with all other submitted work.
+     */
+    public void submitResult(@Nullable T result) {
+        enqueue(CompletableFuture.completedFuture(result));
+    }
+
+    private void enqueue(@NonNull Future<?> future) {
+        try {
+            while (!mResults.offer(future, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                throwIfFailed();
+                mSignal.throwIfCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        }
+    }
+
+    /**
+     * Wait until all work submitted so far has been delivered to the sink,
+     * leaving the pipeline open for more work. The caller must not submit
+     * anything else while this is running.
+     */
+    public void flush() {
+        final Barrier barrier = new Barrier();
+        enqueue(barrier);
+        try {
+            while (!barrier.latch.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                throwIfFailed();
+                mSignal.throwIfCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        }
+    }
+
+    /**
+     * Wait until all submitted work has been delivered to the sink.
+     */
+    public void finish() {
+        enqueue(FINISHED);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        }
+        throwIfFailed();
+        mSignal.throwIfCanceled();
+    }
+
+    @Override
+    public void close() {
+        mWorkers.shutdownNow();
+        if (mWriter.isAlive()) {
+            mWriter.interrupt();
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Future<?> future;
+        while ((future = mResults.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+
+    private void throwIfFailed() {
+        final Throwable failure = mFailure;
+        if (failure instanceof OperationCanceledException) {
+            throw (OperationCanceledException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /** Marker used by {@link #flush()} to learn when the writer has caught up */
+    private static class Barrier extends CompletableFuture<Void> {
+        final CountDownLatch latch = new CountDownLatch(1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runWriter() {
+        try {
+            while (true) {
+                final Future<?> future = mResults.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    mSignal.throwIfCanceled();
+                    continue;
+                } else if (future == FINISHED) {
+                    return;
+                } else if (future instanceof Barrier) {
+                    ((Barrier) future).latch.countDown();
+                    continue;
+                }
+
+                final T result;
+                try {
+                    result = (T) future.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() != null) ? e.getCause() : e;
+                }
+                if (result != null) {
+                    mSink.accept(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            mFailure = new OperationCanceledException();
+        } catch (Throwable t) {
+            if (!(t instanceof OperationCanceledException)) {
+                Log.w(TAG, "Pipeline failed", t);
+            }
+            mFailure = t;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArraySet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Index of the XMP sidecars found in a single directory, built from the
+ * directory listing that {@link ModernMediaScanner} already performs, so that
+ * the sidecar of each visited file can be found without any extra calls.
+ * <p>
+ * Both common naming conventions are recognized: {@code IMG_1234.CR2.xmp}
+ * names the complete file it describes, and {@code IMG_1234.xmp} describes
+ * every file sharing that base name. When both exist, the former wins.
+ * <p>
+ * The index also remembers which of the described files were visited and
+ * scanned while walking the directory, so that a changed sidecar can trigger
+ * a rescan of the files it describes exactly once.
+ */
+class SidecarIndex {
+    static final String SIDECAR_EXTENSION = ".xmp";
+
+    private final String mDir;
+
+    /** Map from lowercase file name to the name of its sidecar */
+    private final HashMap<String, String> mSidecars = new HashMap<>();
+    /** Map from lowercase sidecar name to the names of the files it describes */
+    private final HashMap<String, ArrayList<String>> mPrimaries = new HashMap<>();
+
+    private final ArraySet<String> mVisited = new ArraySet<>();
+    private final ArraySet<String> mScanned = new ArraySet<>();
+    private final ArraySet<String> mStale = new ArraySet<>();
+
+    private SidecarIndex(@NonNull File dir) {
+        mDir = dir.getAbsolutePath();
+    }
+
+    /**
+     * Build an index over the given directory listing, returning {@code null}
+     * when it doesn't contain any sidecars.
+     */
+    public static @Nullable SidecarIndex build(@NonNull File dir, @NonNull String[] names) {
+        final HashMap<String, String> sidecars = new HashMap<>();
+        for (String name : names) {
+            if (isSidecarName(name)) {
+                sidecars.put(stripExtension(name).toLowerCase(Locale.ROOT), name);
+            }
+        }
+        if (sidecars.isEmpty()) return null;
+
+        final SidecarIndex index = new SidecarIndex(dir);
+        for (String name : names) {
+            if (isSidecarName(name)) continue;
+
+            final String key = name.toLowerCase(Locale.ROOT);
+            String sidecar = sidecars.get(key);
+            if (sidecar == null && key.lastIndexOf('.') > 0) {
+                sidecar = sidecars.get(stripExtension(key));
+            }
+            if (sidecar != null) {
+                index.mSidecars.put(key, sidecar);
+                index.mPrimaries.computeIfAbsent(sidecar.toLowerCase(Locale.ROOT),
+                        (k) -> new ArrayList<>()).add(name);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Build an index covering only the given file, for use when scanning it
+     * alone. Sidecars are listed from the parent directory, while candidate
+     * sidecars for any other file are probed individually.
+     */
+    public static @Nullable SidecarIndex forFile(@NonNull File file) {
+        final File dir = file.getParentFile();
+        if (dir == null) return null;
+
+        final String name = file.getName();
+        if (isSidecarName(name)) {
+            final String[] names = dir.list();
+            return (names != null) ? build(dir, names) : null;
+        }
+
+        final ArrayList<String> names = new ArrayList<>();
+        names.add(name);
+        final String full = name + SIDECAR_EXTENSION;
+        if (new File(dir, full).exists()) {
+            names.add(full);
+        } else if (name.lastIndexOf('.') > 0) {
+            final String base = stripExtension(name) + SIDECAR_EXTENSION;
+            if (new File(dir, base).exists()) {
+                names.add(base);
+            }
+        }
+        return build(dir, names.toArray(new String[names.size()]));
+    }
+
+    public static boolean isSidecarName(@NonNull String name) {
+        return name.regionMatches(true, name.length() - SIDECAR_EXTENSION.length(),
+                SIDECAR_EXTENSION, 0, SIDECAR_EXTENSION.length());
+    }
+
+    private static @NonNull String stripExtension(@NonNull String name) {
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * Test if the given file is a direct child of the directory described by
+     * this index, meaning the index is authoritative for it.
+     */
+    public boolean isParentOf(@NonNull File file) {
+        return Objects.equals(mDir, file.getParent());
+    }
+
+    /**
+     * Return the sidecar describing the given file, if any.
+     */
+    public @Nullable File getSidecar(@NonNull File file) {
+        final String sidecar = mSidecars.get(file.getName().toLowerCase(Locale.ROOT));
+        return (sidecar != null) ? new File(mDir, sidecar) : null;
+    }
+
+    /**
+     * Return the names of all files described by the given sidecar.
+     */
+    public @NonNull List<String> getPrimaries(@NonNull File sidecar) {
+        final ArrayList<String> primaries = mPrimaries.get(
+                sidecar.getName().toLowerCase(Locale.ROOT));
+        return (primaries != null) ? primaries : Collections.emptyList();
+    }
+
+    /**
+     * Record that the given file was visited, and whether it was scanned.
+     *
+     * @return if the file must be scanned regardless of being unchanged,
+     *         since its sidecar changed before it was visited.
+     */
+    public boolean noteVisited(@NonNull File file) {
+        final String key = file.getName().toLowerCase(Locale.ROOT);
+        if (!mSidecars.containsKey(key)) return false;
+        mVisited.add(key);
+        return mStale.remove(key);
+    }
+
+    public void noteScanned(@NonNull File file) {
+        final String key = file.getName().toLowerCase(Locale.ROOT);
+        if (mSidecars.containsKey(key)) {
+            mScanned.add(key);
+        }
+    }
+
+    public boolean isVisited(@NonNull String name) {
+        return mVisited.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean isScanned(@NonNull String name) {
+        return mScanned.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Record that the sidecar of the given file changed before the file was
+     * visited, so that visit must scan it.
+     */
+    public void markStale(@NonNull String name) {
+        mStale.add(name.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.CancellationSignal;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.providers.media.MediaProvider;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Low-priority stage that runs behind the writer stage of
+ * {@link ModernMediaScanner}, generating thumbnails of newly inserted images
+ * and videos before anyone asks for them, so that the first scroll through a
+ * gallery after a large import doesn't stall on decoding.
+ * <p>
+ * This is purely an optimization: items are dropped when the queue is full,
+ * and all remaining work is abandoned when the scan is canceled or the device
+ * is low on battery, saving power or running warm. Any thumbnail that wasn't
+ * generated here is still generated on demand.
+ */
+class ThumbnailPregenerator {
+    private static final String TAG = "ThumbnailPregenerator";
+
+    /** Maximum number of items waiting to be generated */
+    private static final int MAX_PENDING = 1024;
+    /** Battery level below which we stop when not charging */
+    private static final int MIN_BATTERY_LEVEL = 20;
+
+    private final MediaProvider mProvider;
+    private final CancellationSignal mSignal;
+    private final PowerManager mPowerManager;
+    private final BatteryManager mBatteryManager;
+
+    private final ArrayBlockingQueue<Uri> mQueue = new ArrayBlockingQueue<>(MAX_PENDING);
+
+    @GuardedBy("mQueue")
+    private Thread mThread;
+
+    public ThumbnailPregenerator(@NonNull Context context, @NonNull MediaProvider provider,
+            @NonNull CancellationSignal signal) {
+        mProvider = provider;
+        mSignal = signal;
+        mPowerManager = context.getSystemService(PowerManager.class);
+        mBatteryManager = context.getSystemService(BatteryManager.class);
+    }
+
+    /**
+     * Request that the thumbnail of the given newly inserted item be
+     * generated in the background. Never blocks.
+     */
+    public void enqueue(@NonNull Uri uri) {
+        synchronized (mQueue) {
+            if (!mQueue.offer(uri)) return;
+            if (mThread == null) {
+                mThread = new Thread(this::run, TAG);
+                mThread.start();
+            }
+        }
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        while (true) {
+            final boolean stop = mSignal.isCanceled() || isThrottled();
+            final Uri uri;
+            synchronized (mQueue) {
+                if (stop && !mQueue.isEmpty()) {
+                    Log.d(TAG, "Abandoning " + mQueue.size() + " thumbnails");
+                    mQueue.clear();
+                }
+                uri = mQueue.poll();
+                if (uri == null) {
+                    mThread = null;
+                    return;
+                }
+            }
+            try {
+                mProvider.pregenerateThumbnail(uri, mSignal);
+            } catch (IOException | RuntimeException e) {
+                // Decoders throw all sorts of unchecked exceptions on corrupt
+                // files, which must never take down the whole process
+                Log.w(TAG, "Failed to generate thumbnail for " + uri + ": " + e);
+            }
+        }
+    }
+
+    private boolean isThrottled() {
+        if (mPowerManager != null) {
+            if (mPowerManager.isPowerSaveMode()) return true;
+            if (mPowerManager.getCurrentThermalStatus()
+                    >= PowerManager.THERMAL_STATUS_MODERATE) return true;
+        }
+        if (mBatteryManager != null && !mBatteryManager.isCharging()) {
+            final int level = mBatteryManager
+                    .getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+            if (level > 0 && level < MIN_BATTERY_LEVEL) return true;
+        }
+        return false;
+    }
+}
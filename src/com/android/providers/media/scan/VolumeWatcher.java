@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_LOW;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_NORMAL;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemProperties;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.media.ScanScheduler;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Watches all visible directories of a single volume using inotify through
+ * {@link FileObserver}, and feeds changed paths to {@link MediaScanner} so
+ * that the index converges without waiting for a full rescan.
+ * <p>
+ * Events are coalesced over a short window and deduplicated by path, and then
+ * scanned as a micro-batch: directories with many changes are rescanned as a
+ * whole, which is cheap thanks to the scan journal, and everything else is
+ * scanned as individual files.
+ * <p>
+ * All scans go through {@link ScanScheduler}, so they're ordered against
+ * every other scan request, and file scans join any pending request for the
+ * same path, such as the one made when a descriptor from
+ * {@code MediaProvider.openFile()} is closed.
+ */
+public class VolumeWatcher {
+    private static final String TAG = "VolumeWatcher";
+    private static final boolean LOGV = Log.isLoggable(TAG, Log.VERBOSE);
+
+    public static final boolean ENABLE_WATCHER = SystemProperties
+            .getBoolean("persist.sys.scanner_watch", true);
+
+    /** Window over which events are collected before being scanned */
+    @VisibleForTesting
+    static final long COALESCE_DELAY_MS = 1_000;
+
+    /**
+     * Upper bound of inotify watches we're willing to hold per volume; deeper
+     * trees only converge through regular scans.
+     */
+    private static final int MAX_WATCHED_DIRS = 2_048;
+
+    /** Directories with at least this many changes are rescanned as a whole */
+    @VisibleForTesting
+    static final int DIRECTORY_BATCH_THRESHOLD = 8;
+
+    private static final int MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final Object sHandlerLock = new Object();
+    @GuardedBy("sHandlerLock")
+    private static Handler sHandler;
+
+    private final ScanScheduler mScheduler;
+    private final String mVolumeName;
+    private final Collection<File> mRoots;
+    private final Handler mHandler;
+    private final HiddenDirectoryCache mHiddenCache;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, FileObserver> mObservers = new ArrayMap<>();
+    /** Map from changed path to all events observed for it */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Integer> mPending = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private boolean mStarted;
+    /** Signal canceled when we stop, to abort any scans we requested */
+    @GuardedBy("mLock")
+    private CancellationSignal mSignal;
+
+    public VolumeWatcher(@NonNull Context context, @NonNull String volumeName,
+            @NonNull Collection<File> roots) {
+        this(ScanScheduler.getInstance(context), volumeName, roots);
+    }
+
+    @VisibleForTesting
+    VolumeWatcher(@NonNull ScanScheduler scheduler, @NonNull String volumeName,
+            @NonNull Collection<File> roots) {
+        mScheduler = scheduler;
+        mVolumeName = volumeName;
+        mRoots = roots;
+        mHandler = getHandler();
+        mHiddenCache = HiddenDirectoryCache.forVolume(volumeName);
+    }
+
+    private static @NonNull Handler getHandler() {
+        synchronized (sHandlerLock) {
+            if (sHandler == null) {
+                final HandlerThread thread = new HandlerThread(TAG,
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            return sHandler;
+        }
+    }
+
+    public @NonNull String getVolumeName() {
+        return mVolumeName;
+    }
+
+    /**
+     * Wait until all work posted to our thread so far, such as the initial
+     * directory walk, has finished.
+     */
+    @VisibleForTesting
+    boolean waitForIdle(long timeoutMs) {
+        return mHandler.runWithScissors(() -> {}, timeoutMs);
+    }
+
+    /**
+     * Start watching this volume. The initial directory walk happens
+     * asynchronously, so this is safe to call from any thread.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) return;
+            mStarted = true;
+            mSignal = new CancellationSignal();
+        }
+        mHandler.post(() -> {
+            for (File root : mRoots) {
+                watchTree(root);
+            }
+        });
+    }
+
+    /**
+     * Stop watching this volume, discard any events not yet scanned, and
+     * cancel any scans already requested.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStarted = false;
+            if (mSignal != null) {
+                mSignal.cancel();
+                mSignal = null;
+            }
+            for (int i = 0; i < mObservers.size(); i++) {
+                mObservers.valueAt(i).stopWatching();
+            }
+            mObservers.clear();
+            mPending.clear();
+        }
+        mHandler.removeCallbacks(mFlush);
+    }
+
+    /**
+     * Begin watching the given directory and all visible directories below it.
+     */
+    private void watchTree(@NonNull File root) {
+        Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "watchTree");
+        try {
+            final ArrayDeque<File> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                final File dir = queue.poll();
+                if (mHiddenCache.isHidden(dir, dir.lastModified())) continue;
+                if (!watchDirectory(dir)) return;
+
+                final File[] children = dir.listFiles(File::isDirectory);
+                if (children != null) {
+                    for (File child : children) {
+                        queue.add(child);
+                    }
+                }
+            }
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+        }
+    }
+
+    /**
+     * @return if we were able to watch the given directory
+     */
+    private boolean watchDirectory(@NonNull File dir) {
+        final String path = dir.getAbsolutePath();
+        synchronized (mLock) {
+            if (!mStarted) return false;
+            if (mObservers.containsKey(path)) return true;
+            if (mObservers.size() >= MAX_WATCHED_DIRS) {
+                Log.w(TAG, "Reached watch limit for " + mVolumeName + "; ignoring " + path);
+                return false;
+            }
+
+            final FileObserver observer = new FileObserver(dir, MASK) {
+                @Override
+                public void onEvent(int event, String name) {
+                    onDirectoryEvent(path, event & FileObserver.ALL_EVENTS, name);
+                }
+            };
+            mObservers.put(path, observer);
+            observer.startWatching();
+            return true;
+        }
+    }
+
+    private void unwatchDirectory(@NonNull String path) {
+        synchronized (mLock) {
+            final String prefix = path + '/';
+            for (int i = mObservers.size() - 1; i >= 0; i--) {
+                final String key = mObservers.keyAt(i);
+                if (key.equals(path) || key.startsWith(prefix)) {
+                    mObservers.valueAt(i).stopWatching();
+                    mObservers.removeAt(i);
+                }
+            }
+        }
+    }
+
+    private void onDirectoryEvent(@NonNull String dir, int event, String name) {
+        final String path = (name != null) ? (dir + '/' + name) : dir;
+        if (LOGV) Log.v(TAG, "Event " + event + " for " + path);
+
+        switch (event) {
+            case FileObserver.DELETE_SELF:
+            case FileObserver.MOVE_SELF:
+                // Our parent will also see this change, so we only need to
+                // drop any watches that are now stale
+                unwatchDirectory(dir);
+                mHiddenCache.invalidate(new File(dir));
+                return;
+            case FileObserver.DELETE:
+            case FileObserver.MOVED_FROM:
+            case FileObserver.MOVED_TO:
+                // Renamed or deleted directories take their cached
+                // visibility with them
+                mHiddenCache.invalidate(new File(path));
+                break;
+        }
+        if (".nomedia".equals(name)) {
+            mHiddenCache.invalidate(new File(dir));
+        }
+
+        synchronized (mLock) {
+            if (!mStarted) return;
+            final Integer existing = mPending.get(path);
+            mPending.put(path, (existing != null) ? (existing | event) : event);
+            if (mPending.size() == 1 && existing == null) {
+                mHandler.postDelayed(mFlush, COALESCE_DELAY_MS);
+            }
+        }
+    }
+
+    private final Runnable mFlush = this::flush;
+
+    /**
+     * Scan everything that changed during the last coalescing window.
+     */
+    private void flush() {
+        final ArrayMap<String, Integer> pending;
+        final CancellationSignal signal;
+        synchronized (mLock) {
+            if (!mStarted) return;
+            pending = new ArrayMap<>(mPending);
+            mPending.clear();
+            signal = mSignal;
+        }
+
+        // Files that were only modified in place don't change the fingerprint
+        // of their directory, so they always need to be scanned directly
+        final ArraySet<File> modified = new ArraySet<>();
+
+        // Group remaining changes by parent so busy directories can be batched
+        final ArrayMap<String, ArraySet<File>> byParent = new ArrayMap<>();
+        for (int i = 0; i < pending.size(); i++) {
+            final File file = new File(pending.keyAt(i));
+            if (pending.valueAt(i) == FileObserver.CLOSE_WRITE) {
+                modified.add(file);
+                continue;
+            }
+            final String parent = file.getParent();
+            ArraySet<File> files = byParent.get(parent);
+            if (files == null) {
+                files = new ArraySet<>();
+                byParent.put(parent, files);
+            }
+            files.add(file);
+        }
+
+        Trace.traceBegin(Trace.TRACE_TAG_DATABASE, "flush");
+        try {
+            final ArraySet<File> files = new ArraySet<>(modified);
+            final ArraySet<File> dirs = new ArraySet<>();
+            for (int i = 0; i < byParent.size(); i++) {
+                final File parent = new File(byParent.keyAt(i));
+                final ArraySet<File> changed = byParent.valueAt(i);
+
+                boolean scanParent = (changed.size() >= DIRECTORY_BATCH_THRESHOLD);
+                for (File file : changed) {
+                    // Hiding or revealing a directory affects everything in it
+                    if (".nomedia".equals(file.getName())) {
+                        scanParent = true;
+                    }
+                    // Newly created directories need watching too
+                    if (file.isDirectory()) {
+                        watchTree(file);
+                    }
+                }
+
+                if (scanParent) {
+                    dirs.add(parent);
+                } else {
+                    for (File file : changed) {
+                        if (file.isDirectory()) {
+                            dirs.add(file);
+                        } else {
+                            files.add(file);
+                        }
+                    }
+                }
+            }
+
+            for (File file : files) {
+                if (signal.isCanceled()) return;
+                if (LOGV) Log.v(TAG, "Requesting scan of " + file);
+                mScheduler.requestScanFile(file, PRIORITY_NORMAL);
+            }
+            for (File dir : dirs) {
+                if (LOGV) Log.v(TAG, "Requesting scan of directory " + dir);
+                mScheduler.requestScanDirectory(dir, signal, PRIORITY_LOW);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to scan changes on " + mVolumeName, e);
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_DATABASE);
+        }
+    }
+}
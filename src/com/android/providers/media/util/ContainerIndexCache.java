@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Bounded cache of the ranges found by parsing media containers, shared by
+ * the scanner and the provider, so that repeatedly opening the same file
+ * doesn't parse its containers again.
+ * <p>
+ * Entries are keyed by canonical path, and are only trusted while the size
+ * and last modified time of the file are unchanged, so callers should capture
+ * those before parsing the file. Since a rewrite may keep both, such as on
+ * filesystems with coarse timestamps, entries must also be dropped through
+ * {@link #invalidate(File)} whenever the file is opened for writing.
+ */
+public class ContainerIndexCache {
+    private static final int MAX_ENTRIES = 512;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final RedactionInfo redactionInfo;
+
+        Entry(long size, long lastModified, RedactionInfo redactionInfo) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.redactionInfo = redactionInfo;
+        }
+    }
+
+    private static final LruCache<String, Entry> sCache = new LruCache<>(MAX_ENTRIES);
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock")
+    private static long sHits;
+    @GuardedBy("sLock")
+    private static long sMisses;
+
+    /**
+     * Return the cached redaction ranges of the given file, or {@code null}
+     * if they're unknown or the file has changed since they were cached.
+     */
+    public static @Nullable RedactionInfo getRedactionInfo(@NonNull File file, long size,
+            long lastModified) {
+        final Entry entry = sCache.get(getKey(file));
+        final boolean hit = entry != null && entry.size == size
+                && entry.lastModified == lastModified;
+        synchronized (sLock) {
+            if (hit) {
+                sHits++;
+            } else {
+                sMisses++;
+            }
+        }
+        return hit ? entry.redactionInfo : null;
+    }
+
+    public static void putRedactionInfo(@NonNull File file, long size, long lastModified,
+            @NonNull RedactionInfo redactionInfo) {
+        sCache.put(getKey(file), new Entry(size, lastModified, redactionInfo));
+    }
+
+    /**
+     * Forget anything cached about the given file, which is about to be
+     * written or was just written.
+     */
+    public static void invalidate(@NonNull File file) {
+        sCache.remove(getKey(file));
+    }
+
+    private static @NonNull String getKey(@NonNull File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    public static void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (sLock) {
+            pw.printPair("containerIndexSize", sCache.size());
+            pw.printPair("containerIndexHits", sHits);
+            pw.printPair("containerIndexMisses", sMisses);
+        }
+        pw.println();
+    }
+}
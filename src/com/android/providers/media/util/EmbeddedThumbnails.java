@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.MediaFile;
+import android.util.Log;
+import android.util.Size;
+
+import libcore.io.Memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * Extracts thumbnails that are already embedded in media files, such as the
+ * EXIF thumbnail of camera images or the cover art of MP4 files, so that they
+ * can be served without decoding the full image or a video frame.
+ * <p>
+ * Embedded thumbnails are only returned when they cover the requested size,
+ * and when they have the same aspect ratio as the media itself, since many
+ * cameras pad their EXIF thumbnails to 4:3 with black bars.
+ */
+public class EmbeddedThumbnails {
+    private static final String TAG = "EmbeddedThumbnails";
+
+    /** Largest mismatch between aspect ratios that still looks identical */
+    private static final float ASPECT_TOLERANCE = 0.02f;
+
+    /** Length of the box header, type indicator and locale of a 'data' box */
+    private static final int DATA_HEADER_SIZE = 16;
+    private static final int BOX_DATA = 0x64617461;
+
+    /**
+     * Test if the given image may carry an EXIF thumbnail.
+     */
+    public static boolean isExifFile(@NonNull File file) {
+        final String mimeType = MediaFile.getMimeTypeForFile(file.getName());
+        if (mimeType == null) return false;
+        return "image/jpeg".equals(mimeType)
+                || "image/heif".equals(mimeType)
+                || "image/heic".equals(mimeType)
+                || mimeType.startsWith("image/x-");
+    }
+
+    /**
+     * Test if the given video is an ISO base media file that may carry cover
+     * art.
+     */
+    public static boolean isIsoFile(@NonNull File file) {
+        final String mimeType = MediaFile.getMimeTypeForFile(file.getName());
+        if (mimeType == null) return false;
+        switch (mimeType) {
+            case "video/mp4":
+            case "video/quicktime":
+            case "video/x-m4v":
+            case "video/3gpp":
+            case "video/3gpp2":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the EXIF thumbnail of the given image, rotated upright and
+     * scaled to fit within the given size, or {@code null} if it has none
+     * that covers the given size.
+     */
+    public static @Nullable Bitmap fromExif(@NonNull File file, @NonNull Size size)
+            throws IOException {
+        final ExifInterface exif = new ExifInterface(file);
+        if (!exif.hasThumbnail()) return null;
+
+        // Uncompressed thumbnails are rare, and simply fail to decode below
+        final byte[] data = exif.getThumbnailBytes();
+        if (data == null) return null;
+
+        // Dimensions of the full image, as stored before rotation
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+
+        final int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_UNDEFINED);
+        return decode(data, 0, data.length, opts.outWidth, opts.outHeight, orientation, size);
+    }
+
+    /**
+     * Return the cover art of the given ISO base media file, scaled to fit
+     * within the given size, or {@code null} if it has none that covers the
+     * given size.
+     */
+    public static @Nullable Bitmap fromIso(@NonNull File file, @NonNull Size size)
+            throws IOException {
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface iso = IsoInterface.fromSource(source,
+                    new int[] { IsoInterface.BOX_COVR });
+            final byte[] covr = iso.getBoxBytes(IsoInterface.BOX_COVR);
+            final int length = getCoverArtLength(covr);
+            if (length == -1) return null;
+
+            // Cover art doesn't need to match the frame size of the video
+            return decode(covr, DATA_HEADER_SIZE, length, 0, 0,
+                    ExifInterface.ORIENTATION_UNDEFINED, size);
+        }
+    }
+
+    /**
+     * Return the length of the image held by the first 'data' box of the
+     * given 'covr' box contents, which starts just past its header, or
+     * {@code -1} if there is none.
+     */
+    private static int getCoverArtLength(@Nullable byte[] covr) {
+        if (covr == null || covr.length <= DATA_HEADER_SIZE) return -1;
+        final long len = Integer.toUnsignedLong(Memory.peekInt(covr, 0, ByteOrder.BIG_ENDIAN));
+        final int type = Memory.peekInt(covr, 4, ByteOrder.BIG_ENDIAN);
+        if (type != BOX_DATA || len <= DATA_HEADER_SIZE || len > covr.length) {
+            Log.w(TAG, "Malformed cover art of length " + len);
+            return -1;
+        }
+        return (int) len - DATA_HEADER_SIZE;
+    }
+
+    /**
+     * Decode the given embedded thumbnail, unless it's too small for the
+     * given size or doesn't match the aspect ratio of the full media, when
+     * known. The full dimensions are as stored, before applying the given
+     * EXIF orientation.
+     */
+    private static @Nullable Bitmap decode(@NonNull byte[] data, int offset, int length,
+            int fullWidth, int fullHeight, int orientation, @NonNull Size size) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, opts);
+        final int width = opts.outWidth;
+        final int height = opts.outHeight;
+        if (width <= 0 || height <= 0) return null;
+
+        if (fullWidth > 0 && fullHeight > 0) {
+            final float aspect = (float) width / height;
+            final float fullAspect = (float) fullWidth / fullHeight;
+            if (Math.abs(aspect - fullAspect) > fullAspect * ASPECT_TOLERANCE) return null;
+        }
+
+        // Compare against the size it'll have once rotated upright
+        final boolean transposed = isTransposed(orientation);
+        final int uprightWidth = transposed ? height : width;
+        final int uprightHeight = transposed ? width : height;
+        if (!covers(uprightWidth, uprightHeight, size)) return null;
+
+        // Decode no larger than needed, then scale down to fit exactly
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = 1;
+        while (covers(uprightWidth / (opts.inSampleSize * 2),
+                uprightHeight / (opts.inSampleSize * 2), size)) {
+            opts.inSampleSize *= 2;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, opts);
+        if (bitmap == null) return null;
+
+        final float scale = Math.min(1f, Math.min(
+                (float) size.getWidth() / (transposed ? bitmap.getHeight() : bitmap.getWidth()),
+                (float) size.getHeight() / (transposed ? bitmap.getWidth() : bitmap.getHeight())));
+        final Matrix matrix = getOrientationMatrix(orientation);
+        if (matrix == null && scale == 1f) return bitmap;
+
+        final Matrix transform = (matrix != null) ? matrix : new Matrix();
+        transform.postScale(scale, scale);
+        final Bitmap result = Bitmap.createBitmap(bitmap, 0, 0,
+                bitmap.getWidth(), bitmap.getHeight(), transform, true);
+        if (result != bitmap) bitmap.recycle();
+        return result;
+    }
+
+    /**
+     * Test if an image of the given dimensions can be scaled to fit within
+     * the given size without being enlarged.
+     */
+    private static boolean covers(int width, int height, @NonNull Size size) {
+        return width >= size.getWidth() || height >= size.getHeight();
+    }
+
+    /**
+     * Test if the given EXIF orientation swaps width and height.
+     */
+    private static boolean isTransposed(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the transform that rotates an image with the given EXIF
+     * orientation upright, or {@code null} if it already is.
+     */
+    private static @Nullable Matrix getOrientationMatrix(int orientation) {
+        final Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return null;
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative IDs, such as the {@code _id} values of a
+ * table. IDs are grouped into blocks of 65,536, and each block holds either a
+ * sorted array or a plain bitmap, whichever is smaller. Dense ranges cost
+ * about one bit per possible ID, while sparse IDs cost two bytes each.
+ * <p>
+ * Adding IDs in ascending order, as read from an index, only ever appends.
+ */
+public class IdBitmap {
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    /** Size at which a sorted array costs as much as a bitmap */
+    private static final int MAX_ARRAY = (1 << BLOCK_BITS) / 16;
+
+    /** Map from the high bits of IDs to the block holding their low bits */
+    private final LongSparseArray<Block> mBlocks = new LongSparseArray<>();
+    private int mSize;
+
+    private static class Block {
+        char[] array = new char[4];
+        int size;
+        long[] bits;
+
+        boolean add(int low) {
+            if (bits != null) {
+                final long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0) return false;
+                bits[low >>> 6] |= mask;
+                return true;
+            }
+
+            int index = (size == 0 || array[size - 1] < low) ? -(size + 1)
+                    : Arrays.binarySearch(array, 0, size, (char) low);
+            if (index >= 0) return false;
+            index = -(index + 1);
+
+            if (size == MAX_ARRAY) {
+                bits = new long[(BLOCK_MASK + 1) >>> 6];
+                for (int i = 0; i < size; i++) {
+                    bits[array[i] >>> 6] |= 1L << array[i];
+                }
+                array = null;
+                return add(low);
+            }
+            if (size == array.length) {
+                array = Arrays.copyOf(array, Math.min(size * 2, MAX_ARRAY));
+            }
+            System.arraycopy(array, index, array, index + 1, size - index);
+            array[index] = (char) low;
+            size++;
+            return true;
+        }
+
+        boolean contains(int low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, size, (char) low) >= 0;
+        }
+    }
+
+    public void add(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Invalid ID " + id);
+        }
+        final long high = id >>> BLOCK_BITS;
+        Block block = mBlocks.get(high);
+        if (block == null) {
+            block = new Block();
+            mBlocks.put(high, block);
+        }
+        if (block.add((int) (id & BLOCK_MASK))) {
+            mSize++;
+        }
+    }
+
+    public boolean contains(long id) {
+        if (id < 0) return false;
+        final Block block = mBlocks.get(id >>> BLOCK_BITS);
+        return (block != null) && block.contains((int) (id & BLOCK_MASK));
+    }
+
+    public int size() {
+        return mSize;
+    }
+}
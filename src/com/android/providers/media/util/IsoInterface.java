@@ -19,26 +19,22 @@ package com.android.providers.media.util;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.media.ExifInterface;
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.OsConstants;
 import android.util.Log;
 import android.util.LongArray;
 
-import libcore.io.IoBridge;
+import com.android.internal.util.ArrayUtils;
+
 import libcore.io.Memory;
 
-import java.io.EOFException;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.Queue;
 import java.util.UUID;
 
 /**
@@ -58,6 +54,7 @@ public class IsoInterface {
     public static final int BOX_XYZ = 0xa978797a;
     public static final int BOX_GPS = 0x67707320;
     public static final int BOX_GPS0 = 0x67707330;
+    public static final int BOX_COVR = 0x636f7672;
 
     /**
      * Test if given box type is a well-known parent box type.
@@ -89,22 +86,76 @@ public class IsoInterface {
         }
     }
 
-    /** Top-level boxes */
-    private List<Box> mRoots = new ArrayList<>();
-    /** Flattened view of all boxes */
-    private List<Box> mFlattened = new ArrayList<>();
+    private static final int BOX_MOOV = 0x6d6f6f76;
+    private static final int BOX_TRAK = 0x7472616b;
+    private static final int BOX_UDTA = 0x75647461;
+    private static final int BOX_ILST = 0x696c7374;
+
+    /**
+     * Test if a box of the given type may be nested inside the given parent
+     * box type. Cover art only lives in the movie and track metadata, never
+     * in the sample tables or fragments, which is where most of the boxes
+     * are. Boxes that are redacted, or that hold XMP, are looked for under
+     * every parent, since writers place them in all sorts of unusual spots
+     * and missing one would leak location data.
+     */
+    private static boolean mayContain(int parent, int type) {
+        switch (type) {
+            case BOX_COVR:
+                switch (parent) {
+                    case BOX_MOOV:
+                    case BOX_TRAK:
+                    case BOX_UDTA:
+                    case BOX_META:
+                    case BOX_ILST:
+                        return true;
+                    default:
+                        return false;
+                }
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Test if a box of the given type may appear at the top level of a file,
+     * outside of the single 'moov' box. As with {@link #mayContain}, only
+     * cover art is trusted to stay inside it.
+     */
+    private static boolean mayAppearTopLevel(int type) {
+        switch (type) {
+            case BOX_COVR:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /** Requested box types, or {@code null} to collect all boxes */
+    private final @Nullable int[] mTypes;
+    /** Source to read payloads from on demand, or {@code null} if read eagerly */
+    private final @Nullable MetadataSource mSource;
+    /** Stop parsing once the 'moov' box has been parsed */
+    private boolean mStopAfterMoov;
+    private boolean mDone;
+
+    /** Collected boxes, in breadth-first order */
+    private final List<Box> mBoxes = new ArrayList<>();
 
     private static class Box {
         public final int type;
-        public final long[] range;
+        public final long start;
+        public final long length;
+        public final int depth;
         public UUID uuid;
         public byte[] data;
-        public List<Box> children;
         public int headerSize;
 
-        public Box(int type, long[] range) {
+        public Box(int type, long start, long length, int depth) {
             this.type = type;
-            this.range = range;
+            this.start = start;
+            this.length = length;
+            this.depth = depth;
         }
     }
 
@@ -114,34 +165,40 @@ public class IsoInterface {
         return new String(buf);
     }
 
-    private static int readInt(@NonNull FileDescriptor fd)
-            throws ErrnoException, IOException {
-        final byte[] buf = new byte[4];
-        if (Os.read(fd, buf, 0, 4) == 4) {
-            return Memory.peekInt(buf, 0, ByteOrder.BIG_ENDIAN);
-        } else {
-            throw new EOFException();
-        }
+    private static @NonNull UUID readUuid(@NonNull MetadataSource source, long pos)
+            throws IOException {
+        final long high = (((long) source.readInt(pos)) << 32L)
+                | ((long) source.readInt(pos + 4)) & 0xffffffffL;
+        final long low = (((long) source.readInt(pos + 8)) << 32L)
+                | ((long) source.readInt(pos + 12)) & 0xffffffffL;
+        return new UUID(high, low);
     }
 
-    private static @NonNull UUID readUuid(@NonNull FileDescriptor fd)
-            throws ErrnoException, IOException {
-        final long high = (((long) readInt(fd)) << 32L) | ((long) readInt(fd)) & 0xffffffffL;
-        final long low = (((long) readInt(fd)) << 32L) | ((long) readInt(fd)) & 0xffffffffL;
-        return new UUID(high, low);
+    private boolean isWanted(int type) {
+        return mTypes == null || ArrayUtils.contains(mTypes, type);
     }
 
-    private static @Nullable Box parseNextBox(@NonNull FileDescriptor fd, long end,
-            @NonNull String prefix) throws ErrnoException, IOException {
-        final long pos = Os.lseek(fd, 0, OsConstants.SEEK_CUR);
+    private boolean isWantedWithin(int parent) {
+        if (mTypes == null) return true;
+        for (int type : mTypes) {
+            if (mayContain(parent, type)) return true;
+        }
+        return false;
+    }
 
+    /**
+     * Parse the box at the given position, returning the position just past
+     * it, or {@code -1} if no valid box was found.
+     */
+    private long parseNextBox(@NonNull MetadataSource source, long pos, long end, int depth,
+            @NonNull String prefix) throws IOException {
         int headerSize = 8;
         if (end - pos < headerSize) {
-            return null;
+            return -1;
         }
 
-        long len = Integer.toUnsignedLong(readInt(fd));
-        final int type = readInt(fd);
+        long len = Integer.toUnsignedLong(source.readInt(pos));
+        final int type = source.readInt(pos + 4);
 
         if (len == 0) {
             // Length 0 means the box extends to the end of the file.
@@ -149,113 +206,134 @@ public class IsoInterface {
         } else if (len == 1) {
             // Actually 64-bit box length.
             headerSize += 8;
-            long high = readInt(fd);
-            long low = readInt(fd);
+            long high = source.readInt(pos + 8);
+            long low = source.readInt(pos + 12);
             len = (high << 32L) | (low & 0xffffffffL);
         }
 
         if (len < headerSize || pos + len > end) {
             Log.w(TAG, "Invalid box at " + pos + " of length " + len
                     + ". End of parent " + end);
-            return null;
+            return -1;
         }
 
+        // Boxes nobody asked for are only walked past
+        final Box box = isWanted(type) ? new Box(type, pos, len, depth) : null;
+
         // Skip past legacy data on 'meta' box
+        long childPos = pos + headerSize;
         if (type == BOX_META) {
-            readInt(fd);
+            childPos += 4;
         }
 
-        final Box box = new Box(type, new long[] { pos, len });
-        box.headerSize = headerSize;
-
         // Parse UUID box
-        if (type == BOX_UUID) {
-            box.headerSize += 16;
-            box.uuid = readUuid(fd);
+        if (type == BOX_UUID && box != null) {
+            box.uuid = readUuid(source, pos + headerSize);
+            headerSize += 16;
             if (LOGV) {
                 Log.v(TAG, prefix + "  UUID " + box.uuid);
             }
-
-            if (len > Integer.MAX_VALUE) {
-                Log.w(TAG, "Skipping abnormally large uuid box");
-                return null;
-            }
-
-            box.data = new byte[(int) (len - box.headerSize)];
-            IoBridge.read(fd, box.data, 0, box.data.length);
         }
 
-        // Parse XMP box
-        if (type == BOX_XMP) {
+        // Payloads are only copied when the source won't outlive parsing;
+        // otherwise they're read from the source when asked for
+        if ((type == BOX_UUID || type == BOX_XMP) && box != null && mSource == null) {
             if (len > Integer.MAX_VALUE) {
-                Log.w(TAG, "Skipping abnormally large xmp box");
-                return null;
+                Log.w(TAG, "Skipping abnormally large " + typeToString(type) + " box");
+                return -1;
             }
-            box.data = new byte[(int) (len - box.headerSize)];
-            IoBridge.read(fd, box.data, 0, box.data.length);
+            box.data = new byte[(int) (len - headerSize)];
+            source.read(pos + headerSize, box.data, 0, box.data.length);
         }
 
         if (LOGV) {
             Log.v(TAG, prefix + "Found box " + typeToString(type)
-                    + " at " + pos + " hdr " + box.headerSize + " length " + len);
+                    + " at " + pos + " hdr " + headerSize + " length " + len);
         }
 
-        // Recursively parse any children boxes
-        if (isBoxParent(type)) {
-            box.children = new ArrayList<>();
+        if (box != null) {
+            box.headerSize = headerSize;
+            mBoxes.add(box);
+        }
 
-            Box child;
-            while ((child = parseNextBox(fd, pos + len, prefix + "  ")) != null) {
-                box.children.add(child);
+        // Recursively parse any children boxes that might be interesting
+        if (isBoxParent(type) && isWantedWithin(type)) {
+            while ((childPos = parseNextBox(source, childPos, pos + len, depth + 1,
+                    prefix + "  ")) != -1) {
             }
         }
 
-        // Skip completely over ourselves
-        Os.lseek(fd, pos + len, OsConstants.SEEK_SET);
-        return box;
+        if (depth == 0 && type == BOX_MOOV && mStopAfterMoov) {
+            mDone = true;
+        }
+        return pos + len;
     }
 
-    private IsoInterface(@NonNull FileDescriptor fd) throws IOException {
-        try {
-            Os.lseek(fd, 4, OsConstants.SEEK_SET);
-            if (readInt(fd) != BOX_FTYP) {
-                if (LOGV) {
-                    Log.w(TAG, "Missing 'ftyp' header");
-                }
-                return;
+    private IsoInterface(@NonNull MetadataSource source, @Nullable int[] types, boolean lazy)
+            throws IOException {
+        mTypes = types;
+        mSource = lazy ? source : null;
+        if (types != null) {
+            mStopAfterMoov = true;
+            for (int type : types) {
+                if (mayAppearTopLevel(type)) mStopAfterMoov = false;
             }
+        }
 
-            final long end = Os.lseek(fd, 0, OsConstants.SEEK_END);
-            Os.lseek(fd, 0, OsConstants.SEEK_SET);
-            Box box;
-            while ((box = parseNextBox(fd, end, "")) != null) {
-                mRoots.add(box);
+        if (source.readInt(4) != BOX_FTYP) {
+            if (LOGV) {
+                Log.w(TAG, "Missing 'ftyp' header");
             }
-        } catch (ErrnoException e) {
-            throw e.rethrowAsIOException();
+            return;
         }
 
-        // Also create a flattened structure to speed up searching
-        final Queue<Box> queue = new LinkedList<>(mRoots);
-        while (!queue.isEmpty()) {
-            final Box box = queue.poll();
-            mFlattened.add(box);
-            if (box.children != null) {
-                queue.addAll(box.children);
-            }
+        final long end = source.length();
+        long pos = 0;
+        while (!mDone && (pos = parseNextBox(source, pos, end, 0, "")) != -1) {
         }
+
+        // Boxes were collected depth-first; sort them so that the first box
+        // of a type is the shallowest one, which is stable within a depth
+        mBoxes.sort((a, b) -> Integer.compare(a.depth, b.depth));
     }
 
     public static @NonNull IsoInterface fromFile(@NonNull File file)
             throws IOException {
-        try (FileInputStream is = new FileInputStream(file)) {
-            return fromFileDescriptor(is.getFD());
+        try (MetadataSource source = MetadataSource.open(file)) {
+            return new IsoInterface(source, null, false);
         }
     }
 
     public static @NonNull IsoInterface fromFileDescriptor(@NonNull FileDescriptor fd)
             throws IOException {
-        return new IsoInterface(fd);
+        try (MetadataSource source = MetadataSource.wrap(fd)) {
+            return new IsoInterface(source, null, false);
+        }
+    }
+
+    /**
+     * Parse the given source, which may be shared with other parsers. Box
+     * payloads aren't copied up front, but are read from the source when
+     * requested, so it must remain open while this interface is in use.
+     */
+    public static @NonNull IsoInterface fromSource(@NonNull MetadataSource source)
+            throws IOException {
+        return new IsoInterface(source, null, true);
+    }
+
+    /**
+     * Parse the given source, only collecting boxes of the given types. Boxes
+     * of other types are walked past without being recorded, containers that
+     * can't hold any of the given types are skipped entirely, and parsing
+     * ends once the 'moov' box has been parsed when none of the given types
+     * can appear outside of it. Only cover art is narrowed down this way;
+     * boxes that matter for redaction are found wherever they are. As with
+     * {@link #fromSource(MetadataSource)}, the source must remain open while
+     * this interface is in use.
+     */
+    public static @NonNull IsoInterface fromSource(@NonNull MetadataSource source,
+            @NonNull int[] types) throws IOException {
+        return new IsoInterface(source, types, true);
     }
 
     /**
@@ -266,10 +344,10 @@ public class IsoInterface {
      */
     public @NonNull long[] getBoxRanges(int type) {
         LongArray res = new LongArray();
-        for (Box box : mFlattened) {
+        for (Box box : mBoxes) {
             if (box.type == type) {
-                res.add(box.range[0] + box.headerSize);
-                res.add(box.range[0] + box.range[1]);
+                res.add(box.start + box.headerSize);
+                res.add(box.start + box.length);
             }
         }
         return res.toArray();
@@ -277,36 +355,87 @@ public class IsoInterface {
 
     public @NonNull long[] getBoxRanges(@NonNull UUID uuid) {
         LongArray res = new LongArray();
-        for (Box box : mFlattened) {
+        for (Box box : mBoxes) {
             if (box.type == BOX_UUID && Objects.equals(box.uuid, uuid)) {
-                res.add(box.range[0] + box.headerSize);
-                res.add(box.range[0] + box.range[1]);
+                res.add(box.start + box.headerSize);
+                res.add(box.start + box.length);
             }
         }
         return res.toArray();
     }
 
-    /**
-     * Return contents of the first box of requested type.
-     */
-    public @Nullable byte[] getBoxBytes(int type) {
-        for (Box box : mFlattened) {
+    private @Nullable Box findBox(int type) {
+        for (Box box : mBoxes) {
             if (box.type == type) {
-                return box.data;
+                return box;
             }
         }
         return null;
     }
 
-    /**
-     * Return contents of the first UUID box of requested type.
-     */
-    public @Nullable byte[] getBoxBytes(@NonNull UUID uuid) {
-        for (Box box : mFlattened) {
+    private @Nullable Box findBox(@NonNull UUID uuid) {
+        for (Box box : mBoxes) {
             if (box.type == BOX_UUID && Objects.equals(box.uuid, uuid)) {
-                return box.data;
+                return box;
             }
         }
         return null;
     }
+
+    private @Nullable byte[] getPayload(@Nullable Box box) {
+        if (box == null) return null;
+        if (box.data != null || mSource == null) return box.data;
+
+        final long length = box.length - box.headerSize;
+        if (length > Integer.MAX_VALUE) {
+            Log.w(TAG, "Skipping abnormally large " + typeToString(box.type) + " box");
+            return null;
+        }
+        final byte[] data = new byte[(int) length];
+        try {
+            mSource.read(box.start + box.headerSize, data, 0, data.length);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + typeToString(box.type) + " box: " + e);
+            return null;
+        }
+        return data;
+    }
+
+    private @Nullable InputStream openPayload(@Nullable Box box) {
+        if (box == null) return null;
+        if (mSource == null) {
+            return (box.data != null) ? new ByteArrayInputStream(box.data) : null;
+        }
+        return mSource.openStream(box.start + box.headerSize, box.length - box.headerSize);
+    }
+
+    /**
+     * Return contents of the first box of requested type.
+     */
+    public @Nullable byte[] getBoxBytes(int type) {
+        return getPayload(findBox(type));
+    }
+
+    /**
+     * Return contents of the first UUID box of requested type.
+     */
+    public @Nullable byte[] getBoxBytes(@NonNull UUID uuid) {
+        return getPayload(findBox(uuid));
+    }
+
+    /**
+     * Return a stream over the contents of the first box of requested type,
+     * which reads directly from the parsed source instead of copying it.
+     */
+    public @Nullable InputStream openBoxStream(int type) {
+        return openPayload(findBox(type));
+    }
+
+    /**
+     * Return a stream over the contents of the first UUID box of requested
+     * type, which reads directly from the parsed source instead of copying it.
+     */
+    public @Nullable InputStream openBoxStream(@NonNull UUID uuid) {
+        return openPayload(findBox(uuid));
+    }
 }
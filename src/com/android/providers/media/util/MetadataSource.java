@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static android.system.OsConstants.O_CLOEXEC;
+import static android.system.OsConstants.O_RDONLY;
+
+import android.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+import libcore.io.Memory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Random-access view of a single open media file, shared by every parser that
+ * extracts metadata from it, so that the file is opened once and its leading
+ * bytes are read once.
+ * <p>
+ * The header region of the file is read into a direct buffer up front, which
+ * is where container headers, EXIF and most XMP live. Small reads beyond it
+ * are served from a window that is refilled with a single positional read
+ * whenever a read falls outside of it, so walking box headers scattered
+ * through a large file costs one syscall per window instead of several per
+ * header. Buffers are pooled per thread, so steady-state scanning doesn't
+ * allocate them.
+ */
+public class MetadataSource implements AutoCloseable {
+    /** Size of the header region read up front */
+    private static final int HEADER_SIZE = 64 * 1024;
+    /** Size of the window used for small reads beyond the header region */
+    private static final int WINDOW_SIZE = 8 * 1024;
+
+    private static class Buffers {
+        final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        final byte[] window = new byte[WINDOW_SIZE];
+    }
+
+    private static final ThreadLocal<Buffers> sBuffers = new ThreadLocal<>();
+
+    private final FileDescriptor mFd;
+    private final boolean mOwnsFd;
+    private final long mLength;
+
+    private Buffers mBuffers;
+    private ByteBuffer mHeader;
+    /** Reusable view of {@link #mHeader} used for bulk copies */
+    private ByteBuffer mHeaderView;
+    private int mHeaderLength;
+    private byte[] mWindow;
+    private long mWindowStart;
+    private int mWindowLength;
+    private final byte[] mScratch = new byte[4];
+
+    /** Number of positional reads issued against the descriptor */
+    private int mReadCount;
+
+    private MetadataSource(@NonNull FileDescriptor fd, boolean ownsFd) throws IOException {
+        mFd = fd;
+        mOwnsFd = ownsFd;
+        try {
+            mLength = Os.fstat(fd).st_size;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+
+        mBuffers = sBuffers.get();
+        if (mBuffers != null) {
+            sBuffers.set(null);
+        } else {
+            mBuffers = new Buffers();
+        }
+        mHeader = mBuffers.header;
+        mWindow = mBuffers.window;
+        mHeader.order(ByteOrder.BIG_ENDIAN);
+        mHeader.clear();
+        mHeader.limit((int) Math.min(mLength, HEADER_SIZE));
+        try {
+            while (mHeader.hasRemaining()) {
+                mReadCount++;
+                if (Os.pread(fd, mHeader, mHeader.position()) <= 0) break;
+            }
+        } catch (ErrnoException e) {
+            release();
+            throw e.rethrowAsIOException();
+        }
+        mHeaderLength = mHeader.position();
+        mHeaderView = mHeader.duplicate();
+    }
+
+    /**
+     * Open the given file for metadata extraction; the returned source owns
+     * the opened descriptor.
+     */
+    public static @NonNull MetadataSource open(@NonNull File file) throws IOException {
+        final FileDescriptor fd;
+        try {
+            fd = Os.open(file.getAbsolutePath(), O_RDONLY | O_CLOEXEC, 0);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        try {
+            return new MetadataSource(fd, true);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(fd);
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap the given descriptor for metadata extraction; the caller remains
+     * responsible for closing it.
+     */
+    public static @NonNull MetadataSource wrap(@NonNull FileDescriptor fd) throws IOException {
+        return new MetadataSource(fd, false);
+    }
+
+    /**
+     * Return the underlying descriptor, for use by parsers that can't work
+     * over this source directly, like {@link android.media.MediaMetadataRetriever}.
+     * Since all reads through this source are positional, sharing it is safe.
+     */
+    public @NonNull FileDescriptor getFD() {
+        return mFd;
+    }
+
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Read up to the requested number of bytes at the given position,
+     * returning the number of bytes read, which is only short at the end of
+     * the file.
+     */
+    public int read(long position, @NonNull byte[] dst, int off, int len) throws IOException {
+        if (position < 0) throw new IllegalArgumentException();
+        int total = 0;
+        if (position < mHeaderLength) {
+            final int n = (int) Math.min(len, mHeaderLength - position);
+            mHeaderView.clear();
+            mHeaderView.position((int) position);
+            mHeaderView.get(dst, off, n);
+            total += n;
+        }
+        if (total < len && len - total < WINDOW_SIZE) {
+            // Small reads go through the window, refilling it when needed
+            final long pos = position + total;
+            if (pos < mWindowStart || pos + (len - total) > mWindowStart + mWindowLength) {
+                fillWindow(pos);
+            }
+            final int n = (int) Math.max(0,
+                    Math.min(len - total, mWindowStart + mWindowLength - pos));
+            System.arraycopy(mWindow, (int) (pos - mWindowStart), dst, off + total, n);
+            return total + n;
+        }
+        try {
+            while (total < len) {
+                mReadCount++;
+                final int n = Os.pread(mFd, dst, off + total, len - total, position + total);
+                if (n <= 0) break;
+                total += n;
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        return total;
+    }
+
+    private void fillWindow(long position) throws IOException {
+        mWindowStart = position;
+        mWindowLength = 0;
+        try {
+            while (mWindowLength < WINDOW_SIZE) {
+                mReadCount++;
+                final int n = Os.pread(mFd, mWindow, mWindowLength,
+                        WINDOW_SIZE - mWindowLength, position + mWindowLength);
+                if (n <= 0) break;
+                mWindowLength += n;
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Return the number of positional reads issued against the underlying
+     * descriptor so far.
+     */
+    @VisibleForTesting
+    public int getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Read a big-endian integer at the given position.
+     */
+    public int readInt(long position) throws IOException {
+        if (position >= 0 && position + 4 <= mHeaderLength) {
+            return mHeader.getInt((int) position);
+        }
+        if (read(position, mScratch, 0, 4) != 4) {
+            throw new EOFException();
+        }
+        return Memory.peekInt(mScratch, 0, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Return a stream over the given region of this source, which remains
+     * valid until this source is closed.
+     */
+    public @NonNull InputStream openStream(long offset, long length) {
+        return new RegionInputStream(offset, Math.min(offset + length, mLength));
+    }
+
+    /**
+     * Return a stream over this entire source.
+     */
+    public @NonNull InputStream openStream() {
+        return openStream(0, mLength);
+    }
+
+    private void release() {
+        if (mBuffers != null) {
+            sBuffers.set(mBuffers);
+            mBuffers = null;
+            mHeader = null;
+            mHeaderView = null;
+            mHeaderLength = 0;
+            mWindow = null;
+            mWindowLength = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+        if (mOwnsFd) {
+            IoUtils.closeQuietly(mFd);
+        }
+    }
+
+    private class RegionInputStream extends InputStream {
+        private final long mEnd;
+        private long mPosition;
+        private long mMark;
+
+        RegionInputStream(long start, long end) {
+            mPosition = start;
+            mMark = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition >= mEnd) return -1;
+            if (mPosition < mHeaderLength) {
+                return mHeader.get((int) mPosition++) & 0xff;
+            }
+            if (MetadataSource.this.read(mPosition, mScratch, 0, 1) != 1) return -1;
+            mPosition++;
+            return mScratch[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (mPosition >= mEnd) return -1;
+            final int n = MetadataSource.this.read(mPosition, b, off,
+                    (int) Math.min(len, mEnd - mPosition));
+            if (n <= 0) return -1;
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mMark;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.media.ExifInterface;
+import android.util.ArraySet;
+import android.util.LongArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.Memory;
+import libcore.util.EmptyArray;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Ranges of a media file that should be redacted from callers that don't
+ * hold {@link android.Manifest.permission#ACCESS_MEDIA_LOCATION}, along with
+ * the offsets of box types that should be rewritten as 'free'.
+ */
+public class RedactionInfo {
+    public static final RedactionInfo EMPTY = new RedactionInfo(EmptyArray.LONG, EmptyArray.LONG);
+
+    /**
+     * Hidden column of the files table where the scanner persists the
+     * {@link #encode(long, long)} form of these ranges.
+     */
+    public static final String COLUMN_REDACTION_INFO = "redaction_info";
+
+    /** Version of the {@link #encode(long, long)} format */
+    private static final int ENCODING_VERSION = 1;
+
+    /**
+     * Set of Exif tags that should be considered for redaction.
+     */
+    private static final String[] REDACTED_EXIF_TAGS = new String[] {
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_AREA_INFORMATION,
+            ExifInterface.TAG_GPS_DOP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_DEST_BEARING,
+            ExifInterface.TAG_GPS_DEST_BEARING_REF,
+            ExifInterface.TAG_GPS_DEST_DISTANCE,
+            ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
+            ExifInterface.TAG_GPS_DEST_LATITUDE,
+            ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
+            ExifInterface.TAG_GPS_DEST_LONGITUDE,
+            ExifInterface.TAG_GPS_DEST_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_DIFFERENTIAL,
+            ExifInterface.TAG_GPS_IMG_DIRECTION,
+            ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_MAP_DATUM,
+            ExifInterface.TAG_GPS_MEASURE_MODE,
+            ExifInterface.TAG_GPS_PROCESSING_METHOD,
+            ExifInterface.TAG_GPS_SATELLITES,
+            ExifInterface.TAG_GPS_SPEED,
+            ExifInterface.TAG_GPS_SPEED_REF,
+            ExifInterface.TAG_GPS_STATUS,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_TRACK,
+            ExifInterface.TAG_GPS_TRACK_REF,
+            ExifInterface.TAG_GPS_VERSION_ID,
+    };
+
+    /**
+     * Set of XMP tags that should be considered for redaction, for use with
+     * {@link XmpInterface#fromContainer(ExifInterface, Set)}.
+     */
+    public static final Set<String> REDACTED_XMP_TAGS = Collections.unmodifiableSet(
+            new ArraySet<>(Arrays.asList(REDACTED_EXIF_TAGS)));
+
+    /**
+     * Set of ISO boxes that should be considered for redaction.
+     */
+    private static final int[] REDACTED_ISO_BOXES = new int[] {
+            IsoInterface.BOX_LOCI,
+            IsoInterface.BOX_XYZ,
+            IsoInterface.BOX_GPS,
+            IsoInterface.BOX_GPS0,
+    };
+
+    /**
+     * Set of ISO boxes that need to be parsed for redaction, including those
+     * holding XMP metadata, for use with
+     * {@link IsoInterface#fromSource(MetadataSource, int[])}.
+     */
+    public static final int[] ISO_BOX_TYPES = new int[] {
+            IsoInterface.BOX_LOCI,
+            IsoInterface.BOX_XYZ,
+            IsoInterface.BOX_GPS,
+            IsoInterface.BOX_GPS0,
+            IsoInterface.BOX_UUID,
+            IsoInterface.BOX_XMP,
+    };
+
+    /** Number of leading bytes examined by {@link #mayContainExif} */
+    private static final int EXIF_SNIFF_LENGTH = 256;
+    private static final byte[] RAF_SIGNATURE =
+            "FUJIFILMCCD-RAW".getBytes(StandardCharsets.US_ASCII);
+    private static final int BOX_FTYP = 0x66747970;
+    private static final int BRAND_MIF1 = 0x6d696631;
+    private static final int BRAND_HEIC = 0x68656963;
+
+    public final long[] redactionRanges;
+    public final long[] freeOffsets;
+
+    public RedactionInfo(long[] redactionRanges, long[] freeOffsets) {
+        this.redactionRanges = redactionRanges;
+        this.freeOffsets = freeOffsets;
+    }
+
+    /**
+     * Encode these ranges into a compact form, tagged with the size and last
+     * modified time of the file they were derived from.
+     */
+    public @NonNull byte[] encode(long size, long lastModified) {
+        final ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 8 + 4 + 4
+                + 8 * (redactionRanges.length + freeOffsets.length));
+        buf.putInt(ENCODING_VERSION);
+        buf.putLong(size);
+        buf.putLong(lastModified);
+        buf.putInt(redactionRanges.length);
+        buf.putInt(freeOffsets.length);
+        for (long value : redactionRanges) {
+            buf.putLong(value);
+        }
+        for (long value : freeOffsets) {
+            buf.putLong(value);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decode ranges produced by {@link #encode(long, long)}, returning
+     * {@code null} if they're malformed or were derived from a file of a
+     * different size or last modified time.
+     */
+    public static @Nullable RedactionInfo decode(@Nullable byte[] encoded, long size,
+            long lastModified) {
+        if (encoded == null) return null;
+        try {
+            final ByteBuffer buf = ByteBuffer.wrap(encoded);
+            if (buf.getInt() != ENCODING_VERSION) return null;
+            if (buf.getLong() != size) return null;
+            if (buf.getLong() != lastModified) return null;
+            final int rangesLength = buf.getInt();
+            final int freeLength = buf.getInt();
+            if (rangesLength < 0 || freeLength < 0
+                    || buf.remaining() != 8L * (rangesLength + (long) freeLength)) {
+                return null;
+            }
+            final long[] ranges = new long[rangesLength];
+            for (int i = 0; i < rangesLength; i++) {
+                ranges[i] = buf.getLong();
+            }
+            final long[] free = new long[freeLength];
+            for (int i = 0; i < freeLength; i++) {
+                free[i] = buf.getLong();
+            }
+            return new RedactionInfo(ranges, free);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the given source to determine what needs to be redacted.
+     */
+    public static @NonNull RedactionInfo fromSource(@NonNull MetadataSource source)
+            throws IOException {
+        final IsoInterface iso = IsoInterface.fromSource(source, ISO_BOX_TYPES);
+        return fromSource(source, iso, XmpInterface.fromContainer(iso, REDACTED_XMP_TAGS));
+    }
+
+    /**
+     * Determine what needs to be redacted from the given source, whose ISO
+     * boxes have already been parsed with {@link #ISO_BOX_TYPES}. EXIF is
+     * only parsed when the source is a container that can carry it.
+     */
+    public static @NonNull RedactionInfo fromSource(@NonNull MetadataSource source,
+            @NonNull IsoInterface iso, @NonNull XmpInterface isoXmp) throws IOException {
+        if (!mayContainExif(source)) {
+            return fromContainers(null, null, iso, isoXmp);
+        }
+        final ExifInterface exif = new ExifInterface(source.openStream());
+        return fromContainers(exif, XmpInterface.fromContainer(exif, REDACTED_XMP_TAGS),
+                iso, isoXmp);
+    }
+
+    /**
+     * Test if the given source starts with the signature of a container that
+     * {@link ExifInterface} extracts attributes from: JPEG, TIFF-based raw
+     * formats, ORF, RW2, RAF, or HEIF. Everything else, such as most audio
+     * and video, never yields any EXIF attributes.
+     */
+    @VisibleForTesting
+    public static boolean mayContainExif(@NonNull MetadataSource source) throws IOException {
+        final byte[] header = new byte[EXIF_SNIFF_LENGTH];
+        final int length = source.read(0, header, 0, header.length);
+        if (length < 4) return false;
+
+        final int magic = Memory.peekInt(header, 0, ByteOrder.BIG_ENDIAN);
+        if ((magic >>> 8) == 0xFFD8FF) return true;
+        switch (magic) {
+            case 0x49492A00: // TIFF, little endian
+            case 0x4D4D002A: // TIFF, big endian
+            case 0x4949524F: // ORF
+            case 0x49495253: // ORF
+            case 0x4D4D4F52: // ORF
+            case 0x49495500: // RW2
+                return true;
+        }
+        if (startsWith(header, length, RAF_SIGNATURE)) return true;
+
+        // HEIF is an ISO container whose major or compatible brands include
+        // one of the still image brands
+        if (length < 16 || Memory.peekInt(header, 4, ByteOrder.BIG_ENDIAN) != BOX_FTYP) {
+            return false;
+        }
+        final long boxSize = Integer.toUnsignedLong(Memory.peekInt(header, 0,
+                ByteOrder.BIG_ENDIAN));
+        final int end = (int) Math.min(length, boxSize);
+        for (int i = 8; i + 4 <= end; i += 4) {
+            // Skip the minor version following the major brand
+            if (i == 12) continue;
+            final int brand = Memory.peekInt(header, i, ByteOrder.BIG_ENDIAN);
+            if (brand == BRAND_MIF1 || brand == BRAND_HEIC) return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(@NonNull byte[] data, int length,
+            @NonNull byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determine what needs to be redacted from containers that have already
+     * been parsed, where the {@link XmpInterface} instances were parsed with
+     * {@link #REDACTED_XMP_TAGS}. The EXIF container may be omitted when the
+     * source can't carry one.
+     */
+    public static @NonNull RedactionInfo fromContainers(@Nullable ExifInterface exif,
+            @Nullable XmpInterface exifXmp, @NonNull IsoInterface iso,
+            @NonNull XmpInterface isoXmp) {
+        final LongArray res = new LongArray();
+        final LongArray freeOffsets = new LongArray();
+        if (exif != null) {
+            for (String tag : REDACTED_EXIF_TAGS) {
+                final long[] range = exif.getAttributeRange(tag);
+                if (range != null) {
+                    res.add(range[0]);
+                    res.add(range[0] + range[1]);
+                }
+            }
+        }
+
+        for (int box : REDACTED_ISO_BOXES) {
+            final long[] ranges = iso.getBoxRanges(box);
+            for (int i = 0; i < ranges.length; i += 2) {
+                long boxTypeOffset = ranges[i] - 4;
+                freeOffsets.add(boxTypeOffset);
+                res.add(boxTypeOffset);
+                res.add(ranges[i + 1]);
+            }
+        }
+
+        // Redact xmp where present
+        if (exifXmp != null) {
+            res.addAll(exifXmp.getRedactionRanges());
+        }
+        res.addAll(isoXmp.getRedactionRanges());
+        return new RedactionInfo(res.toArray(), freeOffsets.toArray());
+    }
+}
@@ -36,6 +36,7 @@ import libcore.util.EmptyArray;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -53,21 +54,33 @@ import java.util.UUID;
  * Since values can be repeated multiple times within the same XMP data, this
  * parser prefers the first valid definition of a specific value, and it ignores
  * any subsequent attempts to redefine that value.
+ * <p>
+ * Packets are first handled by {@link XmpScanner}, which works directly over
+ * the raw bytes; only packets that it doesn't understand are handed to a full
+ * XML parser.
  */
 public class XmpInterface {
-    private static final String NS_RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    static final String NS_RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
     private static final String NS_XMP = "http://ns.adobe.com/xap/1.0/";
-    private static final String NS_XMPMM = "http://ns.adobe.com/xap/1.0/mm/";
-    private static final String NS_DC = "http://purl.org/dc/elements/1.1/";
-    private static final String NS_EXIF = "http://ns.adobe.com/exif/1.0/";
-
-    private static final String NAME_DESCRIPTION = "Description";
-    private static final String NAME_FORMAT = "format";
-    private static final String NAME_DOCUMENT_ID = "DocumentID";
-    private static final String NAME_ORIGINAL_DOCUMENT_ID = "OriginalDocumentID";
-    private static final String NAME_INSTANCE_ID = "InstanceID";
+    static final String NS_XMPMM = "http://ns.adobe.com/xap/1.0/mm/";
+    static final String NS_DC = "http://purl.org/dc/elements/1.1/";
+    static final String NS_EXIF = "http://ns.adobe.com/exif/1.0/";
+
+    static final String NAME_DESCRIPTION = "Description";
+    static final String NAME_FORMAT = "format";
+    static final String NAME_DOCUMENT_ID = "DocumentID";
+    static final String NAME_ORIGINAL_DOCUMENT_ID = "OriginalDocumentID";
+    static final String NAME_INSTANCE_ID = "InstanceID";
+
+    /**
+     * ISO box types consulted by {@link #fromContainer(IsoInterface)}, for use
+     * with {@link IsoInterface#fromSource(MetadataSource, int[])}.
+     */
+    public static final int[] ISO_BOX_TYPES = new int[] {
+            IsoInterface.BOX_UUID,
+            IsoInterface.BOX_XMP,
+    };
 
-    private final ByteCountingInputStream mIn;
     private final Set<String> mRedactedExifTags;
     private final long mXmpOffset;
     private final LongArray mRedactedRanges;
@@ -83,19 +96,46 @@ public class XmpInterface {
     private XmpInterface(
             @NonNull InputStream in, @NonNull Set<String> redactedExifTags, long[] xmpOffsets)
             throws IOException {
-        mIn = new ByteCountingInputStream(in);
+        this(in, redactedExifTags, xmpOffsets, true);
+    }
+
+    private XmpInterface(
+            @NonNull InputStream in, @NonNull Set<String> redactedExifTags, long[] xmpOffsets,
+            boolean fastPath) throws IOException {
         mRedactedExifTags = redactedExifTags;
         mXmpOffset = xmpOffsets.length == 0 ? 0 : xmpOffsets[0];
         mRedactedRanges = new LongArray();
+
+        // Try scanning the raw bytes first, and only run the full parser over
+        // packets that the scanner doesn't understand
+        if (fastPath && in.markSupported()) {
+            in.mark(Integer.MAX_VALUE);
+            final XmpScanner scanner = new XmpScanner(in, redactedExifTags);
+            if (scanner.scan()) {
+                mFormat = scanner.format;
+                mDocumentId = scanner.documentId;
+                mInstanceId = scanner.instanceId;
+                mOriginalDocumentId = scanner.originalDocumentId;
+                for (int i = 0; i < scanner.redactedRanges.size(); i++) {
+                    mRedactedRanges.add(mXmpOffset + scanner.redactedRanges.get(i));
+                }
+                return;
+            }
+            in.reset();
+        }
+        parse(new ByteCountingInputStream(in));
+    }
+
+    private void parse(@NonNull ByteCountingInputStream in) throws IOException {
         try {
             final XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(mIn, StandardCharsets.UTF_8.name());
+            parser.setInput(in, StandardCharsets.UTF_8.name());
 
             long offset = 0;
             int type;
             while ((type = parser.next()) != END_DOCUMENT) {
                 if (type != START_TAG) {
-                    offset = mIn.getOffset(parser);
+                    offset = in.getOffset(parser);
                     continue;
                 }
 
@@ -127,7 +167,7 @@ public class XmpInterface {
                     do {
                         type = parser.next();
                     } while (type != END_TAG || !parser.getName().equals(name));
-                    offset = mIn.getOffset(parser);
+                    offset = in.getOffset(parser);
                     mRedactedRanges.add(mXmpOffset + start);
                     mRedactedRanges.add(mXmpOffset + offset);
                 }
@@ -173,30 +213,47 @@ public class XmpInterface {
 
     public static @NonNull XmpInterface fromContainer(@NonNull IsoInterface iso,
             @NonNull Set<String> redactedExifTags) throws IOException {
-        byte[] buf = null;
+        // Parse directly from the box contents to avoid copying large packets
+        InputStream in = null;
         long[] xmpOffsets = EmptyArray.LONG;
-        if (buf == null) {
+        if (in == null) {
             UUID uuid = UUID.fromString("be7acfcb-97a9-42e8-9c71-999491e3afac");
-            buf = iso.getBoxBytes(uuid);
+            in = iso.openBoxStream(uuid);
             xmpOffsets = iso.getBoxRanges(uuid);
         }
-        if (buf == null) {
-            buf = iso.getBoxBytes(IsoInterface.BOX_XMP);
+        if (in == null) {
+            in = iso.openBoxStream(IsoInterface.BOX_XMP);
             xmpOffsets = iso.getBoxRanges(IsoInterface.BOX_XMP);
         }
-        if (buf == null) {
-            buf = EmptyArray.BYTE;
+        if (in == null) {
+            in = new ByteArrayInputStream(EmptyArray.BYTE);
             xmpOffsets = EmptyArray.LONG;
         }
-        return new XmpInterface(new ByteArrayInputStream(buf), redactedExifTags, xmpOffsets);
+        try (InputStream xmp = in) {
+            return new XmpInterface(xmp, redactedExifTags, xmpOffsets);
+        }
+    }
+
+    /**
+     * Parse the given raw XMP packet, optionally without trying the fast path
+     * first, so that the two can be compared.
+     */
+    @VisibleForTesting
+    public static @NonNull XmpInterface fromPacket(@NonNull byte[] packet,
+            @NonNull Set<String> redactedExifTags, boolean fastPath) throws IOException {
+        return new XmpInterface(new ByteArrayInputStream(packet), redactedExifTags,
+                EmptyArray.LONG, fastPath);
     }
 
     public static @NonNull XmpInterface fromSidecar(@NonNull File file)
             throws IOException {
-        return new XmpInterface(new FileInputStream(file));
+        // Buffer the sidecar so that it can take the fast path
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return new XmpInterface(in);
+        }
     }
 
-    private static @Nullable String maybeOverride(@Nullable String existing,
+    public static @Nullable String maybeOverride(@Nullable String existing,
             @Nullable String current) {
         if (!TextUtils.isEmpty(existing)) {
             // If already defined, first definition always wins
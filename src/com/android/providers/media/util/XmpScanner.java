@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static com.android.providers.media.util.XmpInterface.maybeOverride;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.IntArray;
+import android.util.LongArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Scanner that extracts the handful of values {@link XmpInterface} cares
+ * about directly from the raw UTF-8 bytes of an XMP packet, along with the
+ * exact byte offsets of any elements to redact.
+ * <p>
+ * Only the plain subset of XML that XMP writers emit is understood. Anything
+ * else, including anything that isn't well-formed, causes {@link #scan()} to
+ * return {@code false}, so that the caller can fall back to a full parser
+ * that will either handle it or report a meaningful error.
+ */
+class XmpScanner {
+    private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
+
+    private static final int TARGET_FORMAT = 1;
+    private static final int TARGET_DOCUMENT_ID = 2;
+    private static final int TARGET_INSTANCE_ID = 3;
+    private static final int TARGET_ORIGINAL_DOCUMENT_ID = 4;
+
+    private final InputStream mIn;
+    private final Set<String> mRedactedExifTags;
+
+    private final byte[] mBuffer = new byte[8192];
+    private int mBufferPos;
+    private int mBufferLength;
+    /** Offset of the next byte to be read, relative to the start of the packet */
+    private long mOffset;
+
+    /** Qualified names of currently open elements */
+    private final ArrayList<String> mElements = new ArrayList<>();
+    /** Index into the namespace declarations where each open element's start */
+    private final IntArray mScopes = new IntArray();
+    private final ArrayList<String> mNsPrefixes = new ArrayList<>();
+    private final ArrayList<String> mNsUris = new ArrayList<>();
+
+    private final ArrayList<String> mAttrNames = new ArrayList<>();
+    /** Attribute values, or {@code null} when they'd need decoding */
+    private final ArrayList<String> mAttrValues = new ArrayList<>();
+
+    private byte[] mName = new byte[64];
+    private final ByteArrayOutputStream mValue = new ByteArrayOutputStream();
+    private boolean mValueNeedsDecoding;
+
+    private boolean mSeenRoot;
+    private int mCaptureDepth = -1;
+    private int mCaptureTarget;
+    private int mRedactDepth = -1;
+    private long mRedactStart;
+
+    String format;
+    String documentId;
+    String instanceId;
+    String originalDocumentId;
+    /** Ranges to redact, relative to the start of the packet */
+    final LongArray redactedRanges = new LongArray();
+
+    XmpScanner(@NonNull InputStream in, @NonNull Set<String> redactedExifTags) {
+        mIn = in;
+        mRedactedExifTags = redactedExifTags;
+    }
+
+    /**
+     * Scan the entire packet, returning {@code false} if it needs to be
+     * handled by a full parser instead.
+     */
+    boolean scan() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                if (!scanMarkup(mOffset - 1)) return false;
+            } else if (!scanText(c)) {
+                return false;
+            }
+        }
+        return mElements.isEmpty();
+    }
+
+    private int read() throws IOException {
+        if (mBufferPos == mBufferLength && !fill()) return -1;
+        mOffset++;
+        return mBuffer[mBufferPos++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (mBufferPos == mBufferLength && !fill()) return -1;
+        return mBuffer[mBufferPos] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        final int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) return false;
+        mBufferPos = 0;
+        mBufferLength = n;
+        return true;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isNameStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c >= 0x80;
+    }
+
+    private static boolean isName(int c) {
+        return isNameStart(c) || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == ':';
+    }
+
+    private boolean skipWhitespace() throws IOException {
+        boolean skipped = false;
+        while (isWhitespace(peek())) {
+            read();
+            skipped = true;
+        }
+        return skipped;
+    }
+
+    /**
+     * Skip past the end of a processing instruction or comment, which is the
+     * first '>' preceded by at least the given number of the given character.
+     */
+    private boolean skipUntil(int marker, int count) throws IOException {
+        int run = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '>' && run >= count) return true;
+            run = (c == marker) ? run + 1 : 0;
+        }
+        return false;
+    }
+
+    private @Nullable String readName(int first) throws IOException {
+        if (!isNameStart(first)) return null;
+        int length = 0;
+        mName[length++] = (byte) first;
+        while (isName(peek())) {
+            if (length == mName.length) {
+                mName = Arrays.copyOf(mName, length * 2);
+            }
+            mName[length++] = (byte) read();
+        }
+        return new String(mName, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skip past a character or entity reference whose '&' was just read,
+     * returning {@code false} if it's not one that a parser would accept.
+     */
+    private boolean skipReference() throws IOException {
+        int c = read();
+        if (c == '#') {
+            boolean hex = false;
+            int digits = 0;
+            if (peek() == 'x') {
+                read();
+                hex = true;
+            }
+            while ((c = read()) != ';') {
+                final boolean valid = (c >= '0' && c <= '9')
+                        || (hex && ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+                if (!valid || ++digits > 8) return false;
+            }
+            return digits > 0;
+        }
+        final String name = readName(c);
+        if (name == null || read() != ';') return false;
+        switch (name) {
+            case "lt":
+            case "gt":
+            case "amp":
+            case "apos":
+            case "quot":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean scanText(int c) throws IOException {
+        if (mElements.isEmpty()) {
+            // Only whitespace is simple enough outside the root element
+            return isWhitespace(c);
+        }
+        if (c == '&') {
+            return skipReference() && mCaptureDepth == -1;
+        }
+        if (mCaptureDepth != -1) {
+            if (c == '\r') return false;
+            mValue.write(c);
+        }
+        return true;
+    }
+
+    private boolean scanMarkup(long start) throws IOException {
+        final int c = read();
+        if (c == '?') {
+            return skipUntil('?', 1);
+        } else if (c == '!') {
+            // Comments are fine, but leave CDATA and DOCTYPE to the parser
+            if (read() != '-' || read() != '-' || mCaptureDepth != -1) return false;
+            return skipUntil('-', 2);
+        } else if (c == '/') {
+            return scanEndTag();
+        } else {
+            return scanStartTag(start, c);
+        }
+    }
+
+    private boolean readAttributeValue() throws IOException {
+        final int quote = read();
+        if (quote != '"' && quote != '\'') return false;
+        mValue.reset();
+        mValueNeedsDecoding = false;
+        int c;
+        while ((c = read()) != quote) {
+            if (c == -1 || c == '<') return false;
+            if (c == '&') {
+                if (!skipReference()) return false;
+                mValueNeedsDecoding = true;
+            } else if (c == '\t' || c == '\n' || c == '\r') {
+                mValueNeedsDecoding = true;
+            } else {
+                mValue.write(c);
+            }
+        }
+        return true;
+    }
+
+    private @Nullable String resolve(@NonNull String prefix) {
+        for (int i = mNsPrefixes.size() - 1; i >= 0; i--) {
+            if (mNsPrefixes.get(i).equals(prefix)) {
+                return mNsUris.get(i);
+            }
+        }
+        return "xml".equals(prefix) ? NS_XML : null;
+    }
+
+    private boolean scanStartTag(long start, int first) throws IOException {
+        // Values are only ever simple text, so leave anything else to the parser
+        if (mCaptureDepth != -1) return false;
+
+        final String name = readName(first);
+        if (name == null) return false;
+        if (mElements.isEmpty()) {
+            if (mSeenRoot) return false;
+            mSeenRoot = true;
+        }
+
+        final int scope = mNsPrefixes.size();
+        mAttrNames.clear();
+        mAttrValues.clear();
+        boolean empty = false;
+        while (true) {
+            final boolean whitespace = skipWhitespace();
+            final int c = read();
+            if (c == '>') {
+                break;
+            } else if (c == '/') {
+                if (read() != '>') return false;
+                empty = true;
+                break;
+            } else if (!whitespace) {
+                return false;
+            }
+
+            final String attr = readName(c);
+            if (attr == null) return false;
+            skipWhitespace();
+            if (read() != '=') return false;
+            skipWhitespace();
+            if (!readAttributeValue()) return false;
+
+            final String value = mValueNeedsDecoding ? null
+                    : new String(mValue.toByteArray(), StandardCharsets.UTF_8);
+            if (attr.equals("xmlns") || attr.startsWith("xmlns:")) {
+                if (value == null) return false;
+                mNsPrefixes.add(attr.equals("xmlns") ? "" : attr.substring(6));
+                mNsUris.add(value);
+            } else {
+                mAttrNames.add(attr);
+                mAttrValues.add(value);
+            }
+        }
+
+        final int split = name.indexOf(':');
+        final String ns = resolve((split == -1) ? "" : name.substring(0, split));
+        if (split != -1 && ns == null) return false;
+        final String local = name.substring(split + 1);
+
+        final int depth = mElements.size() + 1;
+        if (mRedactDepth != -1) {
+            // Everything inside a redacted element is skipped
+        } else if (XmpInterface.NS_RDF.equals(ns) && XmpInterface.NAME_DESCRIPTION.equals(local)) {
+            if (!scanDescriptionAttributes()) return false;
+        } else if (XmpInterface.NS_EXIF.equals(ns)
+                && mRedactedExifTags.contains(local)) {
+            if (empty) {
+                redactedRanges.add(start);
+                redactedRanges.add(mOffset);
+            } else {
+                mRedactDepth = depth;
+                mRedactStart = start;
+            }
+        } else if (!empty) {
+            final int target = getTarget(ns, local);
+            if (target != 0) {
+                mCaptureDepth = depth;
+                mCaptureTarget = target;
+                mValue.reset();
+            }
+        }
+
+        if (empty) {
+            truncateScope(scope);
+        } else {
+            mElements.add(name);
+            mScopes.add(scope);
+        }
+        return true;
+    }
+
+    private boolean scanDescriptionAttributes() {
+        for (int i = 0; i < mAttrNames.size(); i++) {
+            final String attr = mAttrNames.get(i);
+            final int split = attr.indexOf(':');
+            if (split == -1) continue;
+            final String ns = resolve(attr.substring(0, split));
+            if (ns == null) return false;
+
+            final int target = getTarget(ns, attr.substring(split + 1));
+            if (target != 0) {
+                final String value = mAttrValues.get(i);
+                if (value == null) return false;
+                apply(target, value);
+            }
+        }
+        return true;
+    }
+
+    private boolean scanEndTag() throws IOException {
+        final String name = readName(read());
+        if (name == null) return false;
+        skipWhitespace();
+        if (read() != '>') return false;
+
+        final int depth = mElements.size();
+        if (depth == 0 || !mElements.get(depth - 1).equals(name)) return false;
+
+        if (mCaptureDepth == depth) {
+            apply(mCaptureTarget, new String(mValue.toByteArray(), StandardCharsets.UTF_8));
+            mCaptureDepth = -1;
+        }
+        if (mRedactDepth == depth) {
+            redactedRanges.add(mRedactStart);
+            redactedRanges.add(mOffset);
+            mRedactDepth = -1;
+        }
+
+        mElements.remove(depth - 1);
+        truncateScope(mScopes.get(depth - 1));
+        mScopes.remove(depth - 1);
+        return true;
+    }
+
+    private void truncateScope(int scope) {
+        while (mNsPrefixes.size() > scope) {
+            mNsPrefixes.remove(mNsPrefixes.size() - 1);
+            mNsUris.remove(mNsUris.size() - 1);
+        }
+    }
+
+    private static int getTarget(@Nullable String ns, @NonNull String local) {
+        if (XmpInterface.NS_DC.equals(ns)) {
+            if (XmpInterface.NAME_FORMAT.equals(local)) return TARGET_FORMAT;
+        } else if (XmpInterface.NS_XMPMM.equals(ns)) {
+            switch (local) {
+                case XmpInterface.NAME_DOCUMENT_ID: return TARGET_DOCUMENT_ID;
+                case XmpInterface.NAME_INSTANCE_ID: return TARGET_INSTANCE_ID;
+                case XmpInterface.NAME_ORIGINAL_DOCUMENT_ID: return TARGET_ORIGINAL_DOCUMENT_ID;
+            }
+        }
+        return 0;
+    }
+
+    private void apply(int target, @NonNull String value) {
+        switch (target) {
+            case TARGET_FORMAT:
+                format = maybeOverride(format, value);
+                break;
+            case TARGET_DOCUMENT_ID:
+                documentId = maybeOverride(documentId, value);
+                break;
+            case TARGET_INSTANCE_ID:
+                instanceId = maybeOverride(instanceId, value);
+                break;
+            case TARGET_ORIGINAL_DOCUMENT_ID:
+                originalDocumentId = maybeOverride(originalDocumentId, value);
+                break;
+        }
+    }
+}
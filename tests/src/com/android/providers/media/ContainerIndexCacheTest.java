@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.ContainerIndexCache;
+import com.android.providers.media.util.RedactionInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@RunWith(AndroidJUnit4.class)
+public class ContainerIndexCacheTest {
+    private static final RedactionInfo INFO = new RedactionInfo(
+            new long[] { 10, 20 }, new long[0]);
+
+    @Test
+    public void testCanonical() throws Exception {
+        final File file = File.createTempFile("test", ".mp4");
+        try {
+            final File alias = new File(new File(file.getParentFile(), "."), file.getName());
+            ContainerIndexCache.putRedactionInfo(alias, 4096, 1000, INFO);
+
+            // The same file named another way shares the entry
+            assertSame(INFO, ContainerIndexCache.getRedactionInfo(file, 4096, 1000));
+            assertNull(ContainerIndexCache.getRedactionInfo(file, 4096, 1001));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final File file = File.createTempFile("test", ".mp4");
+        try {
+            ContainerIndexCache.putRedactionInfo(file, 4096, 1000, INFO);
+            assertSame(INFO, ContainerIndexCache.getRedactionInfo(file, 4096, 1000));
+
+            // Rewrites may keep both size and last modified time
+            ContainerIndexCache.invalidate(file);
+            assertNull(ContainerIndexCache.getRedactionInfo(file, 4096, 1000));
+        } finally {
+            file.delete();
+        }
+    }
+}
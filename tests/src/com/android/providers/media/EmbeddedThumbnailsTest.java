@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Bitmap;
+import android.util.Size;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.EmbeddedThumbnails;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+@RunWith(AndroidJUnit4.class)
+public class EmbeddedThumbnailsTest {
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "embedded_" + System.nanoTime());
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testMimeTypes() throws Exception {
+        assertTrue(EmbeddedThumbnails.isExifFile(new File("IMG_0001.jpg")));
+        assertTrue(EmbeddedThumbnails.isExifFile(new File("IMG_0001.dng")));
+        assertFalse(EmbeddedThumbnails.isExifFile(new File("image.png")));
+        assertTrue(EmbeddedThumbnails.isIsoFile(new File("VID_0001.mp4")));
+        assertFalse(EmbeddedThumbnails.isIsoFile(new File("video.webm")));
+    }
+
+    @Test
+    public void testCoverArt() throws Exception {
+        final File file = new File(mDir, "cover.mp4");
+        writeIso(file, covr(Bitmap.createBitmap(400, 200, Bitmap.Config.ARGB_8888)));
+
+        // Cover art is scaled down to fit
+        final Bitmap bitmap = EmbeddedThumbnails.fromIso(file, new Size(100, 100));
+        assertNotNull(bitmap);
+        assertEquals(100, bitmap.getWidth());
+        assertEquals(50, bitmap.getHeight());
+
+        // But never enlarged
+        assertNull(EmbeddedThumbnails.fromIso(file, new Size(800, 800)));
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        final File video = new File(mDir, "empty.mp4");
+        writeIso(video, new byte[0]);
+        assertNull(EmbeddedThumbnails.fromIso(video, new Size(100, 100)));
+
+        final File image = new File(mDir, "plain.jpg");
+        try (FileOutputStream out = new FileOutputStream(image)) {
+            Bitmap.createBitmap(400, 200, Bitmap.Config.ARGB_8888)
+                    .compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        assertNull(EmbeddedThumbnails.fromExif(image, new Size(100, 100)));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        final File file = new File(mDir, "truncated.mp4");
+        writeIso(file, covr(Bitmap.createBitmap(400, 200, Bitmap.Config.ARGB_8888)));
+
+        // Boxes running past the end of the file are ignored
+        truncate(file, file.length() / 2);
+        assertNull(EmbeddedThumbnails.fromIso(file, new Size(100, 100)));
+
+        // Files too short to hold a header fail to read
+        truncate(file, 6);
+        try {
+            EmbeddedThumbnails.fromIso(file, new Size(100, 100));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static byte[] covr(Bitmap bitmap) throws IOException {
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, image);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(data);
+        out.writeInt(14); // PNG type indicator
+        out.writeInt(0); // Locale
+        out.write(image.toByteArray());
+        return box("covr", box("data", data.toByteArray()));
+    }
+
+    private static void writeIso(File file, byte[] ilstContents) throws IOException {
+        final ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        meta.write(new byte[4]); // Version and flags
+        meta.write(box("ilst", ilstContents));
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII)));
+            out.write(box("moov", box("udta", box("meta", meta.toByteArray()))));
+        }
+    }
+
+    private static byte[] box(String type, byte[] contents) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(8 + contents.length);
+        out.write(type.getBytes(StandardCharsets.US_ASCII));
+        out.write(contents);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.IdBitmap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+@RunWith(AndroidJUnit4.class)
+public class IdBitmapTest {
+    @Test
+    public void testSparse() throws Exception {
+        final IdBitmap ids = new IdBitmap();
+        ids.add(5);
+        ids.add(1);
+        ids.add(5);
+        ids.add(1L << 40);
+        assertEquals(3, ids.size());
+        assertTrue(ids.contains(1));
+        assertTrue(ids.contains(5));
+        assertTrue(ids.contains(1L << 40));
+        assertFalse(ids.contains(0));
+        assertFalse(ids.contains(65541));
+        assertFalse(ids.contains(-1));
+    }
+
+    @Test
+    public void testDense() throws Exception {
+        final IdBitmap ids = new IdBitmap();
+        for (long id = 1; id <= 200_000; id += 2) {
+            ids.add(id);
+        }
+        assertEquals(100_000, ids.size());
+        for (long id = 0; id <= 200_001; id++) {
+            assertEquals((id & 1) == 1, ids.contains(id));
+        }
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        final Random random = new Random(42);
+        final TreeSet<Long> expected = new TreeSet<>();
+        final IdBitmap ids = new IdBitmap();
+        for (int i = 0; i < 20_000; i++) {
+            final long id = random.nextInt(200_000);
+            expected.add(id);
+            ids.add(id);
+        }
+        assertEquals(expected.size(), ids.size());
+        for (long id = 0; id < 200_000; id++) {
+            assertEquals(expected.contains(id), ids.contains(id));
+        }
+    }
+}
@@ -16,28 +16,52 @@
 
 package com.android.providers.media;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import android.os.FileUtils;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.tests.R;
 import com.android.providers.media.util.IsoInterface;
+import com.android.providers.media.util.MetadataSource;
+import com.android.providers.media.util.RedactionInfo;
 import com.android.providers.media.util.XmpInterface;
 
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.UUID;
 
 @RunWith(AndroidJUnit4.class)
 public class IsoInterfaceTest {
+    private static final String TAG = "IsoInterfaceTest";
+
+    private static final int BOX_MOOV = 0x6d6f6f76;
+    private static final int BOX_TRAK = 0x7472616b;
+    private static final int BOX_MDIA = 0x6d646961;
+    private static final int BOX_MINF = 0x6d696e66;
+    private static final int BOX_MOOF = 0x6d6f6f66;
+    private static final int BOX_MFHD = 0x6d666864;
+    private static final int BOX_TRAF = 0x74726166;
+    private static final int BOX_TFHD = 0x74666864;
+    private static final int BOX_TRUN = 0x7472756e;
+    private static final int BOX_MDAT = 0x6d646174;
+
     @Test
     public void testRepeated() throws Exception {
         final File file = stageFile(R.raw.test_video);
@@ -74,6 +98,199 @@ public class IsoInterfaceTest {
         assertEquals("3F9DD7A46B26513A7C35272F0D623A06", xmp.getOriginalDocumentId());
     }
 
+    @Test
+    public void testLazyPayloads() throws Exception {
+        final File file = stageFile(R.raw.test_video_xmp);
+        final UUID uuid = UUID.fromString("be7acfcb-97a9-42e8-9c71-999491e3afac");
+        final IsoInterface eager = IsoInterface.fromFile(file);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface lazy = IsoInterface.fromSource(source);
+            assertArrayEquals(eager.getBoxBytes(uuid), lazy.getBoxBytes(uuid));
+            assertArrayEquals(eager.getBoxBytes(IsoInterface.BOX_XMP),
+                    lazy.getBoxBytes(IsoInterface.BOX_XMP));
+
+            final byte[] expected = (eager.getBoxBytes(uuid) != null)
+                    ? eager.getBoxBytes(uuid) : eager.getBoxBytes(IsoInterface.BOX_XMP);
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            try (InputStream in = (lazy.getBoxBytes(uuid) != null)
+                    ? lazy.openBoxStream(uuid) : lazy.openBoxStream(IsoInterface.BOX_XMP)) {
+                FileUtils.copy(in, actual);
+            }
+            assertArrayEquals(expected, actual.toByteArray());
+        }
+    }
+
+    @Test
+    public void testTargeted() throws Exception {
+        final File file = stageFile(R.raw.test_video_gps);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface mp4 = IsoInterface.fromSource(source,
+                    new int[] { IsoInterface.BOX_XYZ });
+
+            final long[] ranges = mp4.getBoxRanges(IsoInterface.BOX_XYZ);
+            assertEquals(2, ranges.length);
+            assertEquals(3369 + 8, ranges[0]);
+            assertEquals(3369 + 30, ranges[1]);
+
+            // Boxes that weren't requested aren't collected
+            assertEquals(0, mp4.getBoxRanges(IsoInterface.BOX_FTYP).length);
+        }
+    }
+
+    @Test
+    public void testTargeted_Xmp() throws Exception {
+        final File file = stageFile(R.raw.test_video_xmp);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface mp4 = IsoInterface.fromSource(source,
+                    XmpInterface.ISO_BOX_TYPES);
+            final XmpInterface xmp = XmpInterface.fromContainer(mp4);
+
+            assertEquals("image/dng", xmp.getFormat());
+            assertEquals("xmp.did:041dfd42-0b46-4302-918a-836fba5016ed", xmp.getDocumentId());
+        }
+    }
+
+    @Test
+    public void testTargeted_StopsAfterMoov() throws Exception {
+        final File file = stageFragmented(256, 65_536);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface mp4 = IsoInterface.fromSource(source,
+                    new int[] { IsoInterface.BOX_COVR });
+            assertEquals(0, mp4.getBoxRanges(IsoInterface.BOX_COVR).length);
+
+            // Nothing beyond the header should have been read
+            assertEquals(1, source.getReadCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTargeted_Redaction() throws Exception {
+        // Location boxes in places no well-behaved writer would put them:
+        // deep inside a track, inside a fragment, and at the top level
+        final File file = File.createTempFile("test", ".mp4");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(box(IsoInterface.BOX_FTYP, new byte[8]));
+            out.write(box(BOX_MOOV, box(BOX_TRAK, box(BOX_MDIA, box(BOX_MINF,
+                    box(IsoInterface.BOX_LOCI, new byte[12]))))));
+            out.write(box(BOX_MOOF, box(BOX_TRAF, box(IsoInterface.BOX_GPS, new byte[16]))));
+            out.write(box(IsoInterface.BOX_XYZ, new byte[20]));
+            out.write(box(IsoInterface.BOX_UUID, new byte[24]));
+        }
+
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface full = IsoInterface.fromSource(source);
+            final IsoInterface targeted = IsoInterface.fromSource(source,
+                    RedactionInfo.ISO_BOX_TYPES);
+            for (int type : RedactionInfo.ISO_BOX_TYPES) {
+                assertArrayEquals(full.getBoxRanges(type), targeted.getBoxRanges(type));
+            }
+            assertEquals(2, targeted.getBoxRanges(IsoInterface.BOX_LOCI).length);
+            assertEquals(2, targeted.getBoxRanges(IsoInterface.BOX_GPS).length);
+            assertEquals(2, targeted.getBoxRanges(IsoInterface.BOX_XYZ).length);
+            assertEquals(2, targeted.getBoxRanges(IsoInterface.BOX_UUID).length);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFragmented() throws Exception {
+        final int count = 256;
+        final File file = stageFragmented(count, 65_536);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            final IsoInterface mp4 = IsoInterface.fromSource(source);
+
+            final long[] ranges = mp4.getBoxRanges(BOX_TRUN);
+            assertEquals(count * 2, ranges.length);
+            assertEquals(24 + 8 + 8 + 16 + 8 + 16 + 8, ranges[0]);
+            assertEquals(2 * count, mp4.getBoxRanges(BOX_MDAT).length);
+
+            // Box headers within each fragment should be served by a single read
+            assertTrue("Too many reads: " + source.getReadCount(),
+                    source.getReadCount() <= count + 1);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    @Ignore
+    public void testSpeed_Fragmented() throws Exception {
+        final int count = 4_096;
+        final File file = stageFragmented(count, 262_144);
+        try {
+            for (int i = 0; i < 5; i++) {
+                final long beforeTime = SystemClock.elapsedRealtime();
+                final int reads;
+                try (MetadataSource source = MetadataSource.open(file)) {
+                    IsoInterface.fromSource(source);
+                    reads = source.getReadCount();
+                }
+                final long deltaTime = SystemClock.elapsedRealtime() - beforeTime;
+                Log.v(TAG, "Parsed " + count + " fragments of " + file.length() + " bytes in "
+                        + deltaTime + "ms using " + reads + " reads");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Stage a sparse fragmented file with the given number of fragments,
+     * each consisting of a {@code moof} and an {@code mdat} of the given size.
+     */
+    private static File stageFragmented(int count, int mdatSize) throws Exception {
+        final File file = File.createTempFile("test", ".mp4");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(24);
+            raf.writeInt(IsoInterface.BOX_FTYP);
+            raf.writeInt(0x69736f6d); // isom
+            raf.writeInt(0);
+            raf.writeInt(0x69736f6d); // isom
+            raf.writeInt(0x69736f36); // iso6
+            raf.writeInt(8);
+            raf.writeInt(0x6d6f6f76); // moov
+
+            long pos = raf.getFilePointer();
+            for (int i = 0; i < count; i++) {
+                raf.seek(pos);
+                raf.writeInt(8 + 16 + 8 + 16 + 20);
+                raf.writeInt(BOX_MOOF);
+                raf.writeInt(16);
+                raf.writeInt(BOX_MFHD);
+                raf.writeInt(0);
+                raf.writeInt(i + 1);
+                raf.writeInt(8 + 16 + 20);
+                raf.writeInt(BOX_TRAF);
+                raf.writeInt(16);
+                raf.writeInt(BOX_TFHD);
+                raf.writeInt(0);
+                raf.writeInt(1);
+                raf.writeInt(20);
+                raf.writeInt(BOX_TRUN);
+                raf.writeInt(0);
+                raf.writeInt(1);
+                raf.writeInt(0);
+                raf.writeInt(8 + mdatSize);
+                raf.writeInt(BOX_MDAT);
+                pos = raf.getFilePointer() + mdatSize;
+            }
+            raf.setLength(pos);
+        }
+        return file;
+    }
+
+    private static byte[] box(int type, byte[] contents) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(8 + contents.length);
+        out.writeInt(type);
+        out.write(contents);
+        return bytes.toByteArray();
+    }
+
     private static File stageFile(int resId) throws Exception {
         final Context context = InstrumentationRegistry.getContext();
         final File file = File.createTempFile("test", ".mp4");
@@ -32,29 +32,38 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LongArray;
 import android.util.Pair;
+import android.util.Size;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.MediaProvider.VolumeArgumentException;
+import com.android.providers.media.scan.DirectoryFingerprint;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.util.EmbeddedThumbnails;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.regex.Pattern;
 
@@ -114,6 +123,100 @@ public class MediaProviderTest {
         }
     }
 
+    @Test
+    public void testScanJournal_PathRange() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final MediaProvider provider = getProvider(new IsolatedContext(context, "modern"));
+
+        final String dcim = "/storage/emulated/0/DCIM";
+        final ArrayMap<String, DirectoryFingerprint> siblings = new ArrayMap<>();
+        siblings.put(dcim + "2", new DirectoryFingerprint(1, 1, 1, 0, 1));
+        siblings.put(dcim + " 2", new DirectoryFingerprint(1, 1, 1, 0, 1));
+        provider.replaceScanJournal(MediaStore.VOLUME_EXTERNAL, dcim + "2", siblings);
+
+        final ArrayMap<String, DirectoryFingerprint> journal = new ArrayMap<>();
+        journal.put(dcim, new DirectoryFingerprint(1, 2, 3, 1, 4));
+        journal.put(dcim + "/Camera", new DirectoryFingerprint(5, 6, 7, 0, 8));
+        journal.put(dcim + "/Camera/Burst", new DirectoryFingerprint(9, 1, 1, 0, 1));
+        provider.replaceScanJournal(MediaStore.VOLUME_EXTERNAL, dcim, journal);
+
+        // Only the directory itself and everything below it, never siblings
+        // sharing its name as a prefix
+        final ArrayMap<String, DirectoryFingerprint> res = provider.queryScanJournal(
+                MediaStore.VOLUME_EXTERNAL, dcim);
+        assertEquals(3, res.size());
+        assertEquals(6, res.get(dcim + "/Camera").childCount);
+        assertEquals(8, res.get(dcim + "/Camera").dateVerified);
+
+        // Replacing a subtree drops entries that are no longer present
+        provider.replaceScanJournal(MediaStore.VOLUME_EXTERNAL, dcim + "/Camera",
+                new ArrayMap<>());
+        assertEquals(1, provider.queryScanJournal(MediaStore.VOLUME_EXTERNAL, dcim).size());
+        assertEquals(1, provider.queryScanJournal(MediaStore.VOLUME_EXTERNAL,
+                dcim + "2").size());
+    }
+
+    @Test
+    public void testDeleteUnscannedItems() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Context isolatedContext = new IsolatedContext(context, "modern");
+        final ContentResolver isolatedResolver = isolatedContext.getContentResolver();
+        final MediaProvider provider = getProvider(isolatedContext);
+
+        // More scanned IDs than fit in a single statement, plus a sibling
+        // sharing the name of the directory as a prefix
+        final File dir = new File(Environment.getExternalStorageDirectory(),
+                "test_" + System.nanoTime());
+        final long[] ids = insertFiles(isolatedResolver, dir, 1200);
+        final long sibling = insertFiles(isolatedResolver, new File(dir + "2"), 1)[0];
+
+        // Every third item was seen by the scan, along with the directory
+        // itself when it has a row
+        final long[] all = queryIds(isolatedResolver, dir);
+        final LongArray scanned = new LongArray();
+        for (long id : all) {
+            final int index = Arrays.binarySearch(ids, id);
+            if (index < 0 || index % 3 == 0) {
+                scanned.add(id);
+            }
+        }
+
+        final int deleted = provider.deleteUnscannedItems(MediaStore.VOLUME_EXTERNAL_PRIMARY,
+                dir.getAbsolutePath(), scanned.toArray(), null);
+        assertEquals(all.length - scanned.size(), deleted);
+        assertArrayEquals(scanned.toArray(), queryIds(isolatedResolver, dir));
+        assertEquals(1, queryIds(isolatedResolver, new File(dir + "2")).length);
+        assertEquals(sibling, queryIds(isolatedResolver, new File(dir + "2"))[0]);
+    }
+
+    @Test
+    public void testInvalidateThumbnails_Bulk() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Context isolatedContext = new IsolatedContext(context, "modern");
+        final ContentResolver isolatedResolver = isolatedContext.getContentResolver();
+        final MediaProvider provider = getProvider(isolatedContext);
+
+        final File dir = new File(Environment.getExternalStorageDirectory(),
+                "test_" + System.nanoTime());
+        final long[] ids = insertFiles(isolatedResolver, dir, 1201);
+
+        // Legacy thumbnails in the first and last chunks, and for an item
+        // that isn't invalidated
+        final long first = ids[0];
+        final long last = ids[1199];
+        final long kept = ids[1200];
+        for (long id : new long[] { first, last, kept }) {
+            insertLegacyThumbnails(isolatedResolver, id);
+        }
+
+        final LongArray invalidated = LongArray.wrap(Arrays.copyOf(ids, 1200));
+        provider.invalidateThumbnails(MediaStore.VOLUME_EXTERNAL, invalidated);
+
+        assertLegacyThumbnails(isolatedResolver, first, 0);
+        assertLegacyThumbnails(isolatedResolver, last, 0);
+        assertLegacyThumbnails(isolatedResolver, kept, 1);
+    }
+
     @Test
     public void testComputeCommonPrefix_Single() {
         assertEquals(Uri.parse("content://authority/1/2/3"),
@@ -507,6 +610,42 @@ public class MediaProviderTest {
         });
     }
 
+    @Test
+    public void testParseThumbnailId() throws Exception {
+        assertEquals(42, MediaProvider.Thumbnailer.parseThumbnailId("42.jpg"));
+        assertEquals(42, MediaProvider.Thumbnailer.parseThumbnailId("42_m.jpg"));
+        assertEquals(42, MediaProvider.Thumbnailer.parseThumbnailId("42_s.jpg"));
+        assertEquals(-1, MediaProvider.Thumbnailer.parseThumbnailId("42_s.jpg.tmp"));
+        assertEquals(-1, MediaProvider.Thumbnailer.parseThumbnailId("42.jpg123456.tmp"));
+        assertEquals(-1, MediaProvider.Thumbnailer.parseThumbnailId("42_x.jpg"));
+        assertEquals(-1, MediaProvider.Thumbnailer.parseThumbnailId("thumb.jpg"));
+        assertEquals(-1, MediaProvider.Thumbnailer.parseThumbnailId(".nomedia"));
+    }
+
+    @Test
+    public void testGetEmbedded_Truncated() throws Exception {
+        final File file = File.createTempFile("truncated", ".mp4");
+        try {
+            // Too short to hold a header, so reading it fails
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[6]);
+            }
+            final MediaProvider.Thumbnailer thumbnailer = new MediaProvider.Thumbnailer(
+                    Environment.DIRECTORY_MOVIES, null, () -> new Size(512, 512)) {
+                @Override
+                public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+            // Counts as a miss, leaving callers to decode the full video
+            assertNull(thumbnailer.getEmbedded(EmbeddedThumbnails::fromIso, file,
+                    new Size(96, 96)));
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void testBindList() {
         assertEquals("()", MediaProvider.bindList());
@@ -717,4 +856,84 @@ public class MediaProviderTest {
             }
         }
     }
+
+    /**
+     * Insert rows for the given number of files in the given directory,
+     * without creating the files themselves.
+     *
+     * @return sorted IDs of the inserted rows
+     */
+    private static long[] insertFiles(ContentResolver resolver, File dir, int count) {
+        final ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(MediaColumns.DATA, new File(dir, i + ".bin").getAbsolutePath());
+        }
+        assertEquals(count, resolver.bulkInsert(
+                MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL), values));
+
+        final LongArray ids = new LongArray();
+        try (Cursor c = resolver.query(MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL),
+                new String[] { MediaColumns._ID }, MediaColumns.DATA + ">? AND "
+                        + MediaColumns.DATA + "<?",
+                new String[] { dir + "/", dir + "0" }, MediaColumns._ID)) {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        assertEquals(count, ids.size());
+        return ids.toArray();
+    }
+
+    private static void insertLegacyThumbnails(ContentResolver resolver, long id) {
+        final ContentValues image = new ContentValues();
+        image.put(MediaStore.Images.Thumbnails.IMAGE_ID, id);
+        image.put(MediaStore.Images.Thumbnails.KIND, MediaStore.Images.Thumbnails.MINI_KIND);
+        assertNotNull(resolver.insert(
+                MediaStore.Images.Thumbnails.getContentUri(MediaStore.VOLUME_EXTERNAL), image));
+
+        final ContentValues video = new ContentValues();
+        video.put(MediaStore.Video.Thumbnails.VIDEO_ID, id);
+        video.put(MediaStore.Video.Thumbnails.KIND, MediaStore.Video.Thumbnails.MINI_KIND);
+        assertNotNull(resolver.insert(
+                MediaStore.Video.Thumbnails.getContentUri(MediaStore.VOLUME_EXTERNAL), video));
+    }
+
+    private static void assertLegacyThumbnails(ContentResolver resolver, long id,
+            int expected) {
+        try (Cursor c = resolver.query(
+                MediaStore.Images.Thumbnails.getContentUri(MediaStore.VOLUME_EXTERNAL),
+                null, MediaStore.Images.Thumbnails.IMAGE_ID + "=" + id, null, null)) {
+            assertEquals(expected, c.getCount());
+        }
+        try (Cursor c = resolver.query(
+                MediaStore.Video.Thumbnails.getContentUri(MediaStore.VOLUME_EXTERNAL),
+                null, MediaStore.Video.Thumbnails.VIDEO_ID + "=" + id, null, null)) {
+            assertEquals(expected, c.getCount());
+        }
+    }
+
+    /**
+     * @return sorted IDs of the given directory and everything below it
+     */
+    private static long[] queryIds(ContentResolver resolver, File dir) {
+        final LongArray ids = new LongArray();
+        try (Cursor c = resolver.query(MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL),
+                new String[] { MediaColumns._ID }, MediaColumns.DATA + "=? OR ("
+                        + MediaColumns.DATA + ">? AND " + MediaColumns.DATA + "<?)",
+                new String[] { dir.getAbsolutePath(), dir + "/", dir + "0" },
+                MediaColumns._ID)) {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids.toArray();
+    }
+
+    private static MediaProvider getProvider(Context isolatedContext) {
+        try (ContentProviderClient client = isolatedContext.getContentResolver()
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            return (MediaProvider) client.getLocalContentProvider();
+        }
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.MetadataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public class MetadataSourceTest {
+    /** Larger than both the header region and the read window */
+    private static final int LENGTH = 200 * 1024;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "source_" + System.nanoTime());
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        final byte[] data = pattern(LENGTH, 0);
+        final File file = write("data.bin", data);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            assertEquals(LENGTH, source.length());
+
+            // Within the header, across its end, from the window, and in bulk
+            assertRead(source, data, 100, 16);
+            assertRead(source, data, 64 * 1024 - 8, 16);
+            assertRead(source, data, 100_000, 16);
+            assertRead(source, data, 100_020, 16);
+            assertRead(source, data, 120_000, 32 * 1024);
+
+            // Reads are short at the end of the file
+            final byte[] buf = new byte[32];
+            assertEquals(16, source.read(LENGTH - 16, buf, 0, buf.length));
+            assertEquals(0, source.read(LENGTH + 16, buf, 0, buf.length));
+        }
+    }
+
+    @Test
+    public void testReadInt() throws Exception {
+        final byte[] data = pattern(LENGTH, 0);
+        final File file = write("data.bin", data);
+        try (MetadataSource source = MetadataSource.open(file)) {
+            assertEquals(peekInt(data, 8), source.readInt(8));
+            assertEquals(peekInt(data, 150_000), source.readInt(150_000));
+            try {
+                source.readInt(LENGTH - 2);
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testPooled() throws Exception {
+        final byte[] large = pattern(LENGTH, 1);
+        final byte[] small = pattern(10, 7);
+        final File largeFile = write("large.bin", large);
+        final File smallFile = write("small.bin", small);
+
+        // Buffers handed back by one source are reused by the next, which
+        // must not see anything left behind
+        for (int i = 0; i < 3; i++) {
+            try (MetadataSource source = MetadataSource.open(largeFile)) {
+                assertRead(source, large, 0, 1024);
+                assertRead(source, large, 100_000, 16);
+            }
+            try (MetadataSource source = MetadataSource.open(smallFile)) {
+                final byte[] buf = new byte[1024];
+                assertEquals(10, source.read(0, buf, 0, buf.length));
+                assertArrayEquals(small, Arrays.copyOf(buf, 10));
+                assertStream(source.openStream(), small);
+            }
+        }
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        final byte[] first = pattern(LENGTH, 3);
+        final byte[] second = pattern(LENGTH, 5);
+        final File firstFile = write("first.bin", first);
+        final File secondFile = write("second.bin", second);
+
+        // Sources open at the same time on one thread never share buffers,
+        // even after closing one of them twice
+        try (MetadataSource outer = MetadataSource.open(firstFile)) {
+            final MetadataSource inner = MetadataSource.open(secondFile);
+            inner.close();
+            inner.close();
+            try (MetadataSource a = MetadataSource.open(secondFile);
+                    MetadataSource b = MetadataSource.open(secondFile)) {
+                assertRead(a, second, 0, 1024);
+                assertRead(b, second, 1024, 1024);
+            }
+            assertRead(outer, first, 0, 1024);
+            assertRead(outer, first, 100_000, 16);
+        }
+    }
+
+    private static void assertRead(MetadataSource source, byte[] data, int position, int length)
+            throws IOException {
+        final byte[] buf = new byte[length];
+        assertEquals(length, source.read(position, buf, 0, length));
+        assertArrayEquals(Arrays.copyOfRange(data, position, position + length), buf);
+    }
+
+    private static void assertStream(InputStream in, byte[] expected) throws IOException {
+        final byte[] buf = new byte[expected.length + 16];
+        int total = 0;
+        int n;
+        while ((n = in.read(buf, total, buf.length - total)) > 0) {
+            total += n;
+        }
+        assertEquals(expected.length, total);
+        assertArrayEquals(expected, Arrays.copyOf(buf, total));
+    }
+
+    private static int peekInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ((i * 31 + seed) ^ (i >> 8));
+        }
+        return data;
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        final File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.MetadataSource;
+import com.android.providers.media.util.RedactionInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public class RedactionInfoTest {
+    private static final RedactionInfo INFO = new RedactionInfo(
+            new long[] { 10, 20, 3369, 3399 }, new long[] { 3369 });
+
+    @Test
+    public void testEncode() throws Exception {
+        final RedactionInfo info = RedactionInfo.decode(INFO.encode(4096, 1000), 4096, 1000);
+        assertArrayEquals(INFO.redactionRanges, info.redactionRanges);
+        assertArrayEquals(INFO.freeOffsets, info.freeOffsets);
+    }
+
+    @Test
+    public void testEncode_Stale() throws Exception {
+        final byte[] encoded = INFO.encode(4096, 1000);
+        assertNull(RedactionInfo.decode(encoded, 4097, 1000));
+        assertNull(RedactionInfo.decode(encoded, 4096, 1001));
+    }
+
+    @Test
+    public void testEncode_Malformed() throws Exception {
+        final byte[] encoded = INFO.encode(4096, 1000);
+        assertNull(RedactionInfo.decode(null, 4096, 1000));
+        assertNull(RedactionInfo.decode(Arrays.copyOf(encoded, encoded.length - 1), 4096, 1000));
+        assertNull(RedactionInfo.decode(new byte[3], 4096, 1000));
+    }
+
+    @Test
+    public void testMayContainExif() throws Exception {
+        assertTrue(mayContainExif(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0 }));
+        assertTrue(mayContainExif(new byte[] { 'I', 'I', 42, 0, 8, 0, 0, 0 }));
+        assertTrue(mayContainExif(new byte[] { 'M', 'M', 0, 42, 0, 0, 0, 8 }));
+        assertTrue(mayContainExif(ascii("FUJIFILMCCD-RAW 0201")));
+        assertTrue(mayContainExif(ftyp("heic", "mif1")));
+        assertTrue(mayContainExif(ftyp("msf1", "heic")));
+
+        // Video and audio containers never carry EXIF
+        assertFalse(mayContainExif(ftyp("isom", "mp42")));
+        assertFalse(mayContainExif(ftyp("M4A ", "isom")));
+        assertFalse(mayContainExif(ascii("ID3\u0004\u0000")));
+        assertFalse(mayContainExif(ascii("OggS")));
+        assertFalse(mayContainExif(new byte[] { (byte) 0xFF, (byte) 0xD8 }));
+    }
+
+    private static boolean mayContainExif(byte[] data) throws IOException {
+        final File file = File.createTempFile("redaction", ".bin");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            }
+            try (MetadataSource source = MetadataSource.open(file)) {
+                return RedactionInfo.mayContainExif(source);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Return an 'ftyp' box with the given major brand, a minor version that
+     * looks like a still image brand, and the given compatible brand.
+     */
+    private static byte[] ftyp(String majorBrand, String compatibleBrand) {
+        return ascii("\u0000\u0000\u0000\u0014ftyp" + majorBrand + "heic" + compatibleBrand);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_CRITICAL;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_HIGH;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_LOW;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_NORMAL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BackgroundThread;
+import com.android.providers.media.scan.MediaScanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+@RunWith(AndroidJUnit4.class)
+public class ScanSchedulerTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private Context mContext;
+    private File mDir;
+    private TestScanner mScanner;
+    private ScanScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDir = new File(mContext.getCacheDir(), "scheduler_" + System.nanoTime());
+        mDir.mkdirs();
+        mScanner = new TestScanner(mContext);
+        mScheduler = new ScanScheduler(mContext, mScanner);
+    }
+
+    @After
+    public void tearDown() {
+        mScanner.release();
+        mScheduler.quit();
+        mDir.delete();
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final CountDownLatch release = blockWorker();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final List<Future<?>> tasks = new ArrayList<>();
+        for (int priority : new int[] {
+                PRIORITY_LOW, PRIORITY_NORMAL, PRIORITY_CRITICAL, PRIORITY_HIGH }) {
+            tasks.add(mScheduler.submit(() -> order.add(priority), priority));
+        }
+        release.countDown();
+        for (Future<?> task : tasks) {
+            task.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(Arrays.asList(PRIORITY_CRITICAL, PRIORITY_HIGH, PRIORITY_NORMAL,
+                PRIORITY_LOW), order);
+    }
+
+    @Test
+    public void testYieldIfNeeded() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final Future<?> low = mScheduler.submit(() -> {
+            started.countDown();
+            queued.await();
+            order.add("low-start");
+            ScanScheduler.yieldIfNeeded();
+            order.add("low-end");
+            return null;
+        }, PRIORITY_LOW);
+
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Only more urgent work runs inline
+        final Future<?> high = mScheduler.submit(() -> order.add("high"), PRIORITY_HIGH);
+        final Future<?> other = mScheduler.submit(() -> order.add("other"), PRIORITY_LOW);
+        queued.countDown();
+        low.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        high.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        other.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList("low-start", "high", "low-end", "other"), order);
+
+        // Other threads never run queued work
+        ScanScheduler.yieldIfNeeded();
+    }
+
+    @Test
+    public void testExecute_Inline() throws Exception {
+        final Future<Thread> outer = mScheduler.submit(() -> {
+            final Thread thread = Thread.currentThread();
+            final Thread inner = mScheduler.execute(() -> Thread.currentThread(),
+                    PRIORITY_LOW, null);
+            assertSame(thread, inner);
+            return inner;
+        }, PRIORITY_NORMAL);
+
+        // Would deadlock if nested work were queued behind its caller
+        assertNotSame(Thread.currentThread(), outer.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testExecute_Canceled() throws Exception {
+        final CountDownLatch release = blockWorker();
+        final AtomicBoolean ran = new AtomicBoolean();
+        final CancellationSignal signal = new CancellationSignal();
+        final CompletableFuture<Throwable> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                mScheduler.execute(() -> ran.getAndSet(true), PRIORITY_NORMAL, signal);
+                return null;
+            } catch (Throwable t) {
+                return t;
+            }
+        });
+
+        signal.cancel();
+        assertTrue(result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                instanceof OperationCanceledException);
+
+        // Work nobody waits for anymore is skipped
+        release.countDown();
+        mScheduler.submit(() -> null, PRIORITY_LOW).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void testRequestScanFile_Coalesced() throws Exception {
+        final CountDownLatch release = blockWorker();
+        final File file = new File(mDir, "IMG_0001.jpg");
+        final Future<Uri> first = mScheduler.requestScanFile(file, PRIORITY_NORMAL);
+        final Future<Uri> second = mScheduler.requestScanFile(
+                new File(new File(mDir, "."), file.getName()), PRIORITY_NORMAL);
+        assertSame(first, second);
+
+        release.countDown();
+        assertEquals(Uri.fromFile(file.getCanonicalFile()),
+                first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mScanner.getScanCount());
+    }
+
+    @Test
+    public void testRequestScanFile_RaisesPriority() throws Exception {
+        final CountDownLatch release = blockWorker();
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        mScanner.setListener((file) -> order.add(file.getName()));
+
+        final File file = new File(mDir, "IMG_0001.jpg");
+        final Future<Uri> first = mScheduler.requestScanFile(file, PRIORITY_LOW);
+        final Future<?> other = mScheduler.submit(() -> order.add("other"), PRIORITY_NORMAL);
+        final Future<Uri> second = mScheduler.requestScanFile(file, PRIORITY_CRITICAL);
+        assertSame(first, second);
+
+        release.countDown();
+        second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        other.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(file.getName(), "other"), order);
+        assertEquals(1, mScanner.getScanCount());
+    }
+
+    @Test
+    public void testRequestScanFile_WhileRunning() throws Exception {
+        final File file = new File(mDir, "VID_0001.mp4");
+        final CountDownLatch release = mScanner.block();
+        final Future<Uri> first = mScheduler.requestScanFile(file, PRIORITY_NORMAL);
+        mScanner.awaitScanning();
+
+        // Requests made from the shared background thread, such as when a
+        // writer closes the file again, are debounced without blocking it
+        final CompletableFuture<Future<Uri>> second = new CompletableFuture<>();
+        final CompletableFuture<Future<Uri>> third = new CompletableFuture<>();
+        BackgroundThread.getHandler().post(() -> {
+            try {
+                second.complete(mScheduler.requestScanFile(file, PRIORITY_CRITICAL));
+                third.complete(mScheduler.requestScanFile(file, PRIORITY_CRITICAL));
+            } catch (Exception e) {
+                second.completeExceptionally(e);
+                third.completeExceptionally(e);
+            }
+        });
+        assertSame(second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                third.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotSame(first, second.get());
+
+        // The background thread stays free while the rescan is pending
+        final CountDownLatch idle = new CountDownLatch(1);
+        BackgroundThread.getHandler().post(idle::countDown);
+        assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        second.get().get(TIMEOUT_MS + ScanScheduler.DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        assertEquals(2, mScanner.getScanCount());
+    }
+
+    /**
+     * Occupy the worker thread until the returned latch is released.
+     */
+    private CountDownLatch blockWorker() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.submit(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        }, PRIORITY_CRITICAL);
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return release;
+    }
+
+    private static class TestScanner implements MediaScanner {
+        private final Context mContext;
+        private final Object mLock = new Object();
+        private int mScanCount;
+        private CountDownLatch mRelease;
+        private final CountDownLatch mScanning = new CountDownLatch(1);
+        private volatile Consumer<File> mListener;
+
+        TestScanner(Context context) {
+            mContext = context;
+        }
+
+        void setListener(Consumer<File> listener) {
+            mListener = listener;
+        }
+
+        CountDownLatch block() {
+            synchronized (mLock) {
+                mRelease = new CountDownLatch(1);
+                return mRelease;
+            }
+        }
+
+        void release() {
+            synchronized (mLock) {
+                if (mRelease != null) mRelease.countDown();
+            }
+        }
+
+        void awaitScanning() throws InterruptedException {
+            if (!mScanning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                fail("Scan never started");
+            }
+        }
+
+        int getScanCount() {
+            synchronized (mLock) {
+                return mScanCount;
+            }
+        }
+
+        @Override
+        public Context getContext() {
+            return mContext;
+        }
+
+        @Override
+        public void scanDirectory(File file) {
+        }
+
+        @Override
+        public void scanDirectory(File file, CancellationSignal signal) {
+        }
+
+        @Override
+        public Uri scanFile(File file) {
+            final CountDownLatch release;
+            synchronized (mLock) {
+                mScanCount++;
+                release = mRelease;
+            }
+            mScanning.countDown();
+            if (mListener != null) mListener.accept(file);
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return Uri.fromFile(file);
+        }
+
+        @Override
+        public void onDetachVolume(String volumeName) {
+        }
+    }
+}
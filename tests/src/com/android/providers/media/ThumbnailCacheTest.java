@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailCacheTest {
+    private static final Uri IMAGE = Uri.parse("content://media/external/images/media/42");
+
+    @Test
+    public void testKey() throws Exception {
+        assertNotNull(ThumbnailCache.Key.forUri(IMAGE, 0));
+        assertNotNull(ThumbnailCache.Key.forUri(
+                Uri.parse("content://media/internal/audio/media/7"), 0));
+        assertNull(ThumbnailCache.Key.forUri(
+                Uri.parse("content://media/external/audio/albums/7"), 0));
+        assertNull(ThumbnailCache.Key.forUri(
+                Uri.parse("content://media/external/images/media/foo"), 0));
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(1024);
+        final ThumbnailCache.Key key = ThumbnailCache.Key.forUri(IMAGE, 1);
+        cache.put(key, new byte[] { 1, 2, 3 }, cache.getGeneration());
+
+        try (AssetFileDescriptor afd = cache.open(key);
+                DataInputStream in = new DataInputStream(afd.createInputStream())) {
+            assertEquals(3, afd.getLength());
+            final byte[] buf = new byte[3];
+            in.readFully(buf);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, buf);
+        }
+        assertNull(cache.open(ThumbnailCache.Key.forUri(IMAGE, 2)));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(1024);
+        final ThumbnailCache.Key key = ThumbnailCache.Key.forUri(IMAGE, 0);
+        final long generation = cache.getGeneration();
+        cache.put(key, new byte[] { 1 }, generation);
+
+        // Invalidating through any collection evicts the item
+        cache.invalidate(MediaStore.Files.getContentUri("external", 42));
+        assertNull(cache.open(key));
+
+        // Reads that raced with the invalidation are refused
+        cache.put(key, new byte[] { 1 }, generation);
+        assertNull(cache.open(key));
+    }
+
+    @Test
+    public void testCollection() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(1024);
+        final Uri audio = Uri.parse("content://media/external/audio/media/42");
+        final ThumbnailCache.Key key = ThumbnailCache.Key.forUri(audio, 0);
+        cache.put(key, new byte[] { 1 }, cache.getGeneration());
+
+        // The same ID through another collection is a different item
+        assertNotNull(cache.open(key));
+        assertNull(cache.open(ThumbnailCache.Key.forUri(IMAGE, 0)));
+
+        // But invalidating through any collection evicts it
+        cache.invalidate(IMAGE);
+        assertNull(cache.open(key));
+    }
+
+    @Test
+    public void testTrimMemory() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(1024);
+        final ThumbnailCache.Key key = ThumbnailCache.Key.forUri(IMAGE, 0);
+        cache.put(key, new byte[] { 1 }, cache.getGeneration());
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertNotNull(cache.open(key));
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertNull(cache.open(key));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_HIGH;
+import static com.android.providers.media.PrioritizedFutureTask.PRIORITY_LOW;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailServiceTest {
+    private File mDir;
+    private ThumbnailService mService;
+    private ExecutorService mCallers;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "thumbs_" + System.nanoTime());
+        mDir.mkdirs();
+        mService = new ThumbnailService();
+        mCallers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mCallers.shutdownNow();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testDeduplicated() throws Exception {
+        final File file = new File(mDir, "1.jpg");
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThumbnailService.Generator generator = (signal) -> {
+            count.incrementAndGet();
+            await(release);
+            return Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888);
+        };
+
+        final Future<File> first = mCallers.submit(
+                () -> mService.ensureThumbnail(file, generator, PRIORITY_LOW, null));
+        final Future<File> second = mCallers.submit(
+                () -> mService.ensureThumbnail(file, generator, PRIORITY_HIGH, null));
+        while (mService.getPendingCount() == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertEquals(file, first.get(5, TimeUnit.SECONDS));
+        assertEquals(file, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, count.get());
+        assertEquals(0, mService.getPendingCount());
+
+        // Only the complete thumbnail is left behind
+        assertEquals(1, mDir.list().length);
+        assertEquals(32, BitmapFactory.decodeFile(file.getAbsolutePath()).getWidth());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final File file = new File(mDir, "2.jpg");
+        try {
+            mService.ensureThumbnail(file, (signal) -> {
+                throw new IOException("Nope");
+            }, PRIORITY_HIGH, null);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(file.exists());
+        assertEquals(0, mService.getPendingCount());
+    }
+
+    @Test
+    public void testCanceled() throws Exception {
+        final File file = new File(mDir, "3.jpg");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CancellationSignal signal = new CancellationSignal();
+        final Future<File> result = mCallers.submit(
+                () -> mService.ensureThumbnail(file, (s) -> {
+                    started.countDown();
+                    while (!s.isCanceled()) {
+                        SystemClock.sleep(10);
+                    }
+                    throw new OperationCanceledException();
+                }, PRIORITY_HIGH, signal));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        signal.cancel();
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (Exception expected) {
+        }
+        assertFalse(file.exists());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.CancellationSignal;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailStoreTest {
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "packed_" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            store.put(1, 0, data(1, 100));
+            store.put(1, 2, data(2, 50));
+            store.put(2, 0, data(3, 100));
+            store.put(1, 0, data(4, 120));
+            store.remove(2, 0);
+        }
+
+        // Replacements and removals survive reopening
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            assertArrayEquals(data(4, 120), store.getBytes(1, 0));
+            assertArrayEquals(data(2, 50), store.getBytes(1, 2));
+            assertFalse(store.contains(1, 1));
+            assertFalse(store.contains(2, 0));
+            assertNull(store.open(2, 0));
+
+            try (AssetFileDescriptor afd = store.open(1, 2);
+                    DataInputStream in = new DataInputStream(afd.createInputStream())) {
+                assertEquals(50, afd.getLength());
+                final byte[] buf = new byte[50];
+                in.readFully(buf);
+                assertArrayEquals(data(2, 50), buf);
+            }
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            store.put(1, 0, data(1, 100));
+            store.put(2, 0, data(2, 100));
+        }
+
+        // Cut the last record short, as if we crashed while appending it
+        final File segment = new File(mDir, "segment_0");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            assertArrayEquals(data(1, 100), store.getBytes(1, 0));
+            assertFalse(store.contains(2, 0));
+            store.put(3, 0, data(3, 100));
+        }
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            assertArrayEquals(data(3, 100), store.getBytes(3, 0));
+        }
+    }
+
+    @Test
+    public void testRetainAllCompact() throws Exception {
+        final int length = 1_000_000;
+        final int count = 20;
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            for (int i = 0; i < count; i++) {
+                store.put(i, 0, data(i, length));
+            }
+            assertEquals(2, store.getSegmentCount());
+
+            // Drop most items from the first segment
+            final long[] known = new long[] { 0, 5, 10, 15, 16, 17, 18, 19 };
+            assertEquals(count - known.length,
+                    store.retainAll((id) -> Arrays.binarySearch(known, id) >= 0));
+            store.compact(new CancellationSignal());
+            assertEquals(1, store.getSegmentCount());
+            assertFalse(new File(mDir, "segment_0").exists());
+        }
+
+        try (ThumbnailStore store = ThumbnailStore.open(mDir)) {
+            for (int i = 0; i < count; i++) {
+                if (i % 5 == 0 || i > 15) {
+                    assertArrayEquals(data(i, length), store.getBytes(i, 0));
+                } else {
+                    assertFalse(store.contains(i, 0));
+                }
+            }
+        }
+    }
+
+    private static byte[] data(int seed, int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) length;
+        return data;
+    }
+}
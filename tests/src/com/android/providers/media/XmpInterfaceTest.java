@@ -25,6 +25,8 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.media.ExifInterface;
 import android.os.FileUtils;
+import android.os.SystemClock;
+import android.util.Log;
 import android.util.LongArray;
 import android.util.ArraySet;
 import android.util.Xml;
@@ -33,6 +35,7 @@ import com.android.providers.media.tests.R;
 import com.android.providers.media.util.IsoInterface;
 import com.android.providers.media.util.XmpInterface;
 
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.xmlpull.v1.XmlPullParser;
@@ -47,13 +50,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 @RunWith(AndroidJUnit4.class)
 public class XmpInterfaceTest {
+    private static final String TAG = "XmpInterfaceTest";
+
     @Test
     public void testContainer_Empty() throws Exception {
         final Context context = InstrumentationRegistry.getContext();
@@ -181,6 +189,77 @@ public class XmpInterfaceTest {
         }
     }
 
+    @Test
+    public void testPacket_FastPathEquivalent() throws Exception {
+        final Set<String> redactionTags = getRedactionTags();
+        for (byte[] packet : getPackets()) {
+            final XmpInterface fast = XmpInterface.fromPacket(packet, redactionTags, true);
+            final XmpInterface full = XmpInterface.fromPacket(packet, redactionTags, false);
+            assertEquals(full.getFormat(), fast.getFormat());
+            assertEquals(full.getDocumentId(), fast.getDocumentId());
+            assertEquals(full.getInstanceId(), fast.getInstanceId());
+            assertEquals(full.getOriginalDocumentId(), fast.getOriginalDocumentId());
+            assertArrayEquals(full.getRedactionRanges().toArray(),
+                    fast.getRedactionRanges().toArray());
+        }
+    }
+
+    @Test
+    public void testPacket_FastPathFallback() throws Exception {
+        // Entities in values we care about are left to the full parser
+        final String xml = "<x:xmpmeta xmlns:x='adobe:ns:meta/'>"
+                + "<rdf:RDF xmlns:rdf='http://www.w3.org/1999/02/22-rdf-syntax-ns#'>"
+                + "<rdf:Description xmlns:dc='http://purl.org/dc/elements/1.1/'"
+                + " dc:format='image/&#x6a;peg'/></rdf:RDF></x:xmpmeta>";
+        final XmpInterface xmp = XmpInterface.fromPacket(xml.getBytes(StandardCharsets.UTF_8),
+                getRedactionTags(), true);
+        assertEquals("image/jpeg", xmp.getFormat());
+    }
+
+    @Test
+    @Ignore
+    public void testSpeed_Packets() throws Exception {
+        final Set<String> redactionTags = getRedactionTags();
+        final List<byte[]> packets = getPackets();
+        for (boolean fastPath : new boolean[] { false, true, false, true }) {
+            final long beforeTime = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < 500; i++) {
+                for (byte[] packet : packets) {
+                    XmpInterface.fromPacket(packet, redactionTags, fastPath);
+                }
+            }
+            final long deltaTime = SystemClock.elapsedRealtimeNanos() - beforeTime;
+            Log.v(TAG, (fastPath ? "Fast path" : "Full parser") + " took "
+                    + (deltaTime / (500 * packets.size())) + "ns per packet");
+        }
+    }
+
+    private static Set<String> getRedactionTags() {
+        final Set<String> redactionTags = new ArraySet<>();
+        redactionTags.add(ExifInterface.TAG_GPS_LATITUDE);
+        redactionTags.add(ExifInterface.TAG_GPS_LONGITUDE);
+        redactionTags.add(ExifInterface.TAG_GPS_TIMESTAMP);
+        redactionTags.add(ExifInterface.TAG_GPS_VERSION_ID);
+        return redactionTags;
+    }
+
+    private static List<byte[]> getPackets() throws Exception {
+        final Context context = InstrumentationRegistry.getContext();
+        final List<byte[]> packets = new ArrayList<>();
+        for (int resId : new int[] { R.raw.lg_g4_iso_800_jpg, R.raw.lg_g4_iso_800_dng }) {
+            try (InputStream in = context.getResources().openRawResource(resId)) {
+                packets.add(new ExifInterface(in).getAttributeBytes(ExifInterface.TAG_XMP));
+            }
+        }
+        final UUID uuid = UUID.fromString("be7acfcb-97a9-42e8-9c71-999491e3afac");
+        for (int resId : new int[] { R.raw.test_video_xmp, R.raw.test_video_xmp_bad_tag }) {
+            final IsoInterface mp4 = IsoInterface.fromFile(stageFile(resId));
+            final byte[] packet = mp4.getBoxBytes(uuid);
+            packets.add((packet != null) ? packet : mp4.getBoxBytes(IsoInterface.BOX_XMP));
+        }
+        return packets;
+    }
+
     private static File stageFile(int resId) throws Exception {
         final Context context = InstrumentationRegistry.getContext();
         final File file = File.createTempFile("test", ".mp4");
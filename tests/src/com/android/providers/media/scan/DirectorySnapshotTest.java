@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.MatrixCursor;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@RunWith(AndroidJUnit4.class)
+public class DirectorySnapshotTest {
+    private static final File DIR = new File("/storage/emulated/0/DCIM");
+
+    @Test
+    public void testIndexOf() throws Exception {
+        final DirectorySnapshot snapshot = DirectorySnapshot.fromCursor(DIR, cursor(
+                "img.jpg", "IMG.jpg", "b.jpg", "A.jpg"));
+        assertEquals(4, snapshot.size());
+
+        // Names differing only in case are distinct files
+        assertEquals(1, snapshot.getId(snapshot.indexOf("img.jpg")));
+        assertEquals(2, snapshot.getId(snapshot.indexOf("IMG.jpg")));
+        assertEquals(3, snapshot.getId(snapshot.indexOf("b.jpg")));
+        assertEquals(4, snapshot.getId(snapshot.indexOf("A.jpg")));
+
+        // Callers look up anything else by path
+        assertTrue(snapshot.indexOf("Img.jpg") < 0);
+        assertTrue(snapshot.indexOf("a.jpg") < 0);
+        assertTrue(snapshot.indexOf(null) < 0);
+    }
+
+    @Test
+    public void testIsParentOf() throws Exception {
+        final DirectorySnapshot snapshot = DirectorySnapshot.fromCursor(DIR, cursor());
+        assertTrue(snapshot.isParentOf(new File(DIR, "img.jpg")));
+        assertFalse(snapshot.isParentOf(new File(new File(DIR, "Camera"), "img.jpg")));
+    }
+
+    /**
+     * Build a cursor of children with the given names, with IDs counting up
+     * from 1 in the given order.
+     */
+    private static MatrixCursor cursor(String... names) {
+        final MatrixCursor c = new MatrixCursor(
+                new String[] { "_id", "_data", "date_modified", "_size" });
+        for (int i = 0; i < names.length; i++) {
+            c.addRow(new Object[] { i + 1, new File(DIR, names[i]).getAbsolutePath(), 0, 0 });
+        }
+        return c;
+    }
+}
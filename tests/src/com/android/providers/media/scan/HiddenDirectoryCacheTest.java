@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@RunWith(AndroidJUnit4.class)
+public class HiddenDirectoryCacheTest {
+    private File mDir;
+    private File mNomedia;
+    private HiddenDirectoryCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "hidden_" + System.nanoTime());
+        mDir.mkdirs();
+        mNomedia = new File(mDir, ".nomedia");
+        mCache = new HiddenDirectoryCache();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        assertFalse(mCache.isHidden(mDir, 1000));
+
+        // Decisions are reused while the directory is unmodified
+        mNomedia.createNewFile();
+        assertFalse(mCache.isHidden(mDir, 1000));
+
+        // But not once it was
+        assertTrue(mCache.isHidden(mDir, 2000));
+        mNomedia.delete();
+        assertTrue(mCache.isHidden(mDir, 2000));
+        assertFalse(mCache.isHidden(mDir, 3000));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final File child = new File(mDir, "child");
+        child.mkdirs();
+        assertFalse(mCache.isHidden(mDir, 1000));
+        assertFalse(mCache.isHidden(child, 1000));
+
+        // Invalidating a parent forgets everything below it too
+        mNomedia.createNewFile();
+        new File(child, ".nomedia").createNewFile();
+        mCache.invalidate(mDir);
+        assertTrue(mCache.isHidden(mDir, 1000));
+        assertTrue(mCache.isHidden(child, 1000));
+
+        // Invalidating unknown paths is harmless
+        mCache.invalidate(new File(mDir, "missing/deeper"));
+        assertTrue(mCache.isHidden(child, 1000));
+    }
+
+    @Test
+    public void testRecursive() throws Exception {
+        final File child = new File(mDir, "child/grandchild");
+        child.mkdirs();
+        assertFalse(mCache.isHiddenRecursive(child));
+        assertFalse(mCache.isHiddenRecursive(null));
+
+        mNomedia.createNewFile();
+        mCache.invalidate(mDir);
+        assertTrue(mCache.isHiddenRecursive(child));
+        assertTrue(mCache.isHiddenRecursive(new File(mDir, ".hidden")));
+    }
+
+    @Test
+    public void testForVolume() throws Exception {
+        final String volumeName = "test_" + System.nanoTime();
+        final HiddenDirectoryCache cache = HiddenDirectoryCache.forVolume(volumeName);
+        assertSame(cache, HiddenDirectoryCache.forVolume(volumeName));
+
+        // Invalidating a path reaches every volume
+        assertFalse(cache.isHidden(mDir, 1000));
+        mNomedia.createNewFile();
+        HiddenDirectoryCache.invalidatePath(mDir);
+        assertTrue(cache.isHidden(mDir, 1000));
+
+        HiddenDirectoryCache.forgetVolume(volumeName);
+        assertNotSame(cache, HiddenDirectoryCache.forVolume(volumeName));
+        HiddenDirectoryCache.forgetVolume(volumeName);
+    }
+}
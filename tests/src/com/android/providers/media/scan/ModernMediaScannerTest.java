@@ -18,7 +18,9 @@ package com.android.providers.media.scan;
 
 import static com.android.providers.media.scan.MediaScannerTest.stage;
 import static com.android.providers.media.scan.ModernMediaScanner.isDirectoryHidden;
+import static com.android.providers.media.scan.ModernMediaScanner.isVisualMedia;
 import static com.android.providers.media.scan.ModernMediaScanner.maybeOverrideMimeType;
+import static com.android.providers.media.scan.ModernMediaScanner.parseOptionalDate;
 import static com.android.providers.media.scan.ModernMediaScanner.parseOptionalDateTaken;
 
 import static org.junit.Assert.assertEquals;
@@ -29,11 +31,13 @@ import static org.junit.Assert.assertTrue;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.media.ExifInterface;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.FileUtils;
 import android.os.ParcelFileDescriptor;
@@ -57,8 +61,11 @@ import org.junit.runner.RunWith;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(AndroidJUnit4.class)
 public class ModernMediaScannerTest {
@@ -122,6 +129,36 @@ public class ModernMediaScannerTest {
         assertEquals(1453972654000L - 25200000L, (long) parseOptionalDateTaken(exif, 0L).get());
     }
 
+    @Test
+    public void testParseOptionalDate() throws Exception {
+        assertEquals(1453972654000L, (long) parseOptionalDate("20160128T091734").get());
+        assertFalse(parseOptionalDate("").isPresent());
+        assertFalse(parseOptionalDate("garbage").isPresent());
+
+        // Videos are extracted on several workers at once
+        final String[] dates = { "20160128T091734", "20190101T000000" };
+        final long[] values = { 1453972654000L, 1546300800000L };
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    final int k = (offset + j) % dates.length;
+                    final Optional<Long> value = parseOptionalDate(dates[k]);
+                    if (!value.isPresent() || value.get() != values[k]) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
     @Test
     public void testParseDateTaken_Gps() throws Exception {
         final File file = File.createTempFile("test", ".jpg");
@@ -229,6 +266,18 @@ public class ModernMediaScannerTest {
         }
     }
 
+    @Test
+    public void testIsVisualMedia() throws Exception {
+        assertTrue(isVisualMedia(
+                ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, 42)));
+        assertTrue(isVisualMedia(
+                ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, 42)));
+        assertFalse(isVisualMedia(
+                ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, 42)));
+        assertFalse(isVisualMedia(MediaStore.Files.getContentUri("external", 42)));
+        assertFalse(isVisualMedia(MediaStore.Images.Media.EXTERNAL_CONTENT_URI));
+    }
+
     @Test
     public void testPlaylistM3u() throws Exception {
         Assume.assumeTrue(MediaProvider.ENABLE_MODERN_SCANNER);
@@ -399,6 +448,169 @@ public class ModernMediaScannerTest {
         assertQueryCount(0, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
     }
 
+    @Test
+    public void testScan_Sidecar() throws Exception {
+        Assume.assumeTrue(MediaProvider.ENABLE_MODERN_SCANNER);
+
+        final File image = new File(mDir, "image.jpg");
+        final File sidecar = new File(mDir, "image.xmp");
+        stage(R.raw.test_image, image);
+        writeSidecar(sidecar, "xmp.did:red");
+
+        mModern.scanDirectory(mDir);
+        assertDocumentId("xmp.did:red", MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Change only the sidecar and confirm the image was rescanned
+        writeSidecar(sidecar, "xmp.did:blue");
+        sidecar.setLastModified(sidecar.lastModified() + 10_000);
+        mModern.scanDirectory(mDir);
+        assertDocumentId("xmp.did:blue", MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Scanning the sidecar alone also rescans the image
+        writeSidecar(sidecar, "xmp.did:green");
+        sidecar.setLastModified(sidecar.lastModified() + 10_000);
+        mModern.scanFile(sidecar);
+        assertDocumentId("xmp.did:green", MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
+
+    @Test
+    public void testScan_UnchangedSubtree() throws Exception {
+        Assume.assumeTrue(MediaProvider.ENABLE_MODERN_SCANNER);
+
+        final File red = new File(mDir, "red");
+        red.mkdirs();
+        final File image = new File(red, "red.jpg");
+        stage(R.raw.test_image, image);
+        mModern.scanDirectory(mDir);
+        assertWidth(1280, image);
+
+        // Rewriting a file in place doesn't change the listing of its
+        // directory, so the journal lets the rescan skip it entirely
+        try (FileOutputStream out = new FileOutputStream(image)) {
+            Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888)
+                    .compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        mModern.scanDirectory(mDir);
+        assertWidth(1280, image);
+
+        // Adding a sibling changes the directory, so it's examined again
+        stage(R.raw.test_image, new File(red, "blue.jpg"));
+        mModern.scanDirectory(mDir);
+        assertWidth(32, image);
+        assertQueryCount(2, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
+
+    @Test
+    public void testScan_StaleParent() throws Exception {
+        Assume.assumeTrue(MediaProvider.ENABLE_MODERN_SCANNER);
+
+        final File red = new File(mDir, "red");
+        red.mkdirs();
+        final File image = new File(red, "red.jpg");
+        stage(R.raw.test_image, image);
+        mModern.scanDirectory(mDir);
+
+        final long id;
+        try (Cursor cursor = mIsolatedResolver.query(MediaStore.Files.EXTERNAL_CONTENT_URI,
+                new String[] { FileColumns._ID }, FileColumns.DATA + "=?",
+                new String[] { image.getAbsolutePath() }, null)) {
+            assertTrue(cursor.moveToFirst());
+            id = cursor.getLong(0);
+        }
+
+        // Point the existing item at the wrong parent, so it's missing from
+        // the snapshot of its directory, and add a sibling so the directory
+        // is walked again
+        final ContentValues values = new ContentValues();
+        values.put(FileColumns.PARENT, Long.MAX_VALUE);
+        assertEquals(1, mIsolatedResolver.update(
+                MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL, id),
+                values, null, null));
+        stage(R.raw.test_image, new File(red, "blue.jpg"));
+        mModern.scanDirectory(mDir);
+
+        // The existing item is kept as-is, and the sibling is still inserted
+        assertQueryCount(2, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        try (Cursor cursor = mIsolatedResolver.query(MediaStore.Files.EXTERNAL_CONTENT_URI,
+                new String[] { FileColumns._ID }, FileColumns.DATA + "=?",
+                new String[] { image.getAbsolutePath() }, null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(id, cursor.getLong(0));
+        }
+    }
+
+    @Test
+    public void testScan_CancelAndResume() throws Exception {
+        Assume.assumeTrue(MediaProvider.ENABLE_MODERN_SCANNER);
+
+        final File[] images = new File[4];
+        for (int i = 0; i < images.length; i++) {
+            final File dir = new File(mDir, "dir" + i);
+            dir.mkdirs();
+            images[i] = new File(dir, "image" + i + ".jpg");
+            stage(R.raw.test_image, images[i]);
+        }
+
+        // Cancel the scan as soon as the second directory is checkpointed,
+        // the same way the idle job cancels when its window closes
+        final CancellationSignal signal = new CancellationSignal();
+        ModernMediaScanner.sCheckpointIntervalMs = 0;
+        ModernMediaScanner.sCheckpointListener = (dir) -> {
+            if (dir.getName().equals("dir1")) signal.cancel();
+        };
+        try {
+            mModern.scanDirectory(mDir, signal);
+        } finally {
+            ModernMediaScanner.sCheckpointListener = null;
+        }
+        assertTrue(signal.isCanceled());
+        assertQueryCount(2, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Rewrite an image the interrupted scan already finished with; the
+        // resumed scan skips its directory instead of walking it again
+        try (FileOutputStream out = new FileOutputStream(images[0])) {
+            Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888)
+                    .compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        try {
+            mModern.scanDirectory(mDir, new CancellationSignal());
+        } finally {
+            ModernMediaScanner.sCheckpointIntervalMs = ModernMediaScanner.CHECKPOINT_INTERVAL_MS;
+        }
+        assertQueryCount(4, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        assertWidth(1280, images[0]);
+        assertWidth(1280, images[3]);
+    }
+
+    private static void writeSidecar(File file, String documentId) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(("<x:xmpmeta xmlns:x='adobe:ns:meta/'>"
+                    + "<rdf:RDF xmlns:rdf='http://www.w3.org/1999/02/22-rdf-syntax-ns#'>"
+                    + "<rdf:Description xmlns:xmpMM='http://ns.adobe.com/xap/1.0/mm/'"
+                    + " xmpMM:DocumentID='" + documentId + "'/>"
+                    + "</rdf:RDF></x:xmpmeta>").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void assertDocumentId(String expected, Uri actualUri) {
+        try (Cursor cursor = mIsolatedResolver.query(actualUri,
+                new String[] { MediaColumns.DOCUMENT_ID }, null, null, null)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(expected, cursor.getString(0));
+        }
+    }
+
+    private void assertWidth(int expected, File file) {
+        try (Cursor cursor = mIsolatedResolver.query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[] { MediaColumns.WIDTH }, MediaColumns.DATA + "=?",
+                new String[] { file.getAbsolutePath() }, null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(expected, cursor.getInt(0));
+        }
+    }
+
     private void assertQueryCount(int expected, Uri actualUri) {
         try (Cursor cursor = mIsolatedResolver.query(actualUri, null, null, null, null)) {
             assertEquals(expected, cursor.getCount());
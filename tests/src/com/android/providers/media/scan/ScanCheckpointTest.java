@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ScanCheckpointTest {
+    @Test
+    public void testIsCompleted() throws Exception {
+        final ScanCheckpoint checkpoint = new ScanCheckpoint(1,
+                "/storage/emulated/0/DCIM/Camera", 0);
+
+        // Checkpoint itself and everything below it
+        assertTrue(checkpoint.isCompleted("/storage/emulated/0/DCIM/Camera"));
+        assertTrue(checkpoint.isCompleted("/storage/emulated/0/DCIM/Camera/Burst"));
+
+        // Siblings walked earlier
+        assertTrue(checkpoint.isCompleted("/storage/emulated/0/Alarms"));
+        assertTrue(checkpoint.isCompleted("/storage/emulated/0/DCIM/.thumbnails"));
+
+        // Ancestors are only partially walked
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0"));
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0/DCIM"));
+
+        // Siblings walked later, including ones sharing a prefix
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0/DCIM/Camera2"));
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0/DCIM/Camera 2"));
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0/Music"));
+    }
+
+    @Test
+    public void testIsCompleted_Finished() throws Exception {
+        final ScanCheckpoint checkpoint = new ScanCheckpoint(1, null, 0);
+        assertFalse(checkpoint.isCompleted("/storage/emulated/0/DCIM"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ScanPipelineTest {
+    @Test
+    public void testOrdering() throws Exception {
+        final List<Integer> results = new ArrayList<>();
+        final Random random = new Random(42);
+        try (ScanPipeline<Integer> pipeline = new ScanPipeline<>("test",
+                new CancellationSignal(), 4, 8, results::add)) {
+            for (int i = 0; i < 200; i++) {
+                final int value = i;
+                final int delay = random.nextInt(3);
+                if (i % 10 == 0) {
+                    pipeline.submitResult(value);
+                } else {
+                    pipeline.submit(() -> {
+                        Thread.sleep(delay);
+                        return value;
+                    });
+                }
+            }
+            pipeline.finish();
+        }
+
+        // Results arrive in submission order, whichever worker finished first
+        assertEquals(200, results.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try (ScanPipeline<Integer> pipeline = new ScanPipeline<>("test",
+                new CancellationSignal(), 2, 4, (result) -> {})) {
+            pipeline.submit(() -> 1);
+            pipeline.submit(() -> {
+                throw new IllegalArgumentException();
+            });
+            try {
+                // Either further submits or finishing report the failure
+                for (int i = 0; i < 100; i++) {
+                    pipeline.submit(() -> 1);
+                }
+                pipeline.finish();
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final int depth = 4;
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger submitted = new AtomicInteger();
+        final CancellationSignal signal = new CancellationSignal();
+
+        try (ScanPipeline<Integer> pipeline = new ScanPipeline<>("test", signal, 2, depth,
+                (result) -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new OperationCanceledException();
+                    }
+                })) {
+            final Thread walker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        pipeline.submit(() -> started.incrementAndGet());
+                        submitted.incrementAndGet();
+                    }
+                } catch (OperationCanceledException ignored) {
+                }
+            });
+            walker.start();
+
+            // With the writer stuck, the walker stalls once the pipeline is
+            // full, and no more tasks are handed to the workers than fit
+            Thread.sleep(500);
+            assertTrue(walker.isAlive());
+            assertTrue(submitted.get() <= depth + 1);
+            assertTrue(started.get() <= depth + 1);
+
+            release.countDown();
+            walker.join(TimeUnit.SECONDS.toMillis(10));
+            assertEquals(100, submitted.get());
+            pipeline.finish();
+            assertEquals(100, started.get());
+        }
+    }
+}
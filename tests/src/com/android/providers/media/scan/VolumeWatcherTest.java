@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.scan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.FileUtils;
+import android.os.SystemClock;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.ScanScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class VolumeWatcherTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private File mDir;
+    private String mVolumeName;
+    private RecordingScanner mScanner;
+    private ScanScheduler mScheduler;
+    private VolumeWatcher mWatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDir = new File(context.getCacheDir(), "watch_" + System.nanoTime());
+        mDir.mkdirs();
+        mVolumeName = "test_" + System.nanoTime();
+        mScanner = new RecordingScanner(context);
+        mScheduler = new ScanScheduler(context, mScanner);
+        mWatcher = new VolumeWatcher(mScheduler, mVolumeName, Arrays.asList(mDir));
+        mWatcher.start();
+        assertTrue(mWatcher.waitForIdle(TIMEOUT_MS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWatcher.stop();
+        mScheduler.quit();
+        HiddenDirectoryCache.forgetVolume(mVolumeName);
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        // Repeated writes within the window result in a single scan
+        final File file = new File(mDir, "IMG_0001.jpg");
+        for (int i = 0; i < 3; i++) {
+            write(file);
+        }
+        mScanner.await(1);
+        settle();
+        assertEquals(Arrays.asList(file.getCanonicalFile()), mScanner.getFiles());
+        assertEquals(0, mScanner.getDirs().size());
+    }
+
+    @Test
+    public void testBelowThreshold() throws Exception {
+        final List<File> expected = new ArrayList<>();
+        for (int i = 0; i < VolumeWatcher.DIRECTORY_BATCH_THRESHOLD - 1; i++) {
+            final File file = new File(mDir, "IMG_000" + i + ".jpg");
+            write(file);
+            expected.add(file.getCanonicalFile());
+        }
+        mScanner.await(expected.size());
+        settle();
+
+        // Each file is scanned individually
+        assertEquals(expected.size(), mScanner.getFiles().size());
+        assertTrue(mScanner.getFiles().containsAll(expected));
+        assertEquals(0, mScanner.getDirs().size());
+    }
+
+    @Test
+    public void testAboveThreshold() throws Exception {
+        for (int i = 0; i < VolumeWatcher.DIRECTORY_BATCH_THRESHOLD * 2; i++) {
+            write(new File(mDir, "IMG_00" + i + ".jpg"));
+        }
+        mScanner.await(1);
+        settle();
+
+        // Busy directories are rescanned as a whole instead
+        assertEquals(0, mScanner.getFiles().size());
+        assertEquals(Arrays.asList(mDir), mScanner.getDirs());
+    }
+
+    @Test
+    public void testNewDirectory() throws Exception {
+        final File dir = new File(mDir, "Camera");
+        dir.mkdirs();
+        mScanner.await(1);
+        settle();
+        assertEquals(Arrays.asList(dir), mScanner.getDirs());
+
+        // Directories created after starting are watched too
+        final File file = new File(dir, "IMG_0001.jpg");
+        write(file);
+        mScanner.await(2);
+        settle();
+        assertEquals(Arrays.asList(file.getCanonicalFile()), mScanner.getFiles());
+    }
+
+    @Test
+    public void testStopped() throws Exception {
+        mWatcher.stop();
+        write(new File(mDir, "IMG_0001.jpg"));
+        settle();
+        assertEquals(0, mScanner.getFiles().size());
+        assertEquals(0, mScanner.getDirs().size());
+    }
+
+    private static void write(File file) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[16]);
+        }
+    }
+
+    /**
+     * Wait long enough for any further coalescing window to pass and its
+     * scans to run.
+     */
+    private static void settle() {
+        SystemClock.sleep(VolumeWatcher.COALESCE_DELAY_MS * 2);
+    }
+
+    private static class RecordingScanner implements MediaScanner {
+        private final Context mContext;
+        private final List<File> mFiles = new ArrayList<>();
+        private final List<File> mDirs = new ArrayList<>();
+
+        RecordingScanner(Context context) {
+            mContext = context;
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (mFiles.size() + mDirs.size() < count) {
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    throw new AssertionError("Expected " + count + " scans; found "
+                            + mFiles + " and " + mDirs);
+                }
+                wait(remaining);
+            }
+        }
+
+        synchronized List<File> getFiles() {
+            return new ArrayList<>(mFiles);
+        }
+
+        synchronized List<File> getDirs() {
+            return new ArrayList<>(mDirs);
+        }
+
+        @Override
+        public Context getContext() {
+            return mContext;
+        }
+
+        @Override
+        public void scanDirectory(File file) {
+            scanDirectory(file, null);
+        }
+
+        @Override
+        public synchronized void scanDirectory(File file, CancellationSignal signal) {
+            mDirs.add(file);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Uri scanFile(File file) {
+            mFiles.add(file);
+            notifyAll();
+            return Uri.fromFile(file);
+        }
+
+        @Override
+        public void onDetachVolume(String volumeName) {
+        }
+    }
+}